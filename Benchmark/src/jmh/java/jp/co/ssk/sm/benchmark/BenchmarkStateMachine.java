@@ -0,0 +1,83 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.AbstractStateMachine;
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.EventResult;
+import jp.co.ssk.sm.core.StateTopology;
+
+abstract class BenchmarkStateMachine extends AbstractStateMachine {
+
+    BenchmarkStateMachine(@Nullable Dispatcher.Factory factory) {
+        super(factory);
+    }
+
+    BenchmarkStateMachine(@Nullable Dispatcher.Factory factory, @Nullable StateTopology topology) {
+        super(factory, topology);
+    }
+
+    void send(int what) {
+        sendMessage(what);
+    }
+
+    void sendBoxed(int what, long timestamp) {
+        sendMessage(what, Long.valueOf(timestamp));
+    }
+
+    void sendSample(int what, long timestamp, double value) {
+        sendEvent(obtainEvent(what, timestamp, value));
+    }
+
+    void sendSync(int what) {
+        sendMessageSyncIf(what);
+    }
+
+    @NonNull
+    CompletableFuture<EventResult> sendAsync(int what) {
+        return sendMessageAsync(what);
+    }
+
+    @NonNull
+    AbstractState current() {
+        return getCurrentState();
+    }
+
+    @NonNull
+    byte[] save() {
+        return saveState();
+    }
+
+    void coalesce(int what) {
+        setCoalesced(what, true);
+    }
+
+    void urgent(int what) {
+        setUrgent(what, true);
+    }
+
+    void enableMetrics() {
+        setMetricsEnabled(true);
+    }
+
+    void await() {
+        final CountDownLatch latch = new CountDownLatch(1);
+        getDispatcher().post(latch::countDown);
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    void shutdown() {
+        quit();
+    }
+}
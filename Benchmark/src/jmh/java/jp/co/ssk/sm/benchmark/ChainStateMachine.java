@@ -0,0 +1,52 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Event;
+
+final class ChainStateMachine extends BenchmarkStateMachine {
+
+    static final int PING = 0;
+
+    long mCount;
+
+    ChainStateMachine(int depth, @Nullable Dispatcher.Factory factory) {
+        this(depth, false, factory);
+    }
+
+    ChainStateMachine(int depth, boolean declared, @Nullable Dispatcher.Factory factory) {
+        super(factory);
+        AbstractState parent = new RootState();
+        addState(parent);
+        for (int i = 1; i < depth; i++) {
+            AbstractState state = declared ? new DeclaredChildState() : new ChildState();
+            addState(state, parent);
+            parent = state;
+        }
+        setInitialState(parent);
+        start();
+    }
+
+    private static class RootState extends AbstractState<ChainStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull ChainStateMachine owner, @NonNull Event event) {
+            owner.mCount++;
+            return HANDLED;
+        }
+    }
+
+    private static class ChildState extends AbstractState<ChainStateMachine> {
+    }
+
+    private static class DeclaredChildState extends ChildState {
+        private static final int[] NO_EVENTS = {};
+        @Nullable
+        @Override
+        public int[] handledEvents() {
+            return NO_EVENTS;
+        }
+    }
+}
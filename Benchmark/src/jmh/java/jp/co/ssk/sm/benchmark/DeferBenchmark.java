@@ -0,0 +1,46 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeferBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int deferred;
+
+    private DeferStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new DeferStateMachine();
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    public long deferAndReplay() {
+        for (int i = 0; i < deferred; i++) {
+            mStateMachine.send(DeferStateMachine.WORK);
+        }
+        mStateMachine.send(DeferStateMachine.OPEN);
+        mStateMachine.send(DeferStateMachine.CLOSE);
+        mStateMachine.await();
+        return mStateMachine.mCount;
+    }
+}
@@ -0,0 +1,70 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Event;
+
+final class DeferStateMachine extends BenchmarkStateMachine {
+
+    static final int WORK = 0;
+    static final int OPEN = 1;
+    static final int CLOSE = 2;
+
+    private final AbstractState mClosedState = new ClosedState();
+    private final AbstractState mOpenedState = new OpenedState();
+    long mCount;
+
+    DeferStateMachine() {
+        super(null);
+        AbstractState root = new RootState();
+        addState(root);
+        addState(mClosedState, root);
+        addState(mOpenedState, root);
+        setInitialState(mClosedState);
+        start();
+    }
+
+    private static class RootState extends AbstractState<DeferStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull DeferStateMachine owner, @NonNull Event event) {
+            return HANDLED;
+        }
+    }
+
+    private static class ClosedState extends AbstractState<DeferStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull DeferStateMachine owner, @NonNull Event event) {
+            boolean ret = NOT_HANDLED;
+            switch (event.what) {
+                case WORK:
+                    ret = HANDLED;
+                    owner.deferEvent(event);
+                    break;
+                case OPEN:
+                    ret = HANDLED;
+                    owner.transitionTo(owner.mOpenedState);
+                    break;
+            }
+            return ret;
+        }
+    }
+
+    private static class OpenedState extends AbstractState<DeferStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull DeferStateMachine owner, @NonNull Event event) {
+            boolean ret = NOT_HANDLED;
+            switch (event.what) {
+                case WORK:
+                    ret = HANDLED;
+                    owner.mCount++;
+                    break;
+                case CLOSE:
+                    ret = HANDLED;
+                    owner.transitionTo(owner.mClosedState);
+                    break;
+            }
+            return ret;
+        }
+    }
+}
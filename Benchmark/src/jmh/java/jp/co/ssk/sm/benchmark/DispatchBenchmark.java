@@ -0,0 +1,57 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DispatchBenchmark {
+
+    private static final int BATCH = 1000;
+
+    @Param({"1", "5", "10"})
+    public int depth;
+
+    @Param({"false", "true"})
+    public boolean declared;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private ChainStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new ChainStateMachine(depth, declared, null);
+        if (metrics) {
+            mStateMachine.enableMetrics();
+        }
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long dispatchToRoot() {
+        for (int i = 0; i < BATCH; i++) {
+            mStateMachine.send(ChainStateMachine.PING);
+        }
+        mStateMachine.await();
+        return mStateMachine.mCount;
+    }
+}
@@ -0,0 +1,56 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// High-rate samples carrying a timestamp: boxed into obj, against the primitive slots of an
+// event from the machine's free list. Run with -prof gc to compare allocation per event.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventSlotBenchmark {
+
+    private static final int BATCH = 1000;
+
+    private ChainStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new ChainStateMachine(1, null);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long boxed() {
+        for (int i = 0; i < BATCH; i++) {
+            mStateMachine.sendBoxed(ChainStateMachine.PING, System.nanoTime());
+        }
+        mStateMachine.await();
+        return mStateMachine.mCount;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long primitiveSlots() {
+        for (int i = 0; i < BATCH; i++) {
+            mStateMachine.sendSample(ChainStateMachine.PING, System.nanoTime(), i);
+        }
+        mStateMachine.await();
+        return mStateMachine.mCount;
+    }
+}
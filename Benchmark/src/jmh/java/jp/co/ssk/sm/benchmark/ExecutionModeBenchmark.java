@@ -0,0 +1,90 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Dispatchers;
+
+// Prints heap bytes and live threads per machine at setup; the score is the time to push one
+// SampleTopology cycle through every machine.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExecutionModeBenchmark {
+
+    @Param({"thread", "pooled", "virtual"})
+    public String mode;
+
+    @Param({"100", "1000", "10000"})
+    public int machineCount;
+
+    private SampleTopologyStateMachine[] mStateMachines;
+
+    @Setup
+    public void setup() {
+        final Dispatcher.Factory factory;
+        switch (mode) {
+            case "thread":
+                factory = Dispatchers.thread();
+                break;
+            case "pooled":
+                factory = Dispatchers.pooled();
+                break;
+            case "virtual":
+                factory = Dispatchers.virtualThread();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+        final long heapBefore = usedHeap();
+        final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+        mStateMachines = new SampleTopologyStateMachine[machineCount];
+        for (int i = 0; i < machineCount; i++) {
+            mStateMachines[i] = new SampleTopologyStateMachine(factory);
+        }
+        for (SampleTopologyStateMachine stateMachine : mStateMachines) {
+            stateMachine.await();
+        }
+        final long heapAfter = usedHeap();
+        final int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        System.out.println(String.format(Locale.US, "%n# mode=%s machines=%d heapBytes/machine=%d threads=+%d",
+                mode, machineCount, (heapAfter - heapBefore) / machineCount, threadsAfter - threadsBefore));
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (SampleTopologyStateMachine stateMachine : mStateMachines) {
+            stateMachine.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void cycleAllMachines() {
+        for (SampleTopologyStateMachine stateMachine : mStateMachines) {
+            stateMachine.runCycle();
+        }
+        for (SampleTopologyStateMachine stateMachine : mStateMachines) {
+            stateMachine.await();
+        }
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
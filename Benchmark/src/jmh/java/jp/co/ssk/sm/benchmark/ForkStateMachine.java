@@ -0,0 +1,48 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Event;
+
+final class ForkStateMachine extends BenchmarkStateMachine {
+
+    static final int TOGGLE = 0;
+
+    private final AbstractState mLeftLeaf;
+    private final AbstractState mRightLeaf;
+    private boolean mLeft = true;
+
+    ForkStateMachine(int branchDepth) {
+        super(null);
+        AbstractState root = new RootState();
+        addState(root);
+        mLeftLeaf = _addBranch(root, branchDepth);
+        mRightLeaf = _addBranch(root, branchDepth);
+        setInitialState(mLeftLeaf);
+        start();
+    }
+
+    @NonNull
+    private AbstractState _addBranch(@NonNull AbstractState root, int branchDepth) {
+        AbstractState parent = root;
+        for (int i = 0; i < branchDepth; i++) {
+            AbstractState state = new ChildState();
+            addState(state, parent);
+            parent = state;
+        }
+        return parent;
+    }
+
+    private static class RootState extends AbstractState<ForkStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull ForkStateMachine owner, @NonNull Event event) {
+            owner.mLeft = !owner.mLeft;
+            owner.transitionTo(owner.mLeft ? owner.mLeftLeaf : owner.mRightLeaf);
+            return HANDLED;
+        }
+    }
+
+    private static class ChildState extends AbstractState<ForkStateMachine> {
+    }
+}
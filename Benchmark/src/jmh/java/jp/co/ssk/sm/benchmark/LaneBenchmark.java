@@ -0,0 +1,70 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// Time for a control event to be handled behind a backlog of bulk events, and for a burst of
+// status updates to be drained, with and without the mailbox policies.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LaneBenchmark {
+
+    private static final int CONTROL = 1;
+    private static final int STATUS = 2;
+
+    @Param({"1000"})
+    public int backlog;
+
+    // Whether CONTROL is urgent and STATUS coalesced.
+    @Param({"false", "true"})
+    public boolean policies;
+
+    private ChainStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new ChainStateMachine(3, null);
+        if (policies) {
+            mStateMachine.urgent(CONTROL);
+            mStateMachine.coalesce(STATUS);
+        }
+        mStateMachine.await();
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() {
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    public void controlBehindBacklog() {
+        for (int i = 0; i < backlog; i++) {
+            mStateMachine.send(ChainStateMachine.PING);
+        }
+        mStateMachine.sendSync(CONTROL);
+    }
+
+    @Benchmark
+    public void statusBurst() {
+        for (int i = 0; i < backlog; i++) {
+            mStateMachine.send(STATUS);
+        }
+        mStateMachine.await();
+    }
+}
@@ -0,0 +1,88 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Dispatchers;
+import jp.co.ssk.sm.core.MpscDispatcher;
+
+// "locked" is the lock + condition queue of ThreadDispatcher, which mirrors the Looper's
+// MessageQueue; the others are the lock-free mailbox with each wait strategy.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MailboxBenchmark {
+
+    private static final int EVENTS = 64 * 1024;
+
+    @Param({"locked", "park", "spin", "yield"})
+    public String mailbox;
+
+    @Param({"1", "4", "16", "64"})
+    public int producers;
+
+    private ExecutorService mProducerPool;
+    private ChainStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        final Dispatcher.Factory factory;
+        switch (mailbox) {
+            case "locked":
+                factory = Dispatchers.thread();
+                break;
+            case "park":
+                factory = Dispatchers.mpsc(MpscDispatcher.WaitStrategy.PARK);
+                break;
+            case "spin":
+                factory = Dispatchers.mpsc(MpscDispatcher.WaitStrategy.SPIN);
+                break;
+            case "yield":
+                factory = Dispatchers.mpsc(MpscDispatcher.WaitStrategy.YIELD);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mailbox: " + mailbox);
+        }
+        mProducerPool = Executors.newFixedThreadPool(producers);
+        mStateMachine = new ChainStateMachine(1, factory);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+        mProducerPool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long fanIn() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(producers);
+        final int perProducer = EVENTS / producers;
+        for (int p = 0; p < producers; p++) {
+            mProducerPool.execute(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    mStateMachine.send(ChainStateMachine.PING);
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        mStateMachine.await();
+        return mStateMachine.mCount;
+    }
+}
@@ -0,0 +1,60 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RegionBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({"4"})
+    public int regionCount;
+
+    @Param({"0", "1000", "100000"})
+    public long workTokens;
+
+    // Whether regions are dispatched on a fork-join pool or one after another.
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private ForkJoinPool mPool;
+    private RegionStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mPool = parallel ? new ForkJoinPool(regionCount) : null;
+        mStateMachine = new RegionStateMachine(regionCount, workTokens, mPool);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+        if (mPool != null) {
+            mPool.shutdown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void broadcast() {
+        for (int i = 0; i < BATCH; i++) {
+            mStateMachine.send(RegionStateMachine.WORK);
+        }
+        mStateMachine.await();
+    }
+}
@@ -0,0 +1,58 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ForkJoinPool;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Event;
+import jp.co.ssk.sm.core.StateTopology;
+
+// One composite state with regionCount regions, each burning workTokens of CPU per WORK
+// event so the cost of sequential and parallel region dispatch can be compared.
+final class RegionStateMachine extends BenchmarkStateMachine {
+
+    static final int WORK = 0;
+
+    private final long mWorkTokens;
+
+    RegionStateMachine(int regionCount, long workTokens, @Nullable ForkJoinPool pool) {
+        super(null);
+        mWorkTokens = workTokens;
+        final StateTopology[] regions = new StateTopology[regionCount];
+        for (int i = 0; i < regionCount; i++) {
+            final AbstractState state = new WorkState();
+            regions[i] = new StateTopology.Builder().addState(state).setInitialState(state).build();
+        }
+        final AbstractState composite = new CompositeState(regions);
+        addState(composite);
+        setInitialState(composite);
+        setParallelRegions(pool);
+        start();
+    }
+
+    private static class CompositeState extends AbstractState<RegionStateMachine> {
+        @NonNull
+        private final StateTopology[] mRegions;
+
+        CompositeState(@NonNull StateTopology[] regions) {
+            mRegions = regions;
+        }
+        @Nullable
+        @Override
+        public StateTopology[] regions() {
+            return mRegions;
+        }
+    }
+
+    private static class WorkState extends AbstractState<RegionStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull RegionStateMachine owner, @NonNull Event event) {
+            Blackhole.consumeCPU(owner.mWorkTokens);
+            return HANDLED;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.MachineRegistry;
+
+// Events routed by key to a fleet of Sample-topology machines sharing a few shard threads.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RegistryBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({"1000", "100000"})
+    public int keys;
+
+    @Param({"4"})
+    public int shards;
+
+    private MachineRegistry<Integer, SampleTopologyStateMachine> mRegistry;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mRegistry = new MachineRegistry<>(shards, 0,
+                (key, factory, state) -> new SampleTopologyStateMachine(factory, true, state));
+        for (int key = 0; key < keys; key++) {
+            mRegistry.sendMessage(key, SampleTopologyStateMachine.DEACTIVATE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mRegistry.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH * 6)
+    public void routeCycles() {
+        int key = 0;
+        for (int i = 0; i < BATCH; i++) {
+            key = mNext;
+            mNext = mNext + 1 == keys ? 0 : mNext + 1;
+            for (int what : SampleTopologyStateMachine.CYCLE) {
+                mRegistry.sendMessage(key, what);
+            }
+        }
+        mRegistry.get(key).await();
+    }
+}
@@ -0,0 +1,70 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.EventResult;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoundTripBenchmark {
+
+    private static final int REQUESTS = 64;
+
+    private ChainStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new ChainStateMachine(5, null);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    public long sendMessageSyncIf() {
+        mStateMachine.sendSync(ChainStateMachine.PING);
+        return mStateMachine.mCount;
+    }
+
+    // A burst of requests from one caller: one parked round trip each, against all in flight at once.
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public long syncRequests() {
+        for (int i = 0; i < REQUESTS; i++) {
+            mStateMachine.sendSync(ChainStateMachine.PING);
+        }
+        return mStateMachine.mCount;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public EventResult asyncRequests() {
+        CompletableFuture<EventResult> last = null;
+        for (int i = 0; i < REQUESTS; i++) {
+            last = mStateMachine.sendAsync(ChainStateMachine.PING);
+        }
+        // Events are processed in order, so the last one completing implies the others did.
+        return last.join();
+    }
+
+    @Benchmark
+    public AbstractState getCurrentState() {
+        return mStateMachine.current();
+    }
+}
@@ -0,0 +1,61 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.AbstractState;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SampleTopologyBenchmark {
+
+    private static final int CYCLES = 100;
+
+    private SampleTopologyStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new SampleTopologyStateMachine(null);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES * 6)
+    public AbstractState connectCycle() {
+        for (int i = 0; i < CYCLES; i++) {
+            mStateMachine.runCycle();
+        }
+        mStateMachine.await();
+        return mStateMachine.mSampleState;
+    }
+
+    // The same cycles with ConnXComp raised from the Connecting states and run to completion
+    // within the CONNECT step; counted per transition like connectCycle.
+    @Benchmark
+    @OperationsPerInvocation(CYCLES * 6)
+    public AbstractState connectChain() {
+        mStateMachine.mSelfComplete = true;
+        for (int i = 0; i < CYCLES; i++) {
+            mStateMachine.send(SampleTopologyStateMachine.ACTIVATE);
+            mStateMachine.send(SampleTopologyStateMachine.CONNECT);
+            mStateMachine.send(SampleTopologyStateMachine.DEACTIVATE);
+        }
+        mStateMachine.await();
+        return mStateMachine.mSampleState;
+    }
+}
@@ -0,0 +1,220 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Event;
+import jp.co.ssk.sm.core.StateTopology;
+import jp.co.ssk.sm.core.TransitionTable;
+
+// Same 18-state hierarchy as the Sample module's SampleStateMachine. The ConnXComp events are
+// sent by the benchmark in place of the delayed messages armed by the Connecting states.
+final class SampleTopologyStateMachine extends BenchmarkStateMachine {
+
+    static final int ACTIVATE = 0;
+    static final int DEACTIVATE = 1;
+    static final int CONNECT = 2;
+    static final int DISCONNECT = 3;
+    static final int CONN1_COMP = 4;
+    static final int CONN2_COMP = 5;
+    static final int CONN3_COMP = 6;
+
+    static final int[] CYCLE = {ACTIVATE, CONNECT, CONN1_COMP, CONN2_COMP, CONN3_COMP, DEACTIVATE};
+
+    private static final AbstractState DEFAULT_STATE = new DefaultState();
+    private static final AbstractState INACTIVE_STATE = new InactiveState();
+    private static final AbstractState ACTIVE_STATE = new ActiveState();
+    private static final AbstractState UNCONNECTED_STATE = new UnconnectedState();
+    private static final AbstractState UNCONNECTED1_STATE = new LeafState();
+    private static final AbstractState UNCONNECTED2_STATE = new LeafState();
+    private static final AbstractState UNCONNECTED3_STATE = new LeafState();
+    private static final AbstractState CONNECTING_STATE = new LeafState();
+    private static final AbstractState CONNECTING1_STATE = new ConnectingLeafState(CONN1_COMP);
+    private static final AbstractState CONNECTING2_STATE = new ConnectingLeafState(CONN2_COMP);
+    private static final AbstractState CONNECTING3_STATE = new ConnectingLeafState(CONN3_COMP);
+    private static final AbstractState CONNECTED_STATE = new LeafState();
+    private static final AbstractState CONNECTED1_STATE = new LeafState();
+    private static final AbstractState CONNECTED2_STATE = new LeafState();
+    private static final AbstractState CONNECTED3_STATE = new LeafState();
+    private static final AbstractState DISCONNECTING_STATE = new LeafState();
+    private static final AbstractState DISCONNECTING1_STATE = new LeafState();
+    private static final AbstractState DISCONNECTING2_STATE = new LeafState();
+    private static final AbstractState DISCONNECTING3_STATE = new LeafState();
+
+    static final StateTopology TOPOLOGY = new StateTopology.Builder()
+            .addState(DEFAULT_STATE)
+            .addState(INACTIVE_STATE, DEFAULT_STATE)
+            .addState(ACTIVE_STATE, DEFAULT_STATE)
+            .addState(UNCONNECTED_STATE, ACTIVE_STATE)
+            .addState(UNCONNECTED1_STATE, UNCONNECTED_STATE)
+            .addState(UNCONNECTED2_STATE, UNCONNECTED_STATE)
+            .addState(UNCONNECTED3_STATE, UNCONNECTED_STATE)
+            .addState(CONNECTING_STATE, ACTIVE_STATE)
+            .addState(CONNECTING1_STATE, CONNECTING_STATE)
+            .addState(CONNECTING2_STATE, CONNECTING_STATE)
+            .addState(CONNECTING3_STATE, CONNECTING_STATE)
+            .addState(CONNECTED_STATE, ACTIVE_STATE)
+            .addState(CONNECTED1_STATE, CONNECTED_STATE)
+            .addState(CONNECTED2_STATE, CONNECTED1_STATE)
+            .addState(CONNECTED3_STATE, CONNECTED2_STATE)
+            .addState(DISCONNECTING_STATE, ACTIVE_STATE)
+            .addState(DISCONNECTING1_STATE, DISCONNECTING_STATE)
+            .addState(DISCONNECTING2_STATE, DISCONNECTING_STATE)
+            .addState(DISCONNECTING3_STATE, DISCONNECTING_STATE)
+            .setInitialState(INACTIVE_STATE)
+            .build();
+
+    // The transitions the states' processEvent() switches make, for machines on TOPOLOGY.
+    static final TransitionTable<SampleTopologyStateMachine> TABLE =
+            new TransitionTable.Builder<SampleTopologyStateMachine>(TOPOLOGY)
+                    .add(INACTIVE_STATE, ACTIVATE, UNCONNECTED1_STATE)
+                    .add(ACTIVE_STATE, DEACTIVATE, INACTIVE_STATE)
+                    .add(UNCONNECTED_STATE, CONNECT, CONNECTING1_STATE)
+                    .add(CONNECTING1_STATE, CONN1_COMP, CONNECTING2_STATE)
+                    .add(CONNECTING2_STATE, CONN2_COMP, CONNECTING3_STATE)
+                    .add(CONNECTING3_STATE, CONN3_COMP, CONNECTED3_STATE)
+                    .build();
+
+    @Nullable
+    AbstractState mSampleState;
+    // The Connecting states raise their own completion, so CONNECT runs the chain in one step.
+    boolean mSelfComplete;
+
+    SampleTopologyStateMachine(@Nullable Dispatcher.Factory factory) {
+        this(factory, false, null);
+    }
+
+    // Shares TOPOLOGY instead of adding its own states when shared is set, and restores from
+    // saved state instead of starting when state is given.
+    SampleTopologyStateMachine(@Nullable Dispatcher.Factory factory, boolean shared, @Nullable byte[] state) {
+        super(factory, shared ? TOPOLOGY : null);
+        if (!shared) {
+            _addStates();
+        }
+        if (state == null) {
+            start();
+        } else {
+            restoreState(state);
+        }
+    }
+
+    void useTable() {
+        setTransitionTable(TABLE);
+    }
+
+    void runCycle() {
+        for (int what : CYCLE) {
+            send(what);
+        }
+    }
+
+    private void _addStates() {
+        addState(DEFAULT_STATE);
+        addState(INACTIVE_STATE, DEFAULT_STATE);
+        addState(ACTIVE_STATE, DEFAULT_STATE);
+        addState(UNCONNECTED_STATE, ACTIVE_STATE);
+        addState(UNCONNECTED1_STATE, UNCONNECTED_STATE);
+        addState(UNCONNECTED2_STATE, UNCONNECTED_STATE);
+        addState(UNCONNECTED3_STATE, UNCONNECTED_STATE);
+        addState(CONNECTING_STATE, ACTIVE_STATE);
+        addState(CONNECTING1_STATE, CONNECTING_STATE);
+        addState(CONNECTING2_STATE, CONNECTING_STATE);
+        addState(CONNECTING3_STATE, CONNECTING_STATE);
+        addState(CONNECTED_STATE, ACTIVE_STATE);
+        addState(CONNECTED1_STATE, CONNECTED_STATE);
+        addState(CONNECTED2_STATE, CONNECTED1_STATE);
+        addState(CONNECTED3_STATE, CONNECTED2_STATE);
+        addState(DISCONNECTING_STATE, ACTIVE_STATE);
+        addState(DISCONNECTING1_STATE, DISCONNECTING_STATE);
+        addState(DISCONNECTING2_STATE, DISCONNECTING_STATE);
+        addState(DISCONNECTING3_STATE, DISCONNECTING_STATE);
+        setInitialState(INACTIVE_STATE);
+    }
+
+    private static class DefaultState extends AbstractState<SampleTopologyStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull SampleTopologyStateMachine owner, @NonNull Event event) {
+            return HANDLED;
+        }
+    }
+
+    private static class LeafState extends AbstractState<SampleTopologyStateMachine> {
+        @Override
+        public void enter(@NonNull SampleTopologyStateMachine owner) {
+            owner.mSampleState = this;
+        }
+    }
+
+    private static class InactiveState extends LeafState {
+        @Override
+        public boolean processEvent(@NonNull SampleTopologyStateMachine owner, @NonNull Event event) {
+            boolean ret = NOT_HANDLED;
+            switch (event.what) {
+                case ACTIVATE:
+                    ret = HANDLED;
+                    owner.transitionTo(UNCONNECTED1_STATE);
+                    break;
+            }
+            return ret;
+        }
+    }
+
+    private static class ActiveState extends LeafState {
+        @Override
+        public boolean processEvent(@NonNull SampleTopologyStateMachine owner, @NonNull Event event) {
+            boolean ret = NOT_HANDLED;
+            switch (event.what) {
+                case DEACTIVATE:
+                    ret = HANDLED;
+                    owner.transitionTo(INACTIVE_STATE);
+                    break;
+            }
+            return ret;
+        }
+    }
+
+    private static class UnconnectedState extends LeafState {
+        @Override
+        public boolean processEvent(@NonNull SampleTopologyStateMachine owner, @NonNull Event event) {
+            boolean ret = NOT_HANDLED;
+            switch (event.what) {
+                case CONNECT:
+                    ret = HANDLED;
+                    owner.transitionTo(CONNECTING1_STATE);
+                    break;
+            }
+            return ret;
+        }
+    }
+
+    private static class ConnectingLeafState extends LeafState {
+        private final int mComplete;
+
+        ConnectingLeafState(int complete) {
+            mComplete = complete;
+        }
+        @Override
+        public void enter(@NonNull SampleTopologyStateMachine owner) {
+            super.enter(owner);
+            if (owner.mSelfComplete) {
+                owner.sendMessage(mComplete);
+            }
+        }
+        @Override
+        public boolean processEvent(@NonNull SampleTopologyStateMachine owner, @NonNull Event event) {
+            if (event.what != mComplete) {
+                return NOT_HANDLED;
+            }
+            if (this == CONNECTING1_STATE) {
+                owner.transitionTo(CONNECTING2_STATE);
+            } else if (this == CONNECTING2_STATE) {
+                owner.transitionTo(CONNECTING3_STATE);
+            } else {
+                owner.transitionTo(CONNECTED3_STATE);
+            }
+            return HANDLED;
+        }
+    }
+}
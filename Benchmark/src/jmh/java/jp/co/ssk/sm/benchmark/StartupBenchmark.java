@@ -0,0 +1,63 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Dispatchers;
+
+// Cold start through the initial enter chain versus restore from saveState() output, for a
+// fleet of machines on the shared pool, each adding its own states or sharing one topology.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+
+    @Param({"start", "restore"})
+    public String mode;
+
+    @Param({"false", "true"})
+    public boolean sharedTopology;
+
+    @Param({"1000"})
+    public int machineCount;
+
+    private Dispatcher.Factory mFactory;
+    private byte[] mState;
+
+    @Setup
+    public void setup() {
+        mFactory = Dispatchers.pooled();
+        SampleTopologyStateMachine source = new SampleTopologyStateMachine(mFactory);
+        for (int what : SampleTopologyStateMachine.CYCLE) {
+            if (what == SampleTopologyStateMachine.DEACTIVATE) {
+                break;
+            }
+            source.send(what);
+        }
+        source.await();
+        mState = source.save();
+        source.shutdown();
+    }
+
+    @Benchmark
+    public void startFleet() {
+        final byte[] state = "restore".equals(mode) ? mState : null;
+        final SampleTopologyStateMachine[] machines = new SampleTopologyStateMachine[machineCount];
+        for (int i = 0; i < machineCount; i++) {
+            machines[i] = new SampleTopologyStateMachine(mFactory, sharedTopology, state);
+        }
+        for (SampleTopologyStateMachine machine : machines) {
+            machine.await();
+            machine.shutdown();
+        }
+    }
+}
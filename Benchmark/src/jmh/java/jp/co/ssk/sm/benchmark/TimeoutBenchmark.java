@@ -0,0 +1,48 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TimeoutBenchmark {
+
+    private static final int BATCH = 1000;
+
+    // Whether timeouts go through the shared timer wheel or the dispatcher's delayed queue.
+    @Param({"false", "true"})
+    public boolean wheel;
+
+    private TimeoutStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new TimeoutStateMachine(wheel);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void armAndCancel() {
+        for (int i = 0; i < BATCH; i++) {
+            mStateMachine.send(TimeoutStateMachine.TOGGLE);
+        }
+        mStateMachine.await();
+    }
+}
@@ -0,0 +1,57 @@
+package jp.co.ssk.sm.benchmark;
+
+import android.support.annotation.NonNull;
+
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Event;
+
+// Two states toggled by TOGGLE, each arming a timeout on enter that its exit cancels.
+final class TimeoutStateMachine extends BenchmarkStateMachine {
+
+    static final int TOGGLE = 0;
+    static final int TIMEOUT = 1;
+
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    private final boolean mWheel;
+    private final AbstractState mRootState = new RootState();
+    private final AbstractState mAState = new LeafState();
+    private final AbstractState mBState = new LeafState();
+
+    TimeoutStateMachine(boolean wheel) {
+        super(null);
+        mWheel = wheel;
+        addState(mRootState);
+        addState(mAState, mRootState);
+        addState(mBState, mRootState);
+        setInitialState(mAState);
+        start();
+    }
+
+    private static class RootState extends AbstractState<TimeoutStateMachine> {
+        @Override
+        public boolean processEvent(@NonNull TimeoutStateMachine owner, @NonNull Event event) {
+            if (event.what == TOGGLE) {
+                owner.transitionTo(owner.getCurrentState() == owner.mAState ? owner.mBState : owner.mAState);
+            }
+            return HANDLED;
+        }
+    }
+
+    private static class LeafState extends AbstractState<TimeoutStateMachine> {
+        @Override
+        public void enter(@NonNull TimeoutStateMachine owner) {
+            if (owner.mWheel) {
+                owner.startTimeout(TIMEOUT, TIMEOUT_MILLIS);
+            } else {
+                owner.sendMessageDelayed(TIMEOUT, TIMEOUT_MILLIS);
+            }
+        }
+        @Override
+        public void exit(@NonNull TimeoutStateMachine owner) {
+            if (!owner.mWheel) {
+                owner.removeMessages(TIMEOUT);
+            }
+        }
+    }
+}
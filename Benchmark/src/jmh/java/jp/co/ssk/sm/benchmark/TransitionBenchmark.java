@@ -0,0 +1,48 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransitionBenchmark {
+
+    private static final int BATCH = 1000;
+
+    // Number of states exited and entered on each side of the common ancestor.
+    @Param({"1", "2", "4", "8"})
+    public int lcaDepth;
+
+    private ForkStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new ForkStateMachine(lcaDepth);
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void transition() {
+        for (int i = 0; i < BATCH; i++) {
+            mStateMachine.send(ForkStateMachine.TOGGLE);
+        }
+        mStateMachine.await();
+    }
+}
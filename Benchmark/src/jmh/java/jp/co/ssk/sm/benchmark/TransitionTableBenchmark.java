@@ -0,0 +1,55 @@
+package jp.co.ssk.sm.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.ssk.sm.core.AbstractState;
+
+// The Sample connect cycle on the shared topology, dispatched by the states' processEvent()
+// switches or by the equivalent TransitionTable.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransitionTableBenchmark {
+
+    private static final int CYCLES = 100;
+
+    @Param({"false", "true"})
+    public boolean table;
+
+    private SampleTopologyStateMachine mStateMachine;
+
+    @Setup
+    public void setup() {
+        mStateMachine = new SampleTopologyStateMachine(null, true, null);
+        if (table) {
+            mStateMachine.useTable();
+        }
+        mStateMachine.await();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStateMachine.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES * 6)
+    public AbstractState connectCycle() {
+        for (int i = 0; i < CYCLES; i++) {
+            mStateMachine.runCycle();
+        }
+        mStateMachine.await();
+        return mStateMachine.mSampleState;
+    }
+}
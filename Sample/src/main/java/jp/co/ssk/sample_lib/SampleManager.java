@@ -6,10 +6,9 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.CompletableFuture;
 
 import jp.co.ssk.utility.Handler;
-import jp.co.ssk.utility.SynchronousCallback;
-import jp.co.ssk.utility.Cast;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 public final class SampleManager {
@@ -71,15 +70,7 @@ public final class SampleManager {
 
     @NonNull
     public SampleState getSampleState() {
-        final SampleState ret;
-        SynchronousCallback callback = new SynchronousCallback();
-        mHandler.post(() -> {
-            callback.setResult(mSampleStateMachine.getSampleState());
-            callback.unlock();
-        });
-        callback.lock();
-        ret = Cast.auto(callback.getResult());
-        return ret;
+        return mSampleStateMachine.getSampleState();
     }
 
     public void activate() {
@@ -97,4 +88,24 @@ public final class SampleManager {
     public void disconnect() {
         mHandler.post(mSampleStateMachine::disconnect);
     }
+
+    @NonNull
+    public CompletableFuture<SampleState> activateAsync() {
+        return mSampleStateMachine.activateAsync();
+    }
+
+    @NonNull
+    public CompletableFuture<SampleState> deactivateAsync() {
+        return mSampleStateMachine.deactivateAsync();
+    }
+
+    @NonNull
+    public CompletableFuture<SampleState> connectAsync() {
+        return mSampleStateMachine.connectAsync();
+    }
+
+    @NonNull
+    public CompletableFuture<SampleState> disconnectAsync() {
+        return mSampleStateMachine.disconnectAsync();
+    }
 }
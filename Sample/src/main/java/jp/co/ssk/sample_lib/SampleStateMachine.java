@@ -7,10 +7,11 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import jp.co.ssk.utility.SynchronousCallback;
-import jp.co.ssk.utility.Cast;
+import java.util.concurrent.CompletableFuture;
+
 import jp.co.ssk.sm.State;
 import jp.co.ssk.sm.StateMachine;
+import jp.co.ssk.sm.core.StateTopology;
 
 @SuppressWarnings({"unused", "WeakerAccess"})
 final class SampleStateMachine extends StateMachine {
@@ -24,61 +25,68 @@ final class SampleStateMachine extends StateMachine {
         Conn1Comp, Conn2Comp, Conn3Comp,
     }
 
-    private final State mInactiveState = new InactiveState();
-    private final State mActiveState = new ActiveState();
-    private final State mUnconnectedState = new UnconnectedState();
-    private final State mUnconnected1State = new Unconnected1State();
-    private final State mUnconnected2State = new Unconnected2State();
-    private final State mUnconnected3State = new Unconnected3State();
-    private final State mConnectingState = new ConnectingState();
-    private final State mConnecting1State = new Connecting1State();
-    private final State mConnecting2State = new Connecting2State();
-    private final State mConnecting3State = new Connecting3State();
-    private final State mConnectedState = new ConnectedState();
-    private final State mConnected1State = new Connected1State();
-    private final State mConnected2State = new Connected2State();
-    private final State mConnected3State = new Connected3State();
-    private final State mDisconnectingState = new DisconnectingState();
-    private final State mDisconnecting1State = new Disconnecting1State();
-    private final State mDisconnecting2State = new Disconnecting2State();
-    private final State mDisconnecting3State = new Disconnecting3State();
+    private static final Event[] EVENTS = Event.values();
+
+    private static final State DEFAULT_STATE = new DefaultState();
+    private static final State INACTIVE_STATE = new InactiveState();
+    private static final State ACTIVE_STATE = new ActiveState();
+    private static final State UNCONNECTED_STATE = new UnconnectedState();
+    private static final State UNCONNECTED1_STATE = new Unconnected1State();
+    private static final State UNCONNECTED2_STATE = new Unconnected2State();
+    private static final State UNCONNECTED3_STATE = new Unconnected3State();
+    private static final State CONNECTING_STATE = new ConnectingState();
+    private static final State CONNECTING1_STATE = new Connecting1State();
+    private static final State CONNECTING2_STATE = new Connecting2State();
+    private static final State CONNECTING3_STATE = new Connecting3State();
+    private static final State CONNECTED_STATE = new ConnectedState();
+    private static final State CONNECTED1_STATE = new Connected1State();
+    private static final State CONNECTED2_STATE = new Connected2State();
+    private static final State CONNECTED3_STATE = new Connected3State();
+    private static final State DISCONNECTING_STATE = new DisconnectingState();
+    private static final State DISCONNECTING1_STATE = new Disconnecting1State();
+    private static final State DISCONNECTING2_STATE = new Disconnecting2State();
+    private static final State DISCONNECTING3_STATE = new Disconnecting3State();
+
+    // Built once and shared by every instance.
+    private static final StateTopology TOPOLOGY = new StateTopology.Builder()
+            .addState(DEFAULT_STATE)
+            .addState(INACTIVE_STATE, DEFAULT_STATE)
+            .addState(ACTIVE_STATE, DEFAULT_STATE)
+            .addState(UNCONNECTED_STATE, ACTIVE_STATE)
+            .addState(UNCONNECTED1_STATE, UNCONNECTED_STATE)
+            .addState(UNCONNECTED2_STATE, UNCONNECTED_STATE)
+            .addState(UNCONNECTED3_STATE, UNCONNECTED_STATE)
+            .addState(CONNECTING_STATE, ACTIVE_STATE)
+            .addState(CONNECTING1_STATE, CONNECTING_STATE)
+            .addState(CONNECTING2_STATE, CONNECTING_STATE)
+            .addState(CONNECTING3_STATE, CONNECTING_STATE)
+            .addState(CONNECTED_STATE, ACTIVE_STATE)
+            .addState(CONNECTED1_STATE, CONNECTED_STATE)
+            .addState(CONNECTED2_STATE, CONNECTED1_STATE)
+            .addState(CONNECTED3_STATE, CONNECTED2_STATE)
+            .addState(DISCONNECTING_STATE, ACTIVE_STATE)
+            .addState(DISCONNECTING1_STATE, DISCONNECTING_STATE)
+            .addState(DISCONNECTING2_STATE, DISCONNECTING_STATE)
+            .addState(DISCONNECTING3_STATE, DISCONNECTING_STATE)
+            .setInitialState(INACTIVE_STATE)
+            .build();
 
     @NonNull
     private final Context mContext;
     @NonNull
     private final Listener mListener;
     @NonNull
-    private SampleState mSampleState;
+    private volatile SampleState mSampleState;
 
     public SampleStateMachine(@NonNull Context context, @Nullable Looper looper, @NonNull Listener listener) {
-        super(looper);
+        super(looper, TOPOLOGY);
         mContext = context;
         mListener = listener;
 
-        State defaultState = new DefaultState();
-        addState(defaultState);
-        addState(mInactiveState, defaultState);
-        addState(mActiveState, defaultState);
-        addState(mUnconnectedState, mActiveState);
-        addState(mUnconnected1State, mUnconnectedState);
-        addState(mUnconnected2State, mUnconnectedState);
-        addState(mUnconnected3State, mUnconnectedState);
-        addState(mConnectingState, mActiveState);
-        addState(mConnecting1State, mConnectingState);
-        addState(mConnecting2State, mConnectingState);
-        addState(mConnecting3State, mConnectingState);
-        addState(mConnectedState, mActiveState);
-        addState(mConnected1State, mConnectedState);
-        addState(mConnected2State, mConnected1State);
-        addState(mConnected3State, mConnected2State);
-        addState(mDisconnectingState, mActiveState);
-        addState(mDisconnecting1State, mDisconnectingState);
-        addState(mDisconnecting2State, mDisconnectingState);
-        addState(mDisconnecting3State, mDisconnectingState);
-
         mSampleState = SampleState.UnknownState;
         setDbg(true);
-        setInitialState(mInactiveState);
+        setUrgent(Event.Deactivate.ordinal(), true);
+        setUrgent(Event.Disconnect.ordinal(), true);
         start();
     }
 
@@ -106,26 +114,43 @@ final class SampleStateMachine extends StateMachine {
         Log.i(getName(), "[Out] disconnect");
     }
 
+    // Non-blocking variants: each completes with the state reached once the event is processed.
+    @NonNull
+    public CompletableFuture<SampleState> activateAsync() {
+        return _sendAsync(Event.Activate);
+    }
+
+    @NonNull
+    public CompletableFuture<SampleState> deactivateAsync() {
+        return _sendAsync(Event.Deactivate);
+    }
+
+    @NonNull
+    public CompletableFuture<SampleState> connectAsync() {
+        return _sendAsync(Event.Connect);
+    }
+
+    @NonNull
+    public CompletableFuture<SampleState> disconnectAsync() {
+        return _sendAsync(Event.Disconnect);
+    }
+
     @NonNull
     public SampleState getSampleState() {
-        final SampleState ret;
-        if (getHandler().isCurrentThread()) {
-            ret = mSampleState;
-        } else {
-            final SynchronousCallback callback = new SynchronousCallback();
-            getHandler().post(() -> {
-                callback.setResult(mSampleState);
-                callback.unlock();
-            });
-            callback.lock();
-            ret = Cast.auto(callback.getResult());
+        if (null == getStateSnapshot() && !getDispatcher().isCurrentThread()) {
+            getCurrentState();
         }
-        return ret;
+        return mSampleState;
     }
 
     @Override
     protected void outputMessageLog(@NonNull String currentStateName, @NonNull Message msg) {
-        Log.i(getName(), "processMessage: " + currentStateName + " " + Event.values()[msg.what]);
+        Log.i(getName(), "processMessage: " + currentStateName + " " + EVENTS[msg.what]);
+    }
+
+    @NonNull
+    private CompletableFuture<SampleState> _sendAsync(@NonNull Event event) {
+        return sendMessageAsync(event.ordinal()).thenApply(result -> mSampleState);
     }
 
     private void _setSampleState(@NonNull SampleState sampleState) {
@@ -133,6 +158,27 @@ final class SampleStateMachine extends StateMachine {
         mListener.onStateChanged(sampleState);
     }
 
+    @NonNull
+    private static int[] _codes(@NonNull Event... events) {
+        final int[] ret = new int[events.length];
+        for (int i = 0; i < events.length; i++) {
+            ret[i] = events[i].ordinal();
+        }
+        return ret;
+    }
+
+    // States that only report themselves on enter; declaring no codes keeps the dispatch table
+    // from offering them any event.
+    private abstract static class PassiveState extends State<SampleStateMachine> {
+        private static final int[] NO_EVENTS = {};
+
+        @Nullable
+        @Override
+        public final int[] handledEvents() {
+            return NO_EVENTS;
+        }
+    }
+
     private static class DefaultState extends State<SampleStateMachine> {
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
@@ -141,6 +187,11 @@ final class SampleStateMachine extends StateMachine {
     }
 
     private static class InactiveState extends State<SampleStateMachine> {
+        @Nullable
+        @Override
+        public int[] handledEvents() {
+            return _codes(Event.Activate);
+        }
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.InactiveState);
@@ -148,10 +199,10 @@ final class SampleStateMachine extends StateMachine {
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
             boolean ret = StateMachine.NOT_HANDLED;
-            switch (Event.values()[msg.what]) {
+            switch (EVENTS[msg.what]) {
                 case Activate:
                     ret = StateMachine.HANDLED;
-                    owner.transitionTo(owner.mUnconnected1State);
+                    owner.transitionTo(UNCONNECTED1_STATE);
                     break;
             }
             return ret;
@@ -159,6 +210,11 @@ final class SampleStateMachine extends StateMachine {
     }
 
     private static class ActiveState extends State<SampleStateMachine> {
+        @Nullable
+        @Override
+        public int[] handledEvents() {
+            return _codes(Event.Deactivate);
+        }
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.ActiveState);
@@ -166,10 +222,10 @@ final class SampleStateMachine extends StateMachine {
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
             boolean ret = StateMachine.NOT_HANDLED;
-            switch (Event.values()[msg.what]) {
+            switch (EVENTS[msg.what]) {
                 case Deactivate:
                     ret = StateMachine.HANDLED;
-                    owner.transitionTo(owner.mInactiveState);
+                    owner.transitionTo(INACTIVE_STATE);
                     break;
             }
             return ret;
@@ -177,6 +233,11 @@ final class SampleStateMachine extends StateMachine {
     }
 
     private static class UnconnectedState extends State<SampleStateMachine> {
+        @Nullable
+        @Override
+        public int[] handledEvents() {
+            return _codes(Event.Connect);
+        }
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.UnconnectedState);
@@ -184,38 +245,38 @@ final class SampleStateMachine extends StateMachine {
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
             boolean ret = StateMachine.NOT_HANDLED;
-            switch (Event.values()[msg.what]) {
+            switch (EVENTS[msg.what]) {
                 case Connect:
                     ret = StateMachine.HANDLED;
-                    owner.transitionTo(owner.mConnecting1State);
+                    owner.transitionTo(CONNECTING1_STATE);
                     break;
             }
             return ret;
         }
     }
 
-    private static class Unconnected1State extends State<SampleStateMachine> {
+    private static class Unconnected1State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Unconnected1State);
         }
     }
 
-    private static class Unconnected2State extends State<SampleStateMachine> {
+    private static class Unconnected2State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Unconnected2State);
         }
     }
 
-    private static class Unconnected3State extends State<SampleStateMachine> {
+    private static class Unconnected3State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Unconnected3State);
         }
     }
 
-    private static class ConnectingState extends State<SampleStateMachine> {
+    private static class ConnectingState extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.ConnectingState);
@@ -223,22 +284,23 @@ final class SampleStateMachine extends StateMachine {
     }
 
     private static class Connecting1State extends State<SampleStateMachine> {
+        @Nullable
         @Override
-        public void enter(@NonNull SampleStateMachine owner) {
-            owner._setSampleState(SampleState.Connecting1State);
-            owner.sendMessageDelayed(Event.Conn1Comp.ordinal(), 1000);
+        public int[] handledEvents() {
+            return _codes(Event.Conn1Comp);
         }
         @Override
-        public void exit(@NonNull SampleStateMachine owner) {
-            owner.removeMessages(Event.Conn1Comp.ordinal());
+        public void enter(@NonNull SampleStateMachine owner) {
+            owner._setSampleState(SampleState.Connecting1State);
+            owner.startTimeout(Event.Conn1Comp.ordinal(), 1000);
         }
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
             boolean ret = StateMachine.NOT_HANDLED;
-            switch (Event.values()[msg.what]) {
+            switch (EVENTS[msg.what]) {
                 case Conn1Comp:
                     ret = StateMachine.HANDLED;
-                    owner.transitionTo(owner.mConnecting2State);
+                    owner.transitionTo(CONNECTING2_STATE);
                     break;
             }
             return ret;
@@ -246,22 +308,23 @@ final class SampleStateMachine extends StateMachine {
     }
 
     private static class Connecting2State extends State<SampleStateMachine> {
+        @Nullable
         @Override
-        public void enter(@NonNull SampleStateMachine owner) {
-            owner._setSampleState(SampleState.Connecting2State);
-            owner.sendMessageDelayed(Event.Conn2Comp.ordinal(), 1000);
+        public int[] handledEvents() {
+            return _codes(Event.Conn2Comp);
         }
         @Override
-        public void exit(@NonNull SampleStateMachine owner) {
-            owner.removeMessages(Event.Conn2Comp.ordinal());
+        public void enter(@NonNull SampleStateMachine owner) {
+            owner._setSampleState(SampleState.Connecting2State);
+            owner.startTimeout(Event.Conn2Comp.ordinal(), 1000);
         }
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
             boolean ret = StateMachine.NOT_HANDLED;
-            switch (Event.values()[msg.what]) {
+            switch (EVENTS[msg.what]) {
                 case Conn2Comp:
                     ret = StateMachine.HANDLED;
-                    owner.transitionTo(owner.mConnecting3State);
+                    owner.transitionTo(CONNECTING3_STATE);
                     break;
             }
             return ret;
@@ -269,78 +332,79 @@ final class SampleStateMachine extends StateMachine {
     }
 
     private static class Connecting3State extends State<SampleStateMachine> {
+        @Nullable
         @Override
-        public void enter(@NonNull SampleStateMachine owner) {
-            owner._setSampleState(SampleState.Connecting3State);
-            owner.sendMessageDelayed(Event.Conn3Comp.ordinal(), 1000);
+        public int[] handledEvents() {
+            return _codes(Event.Conn3Comp);
         }
         @Override
-        public void exit(@NonNull SampleStateMachine owner) {
-            owner.removeMessages(Event.Conn3Comp.ordinal());
+        public void enter(@NonNull SampleStateMachine owner) {
+            owner._setSampleState(SampleState.Connecting3State);
+            owner.startTimeout(Event.Conn3Comp.ordinal(), 1000);
         }
         @Override
         public boolean processMessage(@NonNull SampleStateMachine owner, @NonNull Message msg) {
             boolean ret = StateMachine.NOT_HANDLED;
-            switch (Event.values()[msg.what]) {
+            switch (EVENTS[msg.what]) {
                 case Conn3Comp:
                     ret = StateMachine.HANDLED;
-                    owner.transitionTo(owner.mConnected3State);
+                    owner.transitionTo(CONNECTED3_STATE);
                     break;
             }
             return ret;
         }
     }
 
-    private static class ConnectedState extends State<SampleStateMachine> {
+    private static class ConnectedState extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.ConnectedState);
         }
     }
 
-    private static class Connected1State extends State<SampleStateMachine> {
+    private static class Connected1State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Connected1State);
         }
     }
 
-    private static class Connected2State extends State<SampleStateMachine> {
+    private static class Connected2State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Connected2State);
         }
     }
 
-    private static class Connected3State extends State<SampleStateMachine> {
+    private static class Connected3State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Connected3State);
         }
     }
 
-    private static class DisconnectingState extends State<SampleStateMachine> {
+    private static class DisconnectingState extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.DisconnectingState);
         }
     }
 
-    private static class Disconnecting1State extends State<SampleStateMachine> {
+    private static class Disconnecting1State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Disconnecting1State);
         }
     }
 
-    private static class Disconnecting2State extends State<SampleStateMachine> {
+    private static class Disconnecting2State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Disconnecting2State);
         }
     }
 
-    private static class Disconnecting3State extends State<SampleStateMachine> {
+    private static class Disconnecting3State extends PassiveState {
         @Override
         public void enter(@NonNull SampleStateMachine owner) {
             owner._setSampleState(SampleState.Disconnecting3State);
@@ -0,0 +1,111 @@
+package jp.co.ssk.sm;
+
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Event;
+import jp.co.ssk.utility.Handler;
+
+final class HandlerDispatcher implements Dispatcher {
+
+    @NonNull
+    private final Handler mHandler;
+    private final boolean mOwnLooper;
+
+    HandlerDispatcher(@NonNull Looper looper, boolean ownLooper, @NonNull final Callback callback) {
+        mOwnLooper = ownLooper;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(@NonNull Message msg) {
+                final Event event = _toEvent(msg);
+                try {
+                    callback.dispatchEvent(event);
+                } finally {
+                    event.recycle();
+                }
+            }
+        };
+    }
+
+    @NonNull
+    static Factory factory(@Nullable final Looper looper) {
+        return (name, callback) -> {
+            if (null != looper) {
+                return new HandlerDispatcher(looper, false, callback);
+            }
+            HandlerThread thread = new HandlerThread(name);
+            thread.start();
+            return new HandlerDispatcher(thread.getLooper(), true, callback);
+        };
+    }
+
+    @NonNull
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return mHandler.isCurrentThread();
+    }
+
+    @Override
+    public void post(@NonNull Runnable r) {
+        mHandler.post(r);
+    }
+
+    @Override
+    public void postAtFrontOfQueue(@NonNull Runnable r) {
+        mHandler.postAtFrontOfQueue(r);
+    }
+
+    @Override
+    public void sendEvent(@NonNull Event event) {
+        mHandler.sendMessage(_toMessage(event));
+    }
+
+    @Override
+    public void sendEventAtFrontOfQueue(@NonNull Event event) {
+        mHandler.sendMessageAtFrontOfQueue(_toMessage(event));
+    }
+
+    @Override
+    public void sendEventDelayed(@NonNull Event event, long delayMillis) {
+        mHandler.sendMessageDelayed(_toMessage(event), delayMillis);
+    }
+
+    @Override
+    public boolean hasEvents(int what) {
+        return mHandler.hasMessages(what);
+    }
+
+    @Override
+    public void removeEvents(int what) {
+        mHandler.removeMessages(what);
+    }
+
+    @Override
+    public void quit() {
+        mHandler.removeCallbacksAndMessages(null);
+        if (mOwnLooper) {
+            mHandler.getLooper().quitSafely();
+        }
+    }
+
+    @NonNull
+    private Message _toMessage(@NonNull Event event) {
+        return Message.obtain(mHandler, event.what, event);
+    }
+
+    @NonNull
+    private static Event _toEvent(@NonNull Message msg) {
+        if (msg.obj instanceof Event && ((Event) msg.obj).what == msg.what) {
+            return (Event) msg.obj;
+        }
+        return Event.obtain(msg.what, msg.arg1, msg.arg2, msg.obj);
+    }
+}
@@ -3,28 +3,18 @@ package jp.co.ssk.sm;
 import android.os.Message;
 import android.support.annotation.NonNull;
 
+import jp.co.ssk.sm.core.AbstractState;
+import jp.co.ssk.sm.core.Event;
+
 @SuppressWarnings("unused")
-public abstract class State<T extends StateMachine> {
+public abstract class State<T extends StateMachine> extends AbstractState<T> {
 
-    public void enter(@NonNull T owner) {
+    @Override
+    public boolean processEvent(@NonNull T owner, @NonNull Event event) {
+        return processMessage(owner, owner.asMessage(event));
     }
 
     public boolean processMessage(@NonNull T owner, @NonNull Message msg) {
         return StateMachine.NOT_HANDLED;
     }
-
-    public void exit(@NonNull T owner) {
-    }
-
-    @NonNull
-    public String name() {
-        String name = getClass().getName();
-        int lastDollar = name.lastIndexOf('$');
-        return name.substring(lastDollar + 1);
-    }
-
-    @Override
-    public String toString() {
-        return name();
-    }
 }
@@ -1,401 +1,120 @@
 package jp.co.ssk.sm;
 
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+import jp.co.ssk.sm.core.AbstractStateMachine;
+import jp.co.ssk.sm.core.Dispatcher;
+import jp.co.ssk.sm.core.Event;
+import jp.co.ssk.sm.core.StateTopology;
 import jp.co.ssk.utility.Handler;
-import jp.co.ssk.utility.SynchronousCallback;
 
 @SuppressWarnings({"unused", "WeakerAccess", "SameParameterValue"})
-public abstract class StateMachine {
+public abstract class StateMachine extends AbstractStateMachine {
 
-    protected static final boolean HANDLED = true;
-    protected static final boolean NOT_HANDLED = false;
+    protected static final boolean HANDLED = AbstractStateMachine.HANDLED;
+    protected static final boolean NOT_HANDLED = AbstractStateMachine.NOT_HANDLED;
 
-    @NonNull
-    private final Handler mHandler;
-    @NonNull
-    private final HashMap<State, StateInfo> mStateInfoMap = new HashMap<>();
-    @NonNull
-    private final Deque<StateInfo> mStateStack = new ArrayDeque<>();
-    @NonNull
-    private final LinkedList<Message> mDeferredMessages = new LinkedList<>();
-    @Nullable
-    private State mInitialState;
-    @Nullable
-    private State mDestState;
     @Nullable
-    private Message mCurrentMessage;
+    private final Handler mHandler;
     @NonNull
-    private AtomicBoolean mDbg = new AtomicBoolean(false);
+    private final Message mMessage = Message.obtain();
 
     protected StateMachine() {
-        this(null);
+        this((Looper) null);
     }
 
     protected StateMachine(@Nullable Looper looper) {
-        if (null == looper) {
-            HandlerThread thread = new HandlerThread(getName());
-            thread.start();
-            looper = thread.getLooper();
-        }
-        mHandler = new Handler(looper) {
-            @Override
-            public void handleMessage(@NonNull Message msg) {
-                _handleMessage(msg);
-            }
-        };
-    }
-
-    @NonNull
-    protected Handler getHandler() {
-        return mHandler;
+        super(HandlerDispatcher.factory(looper));
+        mHandler = ((HandlerDispatcher) getDispatcher()).getHandler();
     }
 
-    protected void addState(@NonNull State state) {
-        addState(state, null);
+    protected StateMachine(@NonNull Dispatcher.Factory factory) {
+        super(factory);
+        mHandler = getDispatcher() instanceof HandlerDispatcher
+                ? ((HandlerDispatcher) getDispatcher()).getHandler() : null;
     }
 
-    protected void addState(@NonNull final State state, @Nullable final State parent) {
-        if (mHandler.isCurrentThread()) {
-            _addState(state, parent);
-        } else {
-            mHandler.post(() -> _addState(state, parent));
-        }
+    protected StateMachine(@Nullable Looper looper, @NonNull StateTopology topology) {
+        super(HandlerDispatcher.factory(looper), topology);
+        mHandler = ((HandlerDispatcher) getDispatcher()).getHandler();
     }
 
-    protected void setInitialState(@NonNull final State state) {
-        if (mHandler.isCurrentThread()) {
-            mInitialState = state;
-        } else {
-            mHandler.post(() -> mInitialState = state);
-        }
+    protected StateMachine(@NonNull Dispatcher.Factory factory, @NonNull StateTopology topology) {
+        super(factory, topology);
+        mHandler = getDispatcher() instanceof HandlerDispatcher
+                ? ((HandlerDispatcher) getDispatcher()).getHandler() : null;
     }
 
-    protected void start() {
-        if (mHandler.isCurrentThread()) {
-            _start();
-        } else {
-            mHandler.post(this::_start);
-        }
-    }
-
-    protected void transitionTo(@NonNull final State state) {
-        if (mHandler.isCurrentThread()) {
-            mDestState = state;
-        } else {
-            mHandler.post(() -> mDestState = state);
+    @NonNull
+    protected Handler getHandler() {
+        if (null == mHandler) {
+            throw new IllegalStateException("Not dispatched by a Handler.");
         }
+        return mHandler;
     }
 
     @Nullable
     protected final Message getCurrentMessage() {
-        final Message ret;
-        if (mHandler.isCurrentThread()) {
-            ret = mCurrentMessage;
-        } else {
-            final SynchronousCallback<Message> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
-                callback.setResult(mCurrentMessage);
-                callback.unlock();
-            });
-            callback.lock();
-            ret = callback.getResult();
-        }
+        final Event event = getCurrentEvent();
+        if (null == event) {
+            return null;
+        }
+        if (getDispatcher().isCurrentThread()) {
+            return asMessage(event);
+        }
+        final Message ret = Message.obtain();
+        ret.what = event.what;
+        ret.arg1 = event.arg1;
+        ret.arg2 = event.arg2;
+        ret.obj = event.obj;
         return ret;
     }
 
     @NonNull
+    @Override
     protected State getCurrentState() {
-        final State ret;
-        if (mHandler.isCurrentThread()) {
-            ret = mStateStack.peekFirst().state;
-        } else {
-            final SynchronousCallback<State> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
-                callback.setResult(mStateStack.peekFirst().state);
-                callback.unlock();
-            });
-            callback.lock();
-            if (null == callback.getResult()) {
-                throw new UnknownError("An unlikely error.");
-            }
-            ret = callback.getResult();
-        }
-        return ret;
-    }
-
-    protected boolean contains(@NonNull State state) {
-        final boolean ret;
-        if (mHandler.isCurrentThread()) {
-            ret = _contains(state);
-        } else {
-            final SynchronousCallback<Boolean> callback = new SynchronousCallback<>();
-            mHandler.post(() -> {
-                callback.setResult(_contains(state));
-                callback.unlock();
-            });
-            callback.lock();
-            if (null == callback.getResult()) {
-                throw new UnknownError("An unlikely error.");
-            }
-            ret = callback.getResult();
-        }
-        return ret;
-    }
-
-    protected void sendMessage(int what) {
-        mHandler.sendMessage(what);
-    }
-
-    protected void sendMessage(int what, int arg1) {
-        mHandler.sendMessage(what, arg1);
-    }
-
-    protected void sendMessage(int what, int arg1, int arg2) {
-        mHandler.sendMessage(what, arg1, arg2);
-    }
-
-    protected void sendMessage(int what, int arg1, int arg2, @Nullable Object obj) {
-        mHandler.sendMessage(what, arg1, arg2, obj);
-    }
-
-    protected void sendMessage(int what, @Nullable Object obj) {
-        mHandler.sendMessage(what, obj);
-    }
-
-    protected void sendMessageSyncIf(int what) {
-        mHandler.sendMessageSyncIf(what);
-    }
-
-    protected void sendMessageSyncIf(int what, int arg1) {
-        mHandler.sendMessageSyncIf(what, arg1);
-    }
-
-    protected void sendMessageSyncIf(int what, int arg1, int arg2) {
-        mHandler.sendMessageSyncIf(what, arg1, arg2);
-    }
-
-    protected void sendMessageSyncIf(int what, int arg1, int arg2, @Nullable Object obj) {
-        mHandler.sendMessageSyncIf(what, arg1, arg2, obj);
-    }
-
-    protected void sendMessageSyncIf(int what, @Nullable Object obj) {
-        mHandler.sendMessageSyncIf(what, obj);
-    }
-
-    protected void sendMessageDelayed(int what, long delayMillis) {
-        mHandler.sendMessageDelayed(what, delayMillis);
-    }
-
-    protected void sendMessageDelayed(int what, int arg1, long delayMillis) {
-        mHandler.sendMessageDelayed(what, arg1, delayMillis);
-    }
-
-    protected void sendMessageDelayed(int what, int arg1, int arg2, long delayMillis) {
-        mHandler.sendMessageDelayed(what, arg1, arg2, delayMillis);
-    }
-
-    protected void sendMessageDelayed(int what, int arg1, int arg2, @Nullable Object obj, long delayMillis) {
-        mHandler.sendMessageDelayed(what, arg1, arg2, obj, delayMillis);
-    }
-
-    protected void sendMessageDelayed(int what, @Nullable Object obj, long delayMillis) {
-        mHandler.sendMessageDelayed(what, obj, delayMillis);
-    }
-
-    protected boolean hasMessages(int what) {
-        return mHandler.hasMessages(what);
-    }
-
-    protected void removeMessages(int what) {
-        mHandler.removeMessages(what);
+        return (State) super.getCurrentState();
     }
 
     protected final void deferMessage(@NonNull final Message msg) {
-        if (mHandler.isCurrentThread()) {
-            _deferMessage(msg);
-        } else {
-            mHandler.post(() -> _deferMessage(msg));
-        }
-    }
-
-    protected final void removeDeferredMessages(final int what) {
-        if (mHandler.isCurrentThread()) {
-            _removeDeferredMessages(what);
-        } else {
-            mHandler.post(() -> _removeDeferredMessages(what));
-        }
-    }
-
-    protected void outputEnterLog(@NonNull String currentStateName) {
-        log("invokeEnterMethods: " + currentStateName);
+        deferEvent(msg.what, msg.arg1, msg.arg2, msg.obj);
     }
 
-    protected void outputExitLog(@NonNull String currentStateName) {
-        log("invokeExitMethods: " + currentStateName);
+    @Override
+    protected void outputMessageLog(@NonNull String currentStateName, @NonNull Event event) {
+        outputMessageLog(currentStateName, asMessage(event));
     }
 
     protected void outputMessageLog(@NonNull String currentStateName, @NonNull Message msg) {
         log("processMessage: " + currentStateName + String.format(Locale.US, " what=0x%08x", msg.what));
     }
 
-    protected void setDbg(boolean dbg) {
-        mDbg.set(dbg);
-    }
-
-    @NonNull
-    private StateInfo _addState(@NonNull State state, @Nullable State parent) {
-        if (mStateInfoMap.containsKey(state)) {
-            throw new RuntimeException("State already added.");
-        }
-        StateInfo parentStateInfo = null;
-        if (parent != null) {
-            parentStateInfo = mStateInfoMap.get(parent);
-            if (parentStateInfo == null) {
-                parentStateInfo = _addState(parent, null);
-            }
-        }
-        return mStateInfoMap.put(state, new StateInfo(state, parentStateInfo));
-    }
-
-    private void _start() {
-        if (mInitialState == null) {
-            throw new RuntimeException("Unset initial state.");
-        }
-        _performTransitions(mInitialState);
-    }
-
-    @SuppressWarnings("unchecked")
-    private void _performTransitions(@NonNull State destState) {
-        StateInfo tempStateInfo = mStateInfoMap.get(destState);
-        State foundRootState = null;
-        Deque<StateInfo> destStateDeque = new ArrayDeque<>();
-        while (tempStateInfo != null) {
-            if (tempStateInfo.active) {
-                foundRootState = tempStateInfo.state;
-                break;
-            }
-            destStateDeque.offerFirst(tempStateInfo);
-            tempStateInfo = tempStateInfo.parentStateInfo;
-        }
-        while (null != (tempStateInfo = mStateStack.peekFirst())) {
-            if (foundRootState != null && foundRootState == tempStateInfo.state) {
-                break;
-            }
-            outputExitLog(tempStateInfo.state.name());
-            tempStateInfo.state.exit(this);
-            tempStateInfo.active = false;
-            mStateStack.pollFirst();
-        }
-        for (StateInfo stateInfo : destStateDeque) {
-            outputEnterLog(stateInfo.state.name());
-            stateInfo.state.enter(this);
-            stateInfo.active = true;
-            mStateStack.offerFirst(stateInfo);
-        }
-        _moveDeferredMessageAtFrontOfQueue();
-    }
-
-    @SuppressWarnings("unchecked")
-    private void _processMessage(@NonNull Message msg) {
-        for (StateInfo stateInfo : mStateStack) {
-            outputMessageLog(stateInfo.state.name(), msg);
-            if (stateInfo.state.processMessage(this, msg)) {
-                break;
-            }
-        }
-    }
-
-    private void _handleMessage(@NonNull Message msg) {
-        mCurrentMessage = msg;
-        _processMessage(msg);
-        if (mDestState != null) {
-            _performTransitions(mDestState);
-            mDestState = null;
-        }
-    }
-
-    private void _moveDeferredMessageAtFrontOfQueue() {
-        for (Message message : mDeferredMessages) {
-            mHandler.sendMessageAtFrontOfQueue(message);
-        }
-        mDeferredMessages.clear();
-    }
-
-    private void _deferMessage(@NonNull Message msg) {
-        Message newMsg = mHandler.obtainMessage();
-        newMsg.copyFrom(msg);
-        mDeferredMessages.add(newMsg);
-    }
-
-    private void _removeDeferredMessages(int what) {
-        List<Message> removes = new ArrayList<>();
-        for (Message msg : mDeferredMessages) {
-            if (msg.what == what) {
-                removes.add(msg);
-            }
-        }
-        for (Message msg : removes) {
-            mDeferredMessages.remove(msg);
-        }
-    }
-
-    private boolean _contains(@NonNull State state) {
-        boolean ret = false;
-        for (StateInfo currentStateInfo : mStateStack) {
-            if (currentStateInfo.state == state) {
-                ret = true;
-                break;
-            }
-        }
-        return ret;
+    @Override
+    protected void outputLog(@NonNull String log) {
+        Log.i(getName(), log);
     }
 
+    // Regions dispatched in parallel get a Message of their own.
     @NonNull
-    protected String getName() {
-        return getClass().getSimpleName();
-    }
-
-    private void log(@NonNull String log) {
-        if (mDbg.get()) Log.i(getName(), log);
-    }
-
-    private static class StateInfo {
-        @NonNull
-        private final State state;
-        @Nullable
-        private final StateInfo parentStateInfo;
-        private boolean active;
-
-        public StateInfo(@NonNull State state, @Nullable StateInfo parentStateInfo) {
-            this.state = state;
-            this.parentStateInfo = parentStateInfo;
-            this.active = false;
-        }
-
-        @Override
-        public String toString() {
-            String str = "{state=" + state.name();
-            if (parentStateInfo != null) {
-                str += ", parent=" + parentStateInfo.state.name();
-            }
-            str = str + ", active=" + active;
-            str += '}';
-            return str;
-        }
+    final Message asMessage(@NonNull Event event) {
+        if (!getDispatcher().isCurrentThread()) {
+            final Message ret = Message.obtain();
+            ret.what = event.what;
+            ret.arg1 = event.arg1;
+            ret.arg2 = event.arg2;
+            ret.obj = event.obj;
+            return ret;
+        }
+        mMessage.what = event.what;
+        mMessage.arg1 = event.arg1;
+        mMessage.arg2 = event.arg2;
+        mMessage.obj = event.obj;
+        return mMessage;
     }
 }
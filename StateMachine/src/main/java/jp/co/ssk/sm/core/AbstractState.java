@@ -0,0 +1,46 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+@SuppressWarnings("unused")
+public abstract class AbstractState<T extends AbstractStateMachine> {
+
+    public void enter(@NonNull T owner) {
+    }
+
+    public boolean processEvent(@NonNull T owner, @NonNull Event event) {
+        return AbstractStateMachine.NOT_HANDLED;
+    }
+
+    public void exit(@NonNull T owner) {
+    }
+
+    // The event codes processEvent may handle, or null to be offered every event. Once any
+    // state declares its codes the machine dispatches through a per-leaf table and skips the
+    // states that cannot handle the event.
+    @Nullable
+    public int[] handledEvents() {
+        return null;
+    }
+
+    // Orthogonal regions, each a built topology with an initial state. Entering this state
+    // enters every region's initial state, and each event goes to all regions before this
+    // state. A state with regions cannot have child states.
+    @Nullable
+    public StateTopology[] regions() {
+        return null;
+    }
+
+    @NonNull
+    public String name() {
+        String name = getClass().getName();
+        int lastDollar = name.lastIndexOf('$');
+        return name.substring(lastDollar + 1);
+    }
+
+    @Override
+    public String toString() {
+        return name();
+    }
+}
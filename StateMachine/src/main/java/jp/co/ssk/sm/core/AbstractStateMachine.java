@@ -0,0 +1,1911 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+@SuppressWarnings({"unused", "WeakerAccess", "SameParameterValue"})
+public abstract class AbstractStateMachine {
+
+    protected static final boolean HANDLED = true;
+    protected static final boolean NOT_HANDLED = false;
+
+    // What a full mailbox does with one more event; see setMailboxCapacity().
+    protected static final int OVERFLOW_BLOCK = 0;
+    protected static final int OVERFLOW_DROP_OLDEST = 1;
+    protected static final int OVERFLOW_DROP_NEWEST = 2;
+    protected static final int OVERFLOW_REJECT = 3;
+
+    // Credit-based flow control for producers: n more events may be sent without overflowing
+    // the mailbox. Called on the machine thread.
+    public interface DemandListener {
+        void onDemand(int n);
+    }
+
+    static final int MAX_DISPATCH_TABLE_SIZE = 4096;
+    private static final int STATE_MAGIC = 0x53534b53;
+    private static final int STATE_VERSION = 2;
+
+    @NonNull
+    private static final ThreadLocal<ActiveRegion> sParallelRegion = new ThreadLocal<>();
+
+    @NonNull
+    private final Dispatcher mDispatcher;
+    @NonNull
+    private final StateTopology mTopology;
+    @NonNull
+    private final EventLanes mLanes;
+    @NonNull
+    private final Mailbox mMailbox;
+    @NonNull
+    private StateInfo[] mStateStack = new StateInfo[8];
+    private int mStateStackSize;
+    // Timeouts armed by the active state at each depth.
+    @NonNull
+    private StateTimeout[] mTimeouts = new StateTimeout[8];
+    // Regions of the active state at each depth that has them.
+    @NonNull
+    private ActiveRegion[][] mRegions = new ActiveRegion[8][];
+    @Nullable
+    private ActiveRegion mCallingRegion;
+    @Nullable
+    private ForkJoinPool mRegionPool;
+    @NonNull
+    private final DeferredEvents mDeferredEvents = new DeferredEvents();
+    @Nullable
+    private AbstractState mInitialState;
+    @Nullable
+    private AbstractState mDestState;
+    @Nullable
+    private Event[] mBatchEvents;
+    private int mBatchIndex;
+    @Nullable
+    private Runnable mBatchCompletion;
+    @Nullable
+    private Event mCurrentEvent;
+    @NonNull
+    private final EventPool mEventPool = new EventPool();
+    @NonNull
+    private final Event mCurrentEventBuffer = new Event();
+    @NonNull
+    private final PublishedEvent mPublishedEvent = new PublishedEvent();
+    @Nullable
+    private volatile StateSnapshot mSnapshot;
+    private volatile long mTransitionCount;
+    @NonNull
+    private TimerWheel mTimerWheel = TimerWheel.shared();
+    @Nullable
+    private StateInfo mCallingStateInfo;
+    @Nullable
+    private StateTimeout mFreeTimeouts;
+    @Nullable
+    private volatile StateMachineMetrics mMetrics;
+    @Nullable
+    private EventJournal mJournal;
+    private boolean mReplaying;
+    private volatile boolean mQuit;
+    // Futures of sendMessageAsync() not yet completed; quit() cancels them.
+    @NonNull
+    private final Set<CompletableFuture<EventResult>> mPendingResults = ConcurrentHashMap.newKeySet();
+    // Callers waiting in _awaitDispatcher(); quit() fails them.
+    @NonNull
+    private final Set<SyncCallback<?>> mPendingCalls = ConcurrentHashMap.newKeySet();
+    // Events raised on the machine thread during a step, run before the dispatcher's next one.
+    @NonNull
+    private final ArrayDeque<Event> mInternalEvents = new ArrayDeque<>();
+    private boolean mInStep;
+    @Nullable
+    private TransitionTable<?> mTransitionTable;
+    @NonNull
+    private AtomicBoolean mDbg = new AtomicBoolean(false);
+
+    protected AbstractStateMachine() {
+        this(null);
+    }
+
+    protected AbstractStateMachine(@Nullable Dispatcher.Factory factory) {
+        this(factory, null);
+    }
+
+    // Runs on a sealed topology shared with other machines; addState() is not allowed and the
+    // topology's initial state is used unless setInitialState() picks another. A null topology
+    // gives the machine a private one to fill with addState().
+    protected AbstractStateMachine(@Nullable Dispatcher.Factory factory, @Nullable StateTopology topology) {
+        if (null == factory) {
+            factory = Dispatchers.thread();
+        }
+        mTopology = topology == null ? new StateTopology() : topology;
+        mDispatcher = factory.create(getName(), new Dispatcher.Callback() {
+            @Override
+            public void dispatchEvent(@NonNull Event event) {
+                _dispatchEvent(event);
+            }
+            @Override
+            public void onDied(@NonNull Throwable error) {
+                _onDispatcherDied(error);
+            }
+        });
+        mLanes = new EventLanes(mDispatcher, this::_handleEvent);
+        mMailbox = new Mailbox(mDispatcher, this::_dispatchEvent);
+    }
+
+    @NonNull
+    protected Dispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    protected void addState(@NonNull AbstractState state) {
+        addState(state, null);
+    }
+
+    protected void addState(@NonNull final AbstractState state, @Nullable final AbstractState parent) {
+        if (mTopology.isSealed()) {
+            throw new IllegalStateException("Topology is sealed.");
+        }
+        final boolean[] handles = StateTopology.handledEventSet(state);
+        StateTopology.regionsOf(state);
+        if (mDispatcher.isCurrentThread()) {
+            _addState(state, parent, handles);
+        } else {
+            mDispatcher.post(() -> _addState(state, parent, handles));
+        }
+    }
+
+    protected void setInitialState(@NonNull final AbstractState state) {
+        if (mDispatcher.isCurrentThread()) {
+            mInitialState = state;
+        } else {
+            mDispatcher.post(() -> mInitialState = state);
+        }
+    }
+
+    protected void start() {
+        if (mDispatcher.isCurrentThread()) {
+            _start();
+        } else {
+            mDispatcher.post(this::_start);
+        }
+    }
+
+    protected void quit() {
+        if (mDispatcher.isCurrentThread()) {
+            for (int i = mStateStackSize - 1; i >= 0; i--) {
+                _cancelTimeouts(i);
+            }
+            if (mJournal != null) {
+                try {
+                    mJournal.flush();
+                } catch (IOException e) {
+                    outputLog("Journal flush failed: " + e);
+                }
+            }
+        }
+        mQuit = true;
+        if (mDispatcher.isCurrentThread()) {
+            _removeInternalEvents(-1);
+        }
+        mMailbox.close();
+        mDispatcher.quit();
+        _cancelPendingResults();
+        _cancelPendingCalls();
+    }
+
+    // Journals every event processed and transition made from now on, starting with a snapshot.
+    protected final void setJournal(@Nullable final EventJournal journal) {
+        if (mDispatcher.isCurrentThread()) {
+            _setJournal(journal);
+        } else {
+            mDispatcher.post(() -> _setJournal(journal));
+        }
+    }
+
+    // Starts the machine at the position recorded in the journal, or as start() does if it is
+    // empty, then keeps journaling. Replay re-applies the events after the last snapshot with
+    // enter/exit suppressed and without sending anything; see isReplaying().
+    protected final void startFromJournal(@NonNull final EventJournal journal) {
+        if (mDispatcher.isCurrentThread()) {
+            _startFromJournal(journal);
+        } else {
+            mDispatcher.post(() -> _startFromJournal(journal));
+        }
+    }
+
+    protected final boolean isReplaying() {
+        if (!mReplaying) {
+            return false;
+        }
+        final ActiveRegion region = sParallelRegion.get();
+        return mDispatcher.isCurrentThread() || (region != null && region.machine() == this);
+    }
+
+    // Extended state written with each journal snapshot and by saveState(), encoded by the codec
+    // in use.
+    @Nullable
+    protected Object onSaveJournalState() {
+        return null;
+    }
+
+    protected void onRestoreJournalState(@Nullable Object state) {
+    }
+
+    // Serializes the active path, deferred events, armed timeouts with their remaining time and
+    // the extended state. Events sent with a delay are still owned by the dispatcher and are not
+    // included.
+    @NonNull
+    protected final byte[] saveState() {
+        return saveState(EventJournal.SERIALIZABLE);
+    }
+
+    @NonNull
+    protected final byte[] saveState(@NonNull final EventJournal.Codec codec) {
+        if (mDispatcher.isCurrentThread()) {
+            return _saveState(codec);
+        }
+        _checkNotInParallelRegion();
+        final SyncCallback<byte[]> callback = new SyncCallback<>();
+        _awaitDispatcher(callback, () -> {
+            try {
+                callback.setResult(_saveState(codec));
+            } finally {
+                callback.unlock();
+            }
+        }, false);
+        if (null == callback.getResult()) {
+            throw new IllegalStateException("Not started.");
+        }
+        return callback.getResult();
+    }
+
+    // Starts a freshly built machine from saveState() output instead of start(): no enter runs
+    // and the caller does not wait, so restoring many machines proceeds on all their
+    // dispatchers at once.
+    protected final void restoreState(@NonNull byte[] state) {
+        restoreState(state, EventJournal.SERIALIZABLE);
+    }
+
+    protected final void restoreState(@NonNull final byte[] state, @NonNull final EventJournal.Codec codec) {
+        if (mDispatcher.isCurrentThread()) {
+            _restoreState(state, codec);
+        } else {
+            mDispatcher.post(() -> _restoreState(state, codec));
+        }
+    }
+
+    protected final void setMetricsEnabled(final boolean enabled) {
+        if (mDispatcher.isCurrentThread()) {
+            _setMetricsEnabled(enabled);
+        } else {
+            mDispatcher.post(() -> _setMetricsEnabled(enabled));
+        }
+    }
+
+    @Nullable
+    protected final StateMachineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    protected void setTimerWheel(@NonNull final TimerWheel timerWheel) {
+        if (mDispatcher.isCurrentThread()) {
+            mTimerWheel = timerWheel;
+        } else {
+            mDispatcher.post(() -> mTimerWheel = timerWheel);
+        }
+    }
+
+    // Offers each event to the regions of the active state in parallel on the pool, joining them
+    // before the next event; null offers it to one region after another. While dispatched in
+    // parallel, region states may only transition and send messages.
+    protected final void setParallelRegions(@Nullable final ForkJoinPool pool) {
+        if (mDispatcher.isCurrentThread()) {
+            mRegionPool = pool;
+        } else {
+            mDispatcher.post(() -> mRegionPool = pool);
+        }
+    }
+
+    // Offers each event to the table's transitions before processEvent() of the active states;
+    // see TransitionTable. The table must be built on this machine's topology.
+    protected final void setTransitionTable(@Nullable final TransitionTable<?> table) {
+        if (table != null && table.getTopology() != mTopology) {
+            throw new IllegalArgumentException("Transition table of another topology.");
+        }
+        if (mDispatcher.isCurrentThread()) {
+            mTransitionTable = table;
+        } else {
+            mDispatcher.post(() -> mTransitionTable = table);
+        }
+    }
+
+    // The active state of each region of the current state, in declaration order.
+    @NonNull
+    protected final List<AbstractState> getActiveRegionStates() {
+        if (mDispatcher.isCurrentThread()) {
+            return _activeRegionStates();
+        }
+        _checkNotInParallelRegion();
+        final SyncCallback<List<AbstractState>> callback = new SyncCallback<>();
+        _awaitDispatcher(callback, () -> {
+            try {
+                callback.setResult(_activeRegionStates());
+            } finally {
+                callback.unlock();
+            }
+        }, false);
+        if (null == callback.getResult()) {
+            throw new UnknownError("An unlikely error.");
+        }
+        return callback.getResult();
+    }
+
+    // Delivers the event after delayMillis unless the state that armed it exits first. Arming
+    // the same what again from that state restarts the timeout.
+    protected final void startTimeout(int what, long delayMillis) {
+        startTimeout(what, 0, 0, null, delayMillis);
+    }
+
+    protected final void startTimeout(final int what, final int arg1, final int arg2, @Nullable final Object obj,
+                                      final long delayMillis) {
+        if (mDispatcher.isCurrentThread()) {
+            _startTimeout(what, arg1, arg2, obj, delayMillis);
+        } else {
+            _checkNotInParallelRegion();
+            mDispatcher.post(() -> _startTimeout(what, arg1, arg2, obj, delayMillis));
+        }
+    }
+
+    protected final void cancelTimeout(final int what) {
+        if (mDispatcher.isCurrentThread()) {
+            _cancelTimeout(what);
+        } else {
+            _checkNotInParallelRegion();
+            mDispatcher.post(() -> _cancelTimeout(what));
+        }
+    }
+
+    @NonNull
+    protected final StateTopology getTopology() {
+        return mTopology;
+    }
+
+    // Called from a state of a region, moves that region to the state if it belongs to the
+    // region, or the machine otherwise.
+    protected void transitionTo(@NonNull final AbstractState state) {
+        if (mDispatcher.isCurrentThread()) {
+            if (mCallingRegion != null) {
+                mCallingRegion.destState = state;
+            } else {
+                mDestState = state;
+            }
+            return;
+        }
+        final ActiveRegion region = sParallelRegion.get();
+        if (region != null && region.machine() == this) {
+            region.destState = state;
+        } else {
+            mDispatcher.post(() -> mDestState = state);
+        }
+    }
+
+    protected void transitionTo(int stateId) {
+        transitionTo(mTopology.getState(stateId));
+    }
+
+    @Nullable
+    protected final Event getCurrentEvent() {
+        final Event ret;
+        if (mDispatcher.isCurrentThread()) {
+            ret = mCurrentEvent;
+        } else {
+            ret = mPublishedEvent.read();
+        }
+        return ret;
+    }
+
+    @Nullable
+    protected final StateSnapshot getStateSnapshot() {
+        return mSnapshot;
+    }
+
+    protected final long getTransitionCount() {
+        return mTransitionCount;
+    }
+
+    @NonNull
+    protected AbstractState getCurrentState() {
+        final AbstractState ret;
+        final StateSnapshot snapshot = mSnapshot;
+        if (mDispatcher.isCurrentThread()) {
+            ret = mStateStack[mStateStackSize - 1].state;
+        } else if (null != snapshot) {
+            ret = snapshot.getCurrentState();
+        } else {
+            final SyncCallback<AbstractState> callback = new SyncCallback<>();
+            _awaitDispatcher(callback, () -> {
+                try {
+                    callback.setResult(mStateStack[mStateStackSize - 1].state);
+                } finally {
+                    callback.unlock();
+                }
+            }, false);
+            if (null == callback.getResult()) {
+                throw new UnknownError("An unlikely error.");
+            }
+            ret = callback.getResult();
+        }
+        return ret;
+    }
+
+    protected boolean contains(@NonNull final AbstractState state) {
+        final boolean ret;
+        final StateSnapshot snapshot = mSnapshot;
+        if (mDispatcher.isCurrentThread()) {
+            ret = _contains(state);
+        } else if (null != snapshot) {
+            ret = snapshot.contains(state);
+        } else {
+            final SyncCallback<Boolean> callback = new SyncCallback<>();
+            _awaitDispatcher(callback, () -> {
+                try {
+                    callback.setResult(_contains(state));
+                } finally {
+                    callback.unlock();
+                }
+            }, false);
+            if (null == callback.getResult()) {
+                throw new UnknownError("An unlikely error.");
+            }
+            ret = callback.getResult();
+        }
+        return ret;
+    }
+
+    // Sent from the machine thread while an event is handled, the event skips the dispatcher and
+    // runs as soon as the current one completes, ahead of anything queued from outside.
+    protected void sendMessage(int what) {
+        sendMessage(what, 0, 0, null);
+    }
+
+    protected void sendMessage(int what, int arg1) {
+        sendMessage(what, arg1, 0, null);
+    }
+
+    protected void sendMessage(int what, int arg1, int arg2) {
+        sendMessage(what, arg1, arg2, null);
+    }
+
+    protected void sendMessage(int what, int arg1, int arg2, @Nullable Object obj) {
+        if (isReplaying()) {
+            return;
+        }
+        _sendEvent(mEventPool.obtain(what, arg1, arg2, obj));
+    }
+
+    protected void sendMessage(int what, @Nullable Object obj) {
+        sendMessage(what, 0, 0, obj);
+    }
+
+    // Events from this machine's own free list, for payloads that need the long/double slots.
+    // Fill one in and pass it to sendEvent, which takes it over.
+    @NonNull
+    protected final Event obtainEvent(int what) {
+        return mEventPool.obtain(what, 0, 0, null);
+    }
+
+    @NonNull
+    protected final Event obtainEvent(int what, long longArg, double doubleArg) {
+        final Event event = mEventPool.obtain(what, 0, 0, null);
+        event.longArg = longArg;
+        event.doubleArg = doubleArg;
+        return event;
+    }
+
+    protected final void sendEvent(@NonNull Event event) {
+        if (isReplaying()) {
+            event.recycle();
+            return;
+        }
+        _sendEvent(event);
+    }
+
+    // Never blocks: false if a bounded mailbox is full and did not take the event.
+    protected final boolean trySendMessage(int what) {
+        return trySendMessage(what, 0, 0, null);
+    }
+
+    protected final boolean trySendMessage(int what, int arg1) {
+        return trySendMessage(what, arg1, 0, null);
+    }
+
+    protected final boolean trySendMessage(int what, int arg1, int arg2) {
+        return trySendMessage(what, arg1, arg2, null);
+    }
+
+    protected final boolean trySendMessage(int what, int arg1, int arg2, @Nullable Object obj) {
+        if (isReplaying()) {
+            return false;
+        }
+        final Event event = mEventPool.obtain(what, arg1, arg2, obj);
+        if (_raise(event)) {
+            return true;
+        }
+        if (mLanes.offer(event)) {
+            return true;
+        }
+        if (!mMailbox.isBounded()) {
+            mDispatcher.sendEvent(event);
+            return true;
+        }
+        return mMailbox.offer(event, false, false) == Mailbox.QUEUED;
+    }
+
+    protected final boolean trySendMessage(int what, @Nullable Object obj) {
+        return trySendMessage(what, 0, 0, obj);
+    }
+
+    protected void sendMessageSyncIf(int what) {
+        sendMessageSyncIf(what, 0, 0, null);
+    }
+
+    protected void sendMessageSyncIf(int what, int arg1) {
+        sendMessageSyncIf(what, arg1, 0, null);
+    }
+
+    protected void sendMessageSyncIf(int what, int arg1, int arg2) {
+        sendMessageSyncIf(what, arg1, arg2, null);
+    }
+
+    protected void sendMessageSyncIf(int what, int arg1, int arg2, @Nullable Object obj) {
+        if (mDispatcher.isCurrentThread()) {
+            if (!mReplaying) {
+                _sendEvent(mEventPool.obtain(what, arg1, arg2, obj));
+            }
+            return;
+        }
+        _checkNotInParallelRegion();
+        final Event event = mEventPool.obtain(what, arg1, arg2, obj);
+        final SyncCallback<Void> callback = new SyncCallback<>();
+        final Runnable r = () -> {
+            try {
+                _handleEvent(event);
+            } finally {
+                event.recycle();
+                callback.unlock();
+            }
+        };
+        _awaitDispatcher(callback, r, mLanes.isUrgent(what));
+    }
+
+    protected void sendMessageSyncIf(int what, @Nullable Object obj) {
+        sendMessageSyncIf(what, 0, 0, obj);
+    }
+
+    // Never blocks: the future completes on the machine thread once the event has been processed
+    // and any transition it caused has finished. Like sendMessageSyncIf, it skips the lanes and the
+    // mailbox bound; from the machine thread it runs after the current event. A failure while
+    // processing completes the future exceptionally, and quit() cancels the futures still pending.
+    @NonNull
+    protected final CompletableFuture<EventResult> sendMessageAsync(int what) {
+        return sendMessageAsync(what, 0, 0, null);
+    }
+
+    @NonNull
+    protected final CompletableFuture<EventResult> sendMessageAsync(int what, int arg1) {
+        return sendMessageAsync(what, arg1, 0, null);
+    }
+
+    @NonNull
+    protected final CompletableFuture<EventResult> sendMessageAsync(int what, int arg1, int arg2) {
+        return sendMessageAsync(what, arg1, arg2, null);
+    }
+
+    @NonNull
+    protected final CompletableFuture<EventResult> sendMessageAsync(int what, int arg1, int arg2,
+                                                                    @Nullable Object obj) {
+        final CompletableFuture<EventResult> future = new CompletableFuture<>();
+        if (isReplaying() || mQuit) {
+            future.completeExceptionally(new CancellationException(mQuit ? "Quit." : "Replaying."));
+            return future;
+        }
+        _checkNotInParallelRegion();
+        mPendingResults.add(future);
+        // Checked after adding: quit() cancels every future it can see once mQuit is set.
+        if (mQuit) {
+            _cancelPendingResults();
+            return future;
+        }
+        final Event event = mEventPool.obtain(what, arg1, arg2, obj);
+        // A failure completes the future and is not rethrown, so the dispatcher carries on.
+        final Runnable r = () -> {
+            try {
+                final boolean handled = _handleEvent(event);
+                final StateSnapshot snapshot = mSnapshot;
+                if (snapshot == null) {
+                    throw new IllegalStateException("Not started.");
+                }
+                future.complete(new EventResult(handled, snapshot));
+            } catch (RuntimeException | Error e) {
+                future.completeExceptionally(e);
+            } finally {
+                mPendingResults.remove(future);
+                event.recycle();
+            }
+        };
+        if (mLanes.isUrgent(what)) {
+            mDispatcher.postAtFrontOfQueue(r);
+        } else {
+            mDispatcher.post(r);
+        }
+        return future;
+    }
+
+    @NonNull
+    protected final CompletableFuture<EventResult> sendMessageAsync(int what, @Nullable Object obj) {
+        return sendMessageAsync(what, 0, 0, obj);
+    }
+
+    protected void sendMessageBatch(@NonNull final Event... events) {
+        if (events.length == 0 || isReplaying()) {
+            return;
+        }
+        mDispatcher.post(() -> _handleBatch(events, 0, null));
+    }
+
+    protected void sendMessageBatchSyncIf(@NonNull final Event... events) {
+        if (mDispatcher.isCurrentThread()) {
+            sendMessageBatch(events);
+            return;
+        }
+        if (events.length == 0) {
+            return;
+        }
+        _checkNotInParallelRegion();
+        final SyncCallback<Void> callback = new SyncCallback<>();
+        _awaitDispatcher(callback, () -> _handleBatch(events, 0, callback::unlock), false);
+    }
+
+    protected void sendMessageDelayed(int what, long delayMillis) {
+        sendMessageDelayed(what, 0, 0, null, delayMillis);
+    }
+
+    protected void sendMessageDelayed(int what, int arg1, long delayMillis) {
+        sendMessageDelayed(what, arg1, 0, null, delayMillis);
+    }
+
+    protected void sendMessageDelayed(int what, int arg1, int arg2, long delayMillis) {
+        sendMessageDelayed(what, arg1, arg2, null, delayMillis);
+    }
+
+    protected void sendMessageDelayed(int what, int arg1, int arg2, @Nullable Object obj, long delayMillis) {
+        if (isReplaying()) {
+            return;
+        }
+        mDispatcher.sendEventDelayed(mEventPool.obtain(what, arg1, arg2, obj), delayMillis);
+    }
+
+    protected void sendMessageDelayed(int what, @Nullable Object obj, long delayMillis) {
+        sendMessageDelayed(what, 0, 0, obj, delayMillis);
+    }
+
+    protected boolean hasMessages(int what) {
+        if (mDispatcher.isCurrentThread() && _hasInternalEvent(what)) {
+            return true;
+        }
+        return mLanes.has(what) || mMailbox.has(what) || mDispatcher.hasEvents(what);
+    }
+
+    protected void removeMessages(int what) {
+        if (mDispatcher.isCurrentThread()) {
+            _removeInternalEvents(what);
+        }
+        mLanes.remove(what);
+        mMailbox.remove(what);
+        mDispatcher.removeEvents(what);
+    }
+
+    // Bounds the events queued by sendMessage and trySendMessage; 0 lifts the bound. When full,
+    // OVERFLOW_BLOCK parks the sender until there is room (sends from the machine thread are let
+    // through), OVERFLOW_DROP_OLDEST discards the oldest queued event, OVERFLOW_DROP_NEWEST
+    // discards the new one and OVERFLOW_REJECT throws RejectedExecutionException. Coalesced,
+    // urgent, delayed and sync sends are not bounded. Set it before sending.
+    protected final void setMailboxCapacity(int capacity, int overflowPolicy) {
+        if (overflowPolicy < OVERFLOW_BLOCK || overflowPolicy > OVERFLOW_REJECT) {
+            throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+        }
+        mMailbox.setCapacity(capacity, overflowPolicy);
+    }
+
+    // Signals room in the mailbox as it drains, starting with the room left now.
+    protected final void setDemandListener(@Nullable final DemandListener listener) {
+        if (mDispatcher.isCurrentThread()) {
+            mMailbox.setDemandListener(listener);
+        } else {
+            mDispatcher.post(() -> mMailbox.setDemandListener(listener));
+        }
+    }
+
+    protected final long getDroppedMessageCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    // While an event of the code is still queued, sending another only replaces its arguments,
+    // so it keeps its place and is handled once with the latest values. For status updates
+    // where only the newest one matters. Applies to events sent from other threads, or from the
+    // machine thread outside a step; those sent while a step runs are raised and run in order
+    // within it, whatever their policy.
+    protected final void setCoalesced(int what, boolean coalesced) {
+        mLanes.setPolicy(what, EventLanes.COALESCED, coalesced);
+    }
+
+    // Events of the code are handled before any queued normal event, in the order sent, so
+    // control events are not stuck behind bulk traffic. sendMessageSyncIf from another thread
+    // posts them at the front of the queue. Like coalescing, not applied to raised events.
+    protected final void setUrgent(int what, boolean urgent) {
+        mLanes.setPolicy(what, EventLanes.URGENT, urgent);
+    }
+
+    protected final void deferEvent(@NonNull final Event event) {
+        if (mDispatcher.isCurrentThread()) {
+            _deferEvent(event);
+        } else {
+            _checkNotInParallelRegion();
+            mDispatcher.post(() -> _deferEvent(event));
+        }
+    }
+
+    // Defers an event with these fields, held in one of the machine's pooled events.
+    protected final void deferEvent(final int what, final int arg1, final int arg2, @Nullable final Object obj) {
+        if (mDispatcher.isCurrentThread()) {
+            _addDeferred(mEventPool.obtain(what, arg1, arg2, obj));
+        } else {
+            _checkNotInParallelRegion();
+            mDispatcher.post(() -> _addDeferred(mEventPool.obtain(what, arg1, arg2, obj)));
+        }
+    }
+
+    protected final void removeDeferredMessages(final int what) {
+        if (mDispatcher.isCurrentThread()) {
+            _removeDeferredMessages(what);
+        } else {
+            _checkNotInParallelRegion();
+            mDispatcher.post(() -> _removeDeferredMessages(what));
+        }
+    }
+
+    protected final boolean hasDeferredMessages(final int what) {
+        return getDeferredMessageCount(what) > 0;
+    }
+
+    protected final int getDeferredMessageCount(final int what) {
+        if (mDispatcher.isCurrentThread()) {
+            return mDeferredEvents.count(what);
+        }
+        _checkNotInParallelRegion();
+        final SyncCallback<Integer> callback = new SyncCallback<>();
+        _awaitDispatcher(callback, () -> {
+            try {
+                callback.setResult(mDeferredEvents.count(what));
+            } finally {
+                callback.unlock();
+            }
+        }, false);
+        if (null == callback.getResult()) {
+            throw new UnknownError("An unlikely error.");
+        }
+        return callback.getResult();
+    }
+
+    protected void outputEnterLog(@NonNull String currentStateName) {
+        log("invokeEnterMethods: " + currentStateName);
+    }
+
+    protected void outputExitLog(@NonNull String currentStateName) {
+        log("invokeExitMethods: " + currentStateName);
+    }
+
+    protected void outputMessageLog(@NonNull String currentStateName, @NonNull Event event) {
+        log("processMessage: " + currentStateName + String.format(Locale.US, " what=0x%08x", event.what));
+    }
+
+    protected void outputLog(@NonNull String log) {
+        Logger.getLogger(getName()).info(log);
+    }
+
+    protected void setDbg(boolean dbg) {
+        mDbg.set(dbg);
+    }
+
+    @NonNull
+    protected String getName() {
+        return getClass().getSimpleName();
+    }
+
+    protected final void log(@NonNull String log) {
+        if (mDbg.get()) outputLog(log);
+    }
+
+    private void _addState(@NonNull AbstractState state, @Nullable AbstractState parent,
+                           @Nullable boolean[] handles) {
+        final int firstIndex = mTopology.getStateCount();
+        mTopology.add(state, parent, handles);
+        final StateMachineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            for (int i = firstIndex; i < mTopology.getStateCount(); i++) {
+                metrics.onStateAdded(mTopology.get(i).state, i);
+            }
+        }
+    }
+
+    private void _start() {
+        final AbstractState initialState = mInitialState != null ? mInitialState : mTopology.getInitialState();
+        if (initialState == null) {
+            throw new RuntimeException("Unset initial state.");
+        }
+        mInStep = true;
+        try {
+            _performTransitions(initialState);
+            _drainInternalEvents();
+        } finally {
+            mInStep = false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void _performTransitions(@NonNull AbstractState destState) {
+        final StateInfo destStateInfo = mTopology.find(destState);
+        if (destStateInfo == null) {
+            throw new RuntimeException("State not added.");
+        }
+        final int[] plan = mTopology.transitionPlan(
+                mStateStackSize == 0 ? null : mStateStack[mStateStackSize - 1], destStateInfo);
+        final boolean dbg = mDbg.get();
+        final StateMachineMetrics metrics = mMetrics;
+        final long startNanos = metrics == null ? 0 : System.nanoTime();
+        final boolean replaying = mReplaying;
+        StateInfo tempStateInfo;
+        for (int i = plan[0]; i > 0; i--) {
+            tempStateInfo = mStateStack[mStateStackSize - 1];
+            if (dbg) outputExitLog(tempStateInfo.state.name());
+            if (metrics != null) metrics.onExit(tempStateInfo.index);
+            mCallingStateInfo = tempStateInfo;
+            if (tempStateInfo.regions != null) _exitRegions(tempStateInfo.depth(), replaying);
+            if (!replaying) tempStateInfo.state.exit(this);
+            _cancelTimeouts(tempStateInfo.depth());
+            mStateStack[--mStateStackSize] = null;
+        }
+        _ensureStackCapacity(mStateStackSize + plan.length - 1);
+        for (int i = 1; i < plan.length; i++) {
+            tempStateInfo = mTopology.get(plan[i]);
+            if (dbg) outputEnterLog(tempStateInfo.state.name());
+            if (metrics != null) metrics.onEnter(tempStateInfo.index);
+            mCallingStateInfo = tempStateInfo;
+            if (!replaying) tempStateInfo.state.enter(this);
+            mStateStack[mStateStackSize++] = tempStateInfo;
+            if (tempStateInfo.regions != null) _enterRegions(tempStateInfo, replaying);
+        }
+        mCallingStateInfo = null;
+        _publishSnapshot();
+        if (mJournal != null) {
+            mJournal.appendTransition(destStateInfo.index);
+        }
+        if (!mDeferredEvents.isEmpty()) {
+            if (replaying) {
+                // The journal holds these events again where they were processed after this transition.
+                mDeferredEvents.clear();
+                _onDeferredDepthChanged();
+            } else {
+                _moveDeferredEventAtFrontOfQueue();
+            }
+        }
+        if (metrics != null) {
+            metrics.onTransition(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void _publishSnapshot() {
+        mSnapshot = mStateStackSize == 0 ? null : mTopology.snapshot(mStateStack[mStateStackSize - 1]);
+        mTransitionCount = mTransitionCount + 1;
+    }
+
+    private void _ensureStackCapacity(int capacity) {
+        if (mStateStack.length < capacity) {
+            mStateStack = Arrays.copyOf(mStateStack, capacity);
+            mTimeouts = Arrays.copyOf(mTimeouts, capacity);
+            mRegions = Arrays.copyOf(mRegions, capacity);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean _processEvent(@NonNull Event event) {
+        final boolean dbg = mDbg.get();
+        if (mStateStackSize == 0) {
+            return NOT_HANDLED;
+        }
+        final StateInfo leafStateInfo = mStateStack[mStateStackSize - 1];
+        if (leafStateInfo.regions != null && _dispatchRegions(leafStateInfo, event)) {
+            mCallingStateInfo = null;
+            return HANDLED;
+        }
+        final TransitionTable<?> table = mTransitionTable;
+        if (table != null) {
+            return _processEvent(table, event, dbg);
+        }
+        if (mTopology.isTableDispatch()) {
+            for (int depth : mTopology.dispatchCandidates(leafStateInfo, event.what)) {
+                final StateInfo stateInfo = mStateStack[depth];
+                if (dbg) outputMessageLog(stateInfo.state.name(), event);
+                mCallingStateInfo = stateInfo;
+                if (stateInfo.state.processEvent(this, event)) {
+                    mCallingStateInfo = null;
+                    return HANDLED;
+                }
+            }
+            mCallingStateInfo = null;
+            return NOT_HANDLED;
+        }
+        for (int i = mStateStackSize - 1; i >= 0; i--) {
+            final StateInfo stateInfo = mStateStack[i];
+            if (dbg) outputMessageLog(stateInfo.state.name(), event);
+            mCallingStateInfo = stateInfo;
+            if (stateInfo.state.processEvent(this, event)) {
+                mCallingStateInfo = null;
+                return HANDLED;
+            }
+        }
+        mCallingStateInfo = null;
+        return NOT_HANDLED;
+    }
+
+    // One active state at a time from the leaf up: its table transitions, then its
+    // processEvent(), so a descendant's processEvent() wins over an ancestor's transition.
+    @SuppressWarnings("unchecked")
+    private boolean _processEvent(@NonNull TransitionTable<?> table, @NonNull Event event, boolean dbg) {
+        final StateInfo leafStateInfo = mStateStack[mStateStackSize - 1];
+        final int[] candidates = mTopology.isTableDispatch()
+                ? mTopology.dispatchCandidates(leafStateInfo, event.what)
+                : null;
+        int next = 0;
+        for (int i = mStateStackSize - 1; i >= 0; i--) {
+            final StateInfo stateInfo = mStateStack[i];
+            if (_fireTransition(table, stateInfo, event)) {
+                return HANDLED;
+            }
+            if (candidates != null) {
+                // Depths come leaf first, so the next candidate is the only one that can match.
+                if (next >= candidates.length || candidates[next] != i) {
+                    continue;
+                }
+                next++;
+            }
+            if (dbg) outputMessageLog(stateInfo.state.name(), event);
+            mCallingStateInfo = stateInfo;
+            if (stateInfo.state.processEvent(this, event)) {
+                mCallingStateInfo = null;
+                return HANDLED;
+            }
+        }
+        mCallingStateInfo = null;
+        return NOT_HANDLED;
+    }
+
+    // Takes the first transition of the state whose guard passes. Guards and actions run as if
+    // called from the state, so timeouts they arm belong to it.
+    @SuppressWarnings("unchecked")
+    private boolean _fireTransition(@NonNull TransitionTable<?> table, @NonNull StateInfo stateInfo,
+                                    @NonNull Event event) {
+        final TransitionTable.Transition[] transitions = table.transitions(stateInfo, event.what);
+        if (transitions == null) {
+            return NOT_HANDLED;
+        }
+        for (TransitionTable.Transition transition : transitions) {
+            mCallingStateInfo = stateInfo;
+            if (transition.guard != null && !transition.guard.test(this, event)) {
+                continue;
+            }
+            if (mDbg.get()) outputMessageLog(transition.source.name(), event);
+            if (transition.action != null) {
+                transition.action.run(this, event);
+            }
+            if (transition.target != null) {
+                transitionTo(transition.target);
+            }
+            mCallingStateInfo = null;
+            return HANDLED;
+        }
+        mCallingStateInfo = null;
+        return NOT_HANDLED;
+    }
+
+    // Offers the event to every region of the leaf, then applies the transitions they asked
+    // for on this thread; handled if any region handled it.
+    private boolean _dispatchRegions(@NonNull StateInfo leafStateInfo, @NonNull Event event) {
+        final ActiveRegion[] regions = mRegions[leafStateInfo.depth()];
+        final ForkJoinPool pool = mRegionPool;
+        mCallingStateInfo = leafStateInfo;
+        try {
+            if (pool == null || regions.length < 2) {
+                for (ActiveRegion region : regions) {
+                    mCallingRegion = region;
+                    region.handled = _dispatchRegion(region, event);
+                }
+                mCallingRegion = null;
+            } else {
+                for (int i = 1; i < regions.length; i++) {
+                    regions[i].event = event;
+                    regions[i].reinitialize();
+                    pool.execute(regions[i]);
+                }
+                RuntimeException error = null;
+                mCallingRegion = regions[0];
+                try {
+                    regions[0].handled = _dispatchRegion(regions[0], event);
+                } catch (RuntimeException e) {
+                    error = e;
+                }
+                mCallingRegion = null;
+                for (int i = 1; i < regions.length; i++) {
+                    try {
+                        regions[i].join();
+                    } catch (RuntimeException e) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                    regions[i].event = null;
+                }
+                if (error != null) {
+                    throw error;
+                }
+            }
+        } finally {
+            mCallingRegion = null;
+            // Raised in region order, whichever thread each region ran on.
+            for (ActiveRegion region : regions) {
+                if (!region.raised.isEmpty()) {
+                    mInternalEvents.addAll(region.raised);
+                    region.raised.clear();
+                }
+            }
+        }
+        boolean handled = NOT_HANDLED;
+        for (ActiveRegion region : regions) {
+            handled |= region.handled;
+            final AbstractState destState = region.destState;
+            if (destState == null) {
+                continue;
+            }
+            region.destState = null;
+            if (region.topology.find(destState) != null) {
+                _transitionRegion(region, destState, mReplaying);
+            } else {
+                mDestState = destState;
+            }
+        }
+        return handled;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean _dispatchRegion(@NonNull ActiveRegion region, @NonNull Event event) {
+        final boolean dbg = mDbg.get();
+        final StateTopology topology = region.topology;
+        if (topology.isTableDispatch()) {
+            for (int depth : topology.dispatchCandidates(region.stack[region.size - 1], event.what)) {
+                final AbstractState state = region.stack[depth].state;
+                if (dbg) outputMessageLog(state.name(), event);
+                if (state.processEvent(this, event)) {
+                    return HANDLED;
+                }
+            }
+            return NOT_HANDLED;
+        }
+        for (int i = region.size - 1; i >= 0; i--) {
+            final AbstractState state = region.stack[i].state;
+            if (dbg) outputMessageLog(state.name(), event);
+            if (state.processEvent(this, event)) {
+                return HANDLED;
+            }
+        }
+        return NOT_HANDLED;
+    }
+
+    // Enters the initial state of every region; silent skips their enter().
+    private void _enterRegions(@NonNull StateInfo stateInfo, boolean silent) {
+        final StateTopology[] topologies = stateInfo.regions;
+        ActiveRegion[] regions = mRegions[stateInfo.depth()];
+        if (regions == null || regions[0].owner != stateInfo) {
+            regions = new ActiveRegion[topologies.length];
+            for (int i = 0; i < regions.length; i++) {
+                regions[i] = new ActiveRegion(stateInfo, topologies[i]);
+            }
+            mRegions[stateInfo.depth()] = regions;
+        }
+        for (ActiveRegion region : regions) {
+            Arrays.fill(region.stack, 0, region.size, null);
+            region.size = 0;
+            _transitionRegion(region, region.topology.getInitialState(), silent);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void _exitRegions(int depth, boolean silent) {
+        final ActiveRegion[] regions = mRegions[depth];
+        final boolean dbg = mDbg.get();
+        for (int i = regions.length - 1; i >= 0; i--) {
+            final ActiveRegion region = regions[i];
+            mCallingRegion = region;
+            while (region.size > 0) {
+                final StateInfo stateInfo = region.stack[region.size - 1];
+                if (dbg) outputExitLog(stateInfo.state.name());
+                if (!silent) stateInfo.state.exit(this);
+                region.stack[--region.size] = null;
+            }
+            region.destState = null;
+        }
+        mCallingRegion = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void _transitionRegion(@NonNull ActiveRegion region, @NonNull AbstractState destState, boolean silent) {
+        final StateInfo destStateInfo = region.topology.find(destState);
+        if (destStateInfo == null) {
+            throw new RuntimeException("State not added.");
+        }
+        final int[] plan = region.topology.transitionPlan(
+                region.size == 0 ? null : region.stack[region.size - 1], destStateInfo);
+        final boolean dbg = mDbg.get();
+        mCallingRegion = region;
+        for (int i = plan[0]; i > 0; i--) {
+            final StateInfo stateInfo = region.stack[region.size - 1];
+            if (dbg) outputExitLog(stateInfo.state.name());
+            if (!silent) stateInfo.state.exit(this);
+            region.stack[--region.size] = null;
+        }
+        if (region.stack.length < region.size + plan.length - 1) {
+            region.stack = Arrays.copyOf(region.stack, region.size + plan.length - 1);
+        }
+        for (int i = 1; i < plan.length; i++) {
+            final StateInfo stateInfo = region.topology.get(plan[i]);
+            if (dbg) outputEnterLog(stateInfo.state.name());
+            if (!silent) stateInfo.state.enter(this);
+            region.stack[region.size++] = stateInfo;
+        }
+        mCallingRegion = null;
+        region.destState = null;
+    }
+
+    @NonNull
+    private List<AbstractState> _activeRegionStates() {
+        final List<AbstractState> ret = new ArrayList<>();
+        if (mStateStackSize == 0 || mStateStack[mStateStackSize - 1].regions == null) {
+            return ret;
+        }
+        for (ActiveRegion region : mRegions[mStateStackSize - 1]) {
+            ret.add(region.stack[region.size - 1].state);
+        }
+        return ret;
+    }
+
+    // On the machine thread: nothing queued, delayed or armed to fire, so saveState() output
+    // covers everything still to happen and the machine can be passivated.
+    boolean isQuiescent() {
+        if (mDispatcher.getPendingEventCount() != 0 || mMailbox.size() != 0) {
+            return false;
+        }
+        for (int i = 0; i < mStateStackSize; i++) {
+            if (mTimeouts[i] != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A region dispatched in parallel must not wait on, or queue work behind, its own machine.
+    private static void _checkNotInParallelRegion() {
+        if (sParallelRegion.get() != null) {
+            throw new IllegalStateException("Not allowed while regions are dispatched in parallel.");
+        }
+    }
+
+    // Events sent within a step, whether by a region on a pool thread or on this one, are
+    // raised: they never wait on the mailbox, which the machine thread cannot drain while it
+    // joins the regions, and run to completion within the step in the same order either way.
+    private boolean _raise(@NonNull Event event) {
+        final ActiveRegion region = sParallelRegion.get();
+        if (region != null && region.machine() == this) {
+            region.raised.add(event);
+            return true;
+        }
+        if (!mInStep || !mDispatcher.isCurrentThread()) {
+            return false;
+        }
+        if (mCallingRegion != null) {
+            mCallingRegion.raised.add(event);
+        } else {
+            mInternalEvents.offerLast(event);
+        }
+        return true;
+    }
+
+    private void _sendEvent(@NonNull Event event) {
+        if (_raise(event)) {
+            return;
+        }
+        if (mLanes.offer(event)) {
+            return;
+        }
+        if (!mMailbox.isBounded()) {
+            mDispatcher.sendEvent(event);
+            return;
+        }
+        final boolean currentThread = mDispatcher.isCurrentThread();
+        if (mMailbox.offer(event, !currentThread, currentThread) == Mailbox.REJECTED) {
+            throw new RejectedExecutionException("Mailbox full.");
+        }
+    }
+
+    // Entry point for events taken from the dispatcher; urgent events go first.
+    private void _dispatchEvent(@NonNull Event event) {
+        mLanes.drainUrgent();
+        _handleEvent(event);
+    }
+
+    // One run-to-completion step: the event, then every event raised on this thread while it ran,
+    // before anything else is taken from the dispatcher.
+    private boolean _handleEvent(@NonNull Event event) {
+        mInStep = true;
+        try {
+            final boolean handled = _step(event);
+            _drainInternalEvents();
+            return handled;
+        } finally {
+            mInStep = false;
+        }
+    }
+
+    private void _drainInternalEvents() {
+        Event event;
+        while (!mQuit && (event = mInternalEvents.pollFirst()) != null) {
+            try {
+                _step(event);
+            } finally {
+                event.recycle();
+            }
+        }
+    }
+
+    private boolean _step(@NonNull Event event) {
+        mCurrentEventBuffer.copyFrom(event);
+        mCurrentEvent = mCurrentEventBuffer;
+        mPublishedEvent.publish(mCurrentEventBuffer);
+        final StateMachineMetrics metrics = mMetrics;
+        final long startNanos = metrics == null ? 0 : System.nanoTime();
+        final EventJournal journal = mJournal;
+        if (journal != null) {
+            _onJournalEncodeFailed(journal.appendEvent(mCurrentEventBuffer));
+        }
+        final boolean handled = _processEvent(mCurrentEventBuffer);
+        if (mDestState != null) {
+            _performTransitions(mDestState);
+            mDestState = null;
+        }
+        if (journal != null && journal.isSnapshotDue()) {
+            _appendJournalSnapshot(journal);
+        }
+        if (metrics != null) {
+            metrics.onEvent(mCurrentEventBuffer.what, handled, System.nanoTime() - startNanos);
+        }
+        return handled;
+    }
+
+    private void _setJournal(@Nullable EventJournal journal) {
+        if (journal != null) {
+            journal.bind(mTopology.getStateCount());
+            _appendJournalSnapshot(journal);
+        }
+        mJournal = journal;
+    }
+
+    private void _startFromJournal(@NonNull EventJournal journal) {
+        journal.bind(mTopology.getStateCount());
+        if (journal.hasReplay()) {
+            try {
+                _replay(journal.reader());
+            } catch (IOException e) {
+                throw new RuntimeException("Journal replay failed.", e);
+            }
+        } else {
+            _start();
+        }
+        mJournal = journal;
+        _appendJournalSnapshot(journal);
+    }
+
+    private void _replay(@NonNull EventJournal.Reader reader) throws IOException {
+        mReplaying = true;
+        final Event event = mEventPool.obtain(0, 0, 0, null);
+        try {
+            int type = reader.next();
+            if (type == EventJournal.SNAPSHOT) {
+                _restoreActivePath(_journaledStateInfo(reader.readInt()));
+                for (int i = reader.readInt(); i > 0; i--) {
+                    final Event deferred = mEventPool.obtain(0, 0, 0, null);
+                    reader.readEvent(deferred);
+                    mDeferredEvents.add(deferred);
+                }
+                onRestoreJournalState(reader.readObject());
+                type = reader.next();
+            } else {
+                final AbstractState initialState = mInitialState != null ? mInitialState : mTopology.getInitialState();
+                final StateInfo initialStateInfo = initialState == null ? null : mTopology.find(initialState);
+                if (initialStateInfo == null) {
+                    throw new RuntimeException("Unset initial state.");
+                }
+                _restoreActivePath(initialStateInfo);
+            }
+            for (; type != -1; type = reader.next()) {
+                switch (type) {
+                    case EventJournal.EVENT:
+                        reader.readEvent(event);
+                        _handleEvent(event);
+                        break;
+                    case EventJournal.TRANSITION:
+                        final StateInfo leafStateInfo = _journaledStateInfo(reader.readInt());
+                        if (mStateStack[mStateStackSize - 1] != leafStateInfo) {
+                            _restoreActivePath(leafStateInfo);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } finally {
+            event.recycle();
+            mReplaying = false;
+        }
+        _publishSnapshot();
+    }
+
+    @NonNull
+    private StateInfo _journaledStateInfo(int index) {
+        if (index < 0 || index >= mTopology.getStateCount()) {
+            throw new IllegalStateException("Journal was written by a different topology.");
+        }
+        return mTopology.get(index);
+    }
+
+    // Activates the path to leafStateInfo without running any enter or exit.
+    private void _restoreActivePath(@NonNull StateInfo leafStateInfo) {
+        Arrays.fill(mStateStack, 0, mStateStackSize, null);
+        _ensureStackCapacity(leafStateInfo.depth() + 1);
+        for (int id = leafStateInfo.index; id >= 0; id = mTopology.parentIdOf(id)) {
+            final StateInfo stateInfo = mTopology.get(id);
+            mStateStack[stateInfo.depth()] = stateInfo;
+        }
+        mStateStackSize = leafStateInfo.depth() + 1;
+        if (leafStateInfo.regions != null) {
+            _enterRegions(leafStateInfo, true);
+        }
+    }
+
+    @NonNull
+    private byte[] _saveState(@NonNull EventJournal.Codec codec) {
+        if (mStateStackSize == 0) {
+            throw new IllegalStateException("Not started.");
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeInt(mTopology.getStateCount());
+            final StateInfo leafStateInfo = mStateStack[mStateStackSize - 1];
+            out.writeInt(leafStateInfo.index);
+            final ActiveRegion[] regions = leafStateInfo.regions == null ? null : mRegions[leafStateInfo.depth()];
+            out.writeInt(regions == null ? 0 : regions.length);
+            if (regions != null) {
+                for (ActiveRegion region : regions) {
+                    out.writeInt(region.stack[region.size - 1].index);
+                }
+            }
+            out.writeInt(mDeferredEvents.size());
+            for (Event event = mDeferredEvents.head(); event != null; event = event.deferredNext) {
+                out.writeInt(event.what);
+                out.writeInt(event.arg1);
+                out.writeInt(event.arg2);
+                out.writeLong(event.longArg);
+                out.writeDouble(event.doubleArg);
+                _writeObject(out, codec, event.obj);
+            }
+            int timeoutCount = 0;
+            for (int i = 0; i < mStateStackSize; i++) {
+                for (StateTimeout timeout = mTimeouts[i]; timeout != null; timeout = timeout.scopeNext) {
+                    timeoutCount++;
+                }
+            }
+            out.writeInt(timeoutCount);
+            for (int i = 0; i < mStateStackSize; i++) {
+                for (StateTimeout timeout = mTimeouts[i]; timeout != null; timeout = timeout.scopeNext) {
+                    out.writeInt(i);
+                    out.writeInt(timeout.what);
+                    out.writeInt(timeout.arg1);
+                    out.writeInt(timeout.arg2);
+                    _writeObject(out, codec, timeout.obj);
+                    out.writeLong(timeout.wheel.remainingMillis(timeout));
+                }
+            }
+            _writeObject(out, codec, onSaveJournalState());
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void _restoreState(@NonNull byte[] state, @NonNull EventJournal.Codec codec) {
+        if (mStateStackSize != 0) {
+            throw new IllegalStateException("Already started.");
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+        try {
+            if (in.readInt() != STATE_MAGIC) {
+                throw new IllegalArgumentException("Not a saved state.");
+            }
+            if (in.readInt() != STATE_VERSION) {
+                throw new IllegalArgumentException("Unsupported saved state version.");
+            }
+            if (in.readInt() != mTopology.getStateCount()) {
+                throw new IllegalArgumentException("State was saved by a different topology.");
+            }
+            final int leafIndex = in.readInt();
+            if (leafIndex < 0 || leafIndex >= mTopology.getStateCount()) {
+                throw new IllegalArgumentException("State was saved by a different topology.");
+            }
+            final StateInfo leafStateInfo = mTopology.get(leafIndex);
+            _restoreActivePath(leafStateInfo);
+            final int regionCount = in.readInt();
+            if (regionCount != (leafStateInfo.regions == null ? 0 : leafStateInfo.regions.length)) {
+                throw new IllegalArgumentException("State was saved by a different topology.");
+            }
+            for (int i = 0; i < regionCount; i++) {
+                final ActiveRegion region = mRegions[leafStateInfo.depth()][i];
+                final int regionLeafIndex = in.readInt();
+                if (regionLeafIndex < 0 || regionLeafIndex >= region.topology.getStateCount()) {
+                    throw new IllegalArgumentException("State was saved by a different topology.");
+                }
+                _transitionRegion(region, region.topology.getState(regionLeafIndex), true);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final Event event = mEventPool.obtain(in.readInt(), in.readInt(), in.readInt(), null);
+                event.longArg = in.readLong();
+                event.doubleArg = in.readDouble();
+                event.obj = _readObject(in, codec);
+                mDeferredEvents.add(event);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final int depth = in.readInt();
+                if (depth < 0 || depth >= mStateStackSize) {
+                    throw new IllegalArgumentException("Corrupt saved state.");
+                }
+                final int what = in.readInt();
+                final int arg1 = in.readInt();
+                final int arg2 = in.readInt();
+                final Object obj = _readObject(in, codec);
+                _armTimeout(depth, what, arg1, arg2, obj, in.readLong());
+            }
+            onRestoreJournalState(_readObject(in, codec));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Corrupt saved state.", e);
+        }
+        _onDeferredDepthChanged();
+        _publishSnapshot();
+    }
+
+    private static void _writeObject(@NonNull DataOutputStream out, @NonNull EventJournal.Codec codec,
+                                     @Nullable Object obj) throws IOException {
+        if (obj == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = codec.encode(obj);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static Object _readObject(@NonNull DataInputStream in, @NonNull EventJournal.Codec codec)
+            throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return codec.decode(bytes);
+    }
+
+    private void _appendJournalSnapshot(@NonNull EventJournal journal) {
+        if (mStateStackSize == 0) {
+            return;
+        }
+        _onJournalEncodeFailed(journal.appendSnapshot(mStateStack[mStateStackSize - 1].index,
+                mDeferredEvents.head(), onSaveJournalState()));
+    }
+
+    // The journal has already recorded the payload as missing; the event is still processed.
+    private void _onJournalEncodeFailed(@Nullable RuntimeException error) {
+        if (error != null) {
+            outputLog("Journal cannot encode a payload: " + error);
+        }
+    }
+
+    private void _handleBatch(@NonNull Event[] events, int index, @Nullable Runnable completion) {
+        mBatchEvents = events;
+        mBatchCompletion = completion;
+        boolean requeued = false;
+        try {
+            while (index < events.length) {
+                final Event event = events[index++];
+                mBatchIndex = index;
+                _handleEvent(event);
+                event.recycle();
+                if (mBatchEvents == null) {
+                    requeued = true;
+                    break;
+                }
+            }
+        } finally {
+            mBatchEvents = null;
+            mBatchCompletion = null;
+            if (!requeued && completion != null) {
+                completion.run();
+            }
+        }
+    }
+
+    // Deferred events are replayed ahead of the rest of a batch, as if the batch had been
+    // sent one event at a time.
+    private void _requeueBatchRemainder() {
+        final Event[] events = mBatchEvents;
+        if (events == null || mBatchIndex >= events.length) {
+            return;
+        }
+        final int index = mBatchIndex;
+        final Runnable completion = mBatchCompletion;
+        mBatchEvents = null;
+        mDispatcher.postAtFrontOfQueue(() -> _handleBatch(events, index, completion));
+    }
+
+    // Within a step the deferred events go ahead of the events raised so far, so the state they
+    // were deferred for handles them before a raised event can move the machine on.
+    private void _moveDeferredEventAtFrontOfQueue() {
+        _requeueBatchRemainder();
+        final int count = mDeferredEvents.size();
+        final Event[] events = mDeferredEvents.drain();
+        if (mInStep) {
+            for (int i = count - 1; i >= 0; i--) {
+                mInternalEvents.offerFirst(events[i]);
+            }
+        } else {
+            mDispatcher.sendEventsAtFrontOfQueue(events, count);
+        }
+        Arrays.fill(events, 0, count, null);
+        _onDeferredDepthChanged();
+    }
+
+    // Posts r, which unlocks callback, and waits for it. If the machine quits or its dispatcher
+    // dies first, lock() throws a CancellationException instead of waiting forever.
+    private void _awaitDispatcher(@NonNull SyncCallback<?> callback, @NonNull Runnable r, boolean urgent) {
+        mPendingCalls.add(callback);
+        try {
+            // Checked after adding: quit() fails every callback it can see once mQuit is set.
+            if (mQuit) {
+                throw new CancellationException("Quit.");
+            }
+            if (urgent) {
+                mDispatcher.postAtFrontOfQueue(r);
+            } else {
+                mDispatcher.post(r);
+            }
+            callback.lock();
+        } finally {
+            mPendingCalls.remove(callback);
+        }
+    }
+
+    private void _cancelPendingCalls() {
+        final Iterator<SyncCallback<?>> iterator = mPendingCalls.iterator();
+        while (iterator.hasNext()) {
+            final SyncCallback<?> callback = iterator.next();
+            iterator.remove();
+            callback.fail(new CancellationException("Quit."));
+        }
+    }
+
+    private void _onDispatcherDied(@NonNull Throwable error) {
+        outputLog("Dispatcher died: " + error);
+        mQuit = true;
+        mMailbox.close();
+        _cancelPendingResults();
+        _cancelPendingCalls();
+    }
+
+    private void _cancelPendingResults() {
+        final Iterator<CompletableFuture<EventResult>> iterator = mPendingResults.iterator();
+        while (iterator.hasNext()) {
+            final CompletableFuture<EventResult> future = iterator.next();
+            iterator.remove();
+            future.completeExceptionally(new CancellationException("Quit."));
+        }
+    }
+
+    private boolean _hasInternalEvent(int what) {
+        for (Event event : mInternalEvents) {
+            if (event.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -1 removes them all.
+    private void _removeInternalEvents(int what) {
+        final Iterator<Event> iterator = mInternalEvents.iterator();
+        while (iterator.hasNext()) {
+            final Event event = iterator.next();
+            if (what == -1 || event.what == what) {
+                iterator.remove();
+                event.recycle();
+            }
+        }
+    }
+
+    private void _deferEvent(@NonNull Event event) {
+        Event newEvent = mEventPool.obtain(0, 0, 0, null);
+        newEvent.copyFrom(event);
+        _addDeferred(newEvent);
+    }
+
+    private void _addDeferred(@NonNull Event event) {
+        mDeferredEvents.add(event);
+        _onDeferredDepthChanged();
+    }
+
+    private void _removeDeferredMessages(int what) {
+        mDeferredEvents.remove(what);
+        _onDeferredDepthChanged();
+    }
+
+    private void _onDeferredDepthChanged() {
+        final StateMachineMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onDeferredDepth(mDeferredEvents.size());
+        }
+    }
+
+    private void _setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            mMetrics = null;
+            return;
+        }
+        if (mMetrics != null) {
+            return;
+        }
+        final StateMachineMetrics metrics = new StateMachineMetrics(mDispatcher, mMailbox);
+        for (int i = 0; i < mTopology.getStateCount(); i++) {
+            metrics.onStateAdded(mTopology.get(i).state, i);
+        }
+        metrics.onDeferredDepth(mDeferredEvents.size());
+        mMetrics = metrics;
+    }
+
+    private void _startTimeout(int what, int arg1, int arg2, @Nullable Object obj, long delayMillis) {
+        if (mReplaying) {
+            return;
+        }
+        final int scope;
+        if (mCallingStateInfo != null) {
+            scope = mCallingStateInfo.depth();
+        } else if (mStateStackSize == 0) {
+            throw new IllegalStateException("Not started.");
+        } else {
+            scope = mStateStackSize - 1;
+        }
+        for (StateTimeout timeout = mTimeouts[scope]; timeout != null; timeout = timeout.scopeNext) {
+            if (timeout.what == what) {
+                _cancelTimeout(timeout);
+                break;
+            }
+        }
+        _armTimeout(scope, what, arg1, arg2, obj, delayMillis);
+    }
+
+    private void _armTimeout(int scope, int what, int arg1, int arg2, @Nullable Object obj,
+                             long delayMillis) {
+        StateTimeout timeout = mFreeTimeouts;
+        if (timeout == null) {
+            timeout = new StateTimeout();
+        } else {
+            mFreeTimeouts = timeout.scopeNext;
+        }
+        timeout.wheel = mTimerWheel;
+        timeout.scope = scope;
+        timeout.what = what;
+        timeout.arg1 = arg1;
+        timeout.arg2 = arg2;
+        timeout.obj = obj;
+        timeout.cancelled = false;
+        timeout.scopePrev = null;
+        timeout.scopeNext = mTimeouts[scope];
+        if (mTimeouts[scope] != null) {
+            mTimeouts[scope].scopePrev = timeout;
+        }
+        mTimeouts[scope] = timeout;
+        mTimerWheel.schedule(timeout, delayMillis);
+    }
+
+    private void _cancelTimeout(int what) {
+        for (int i = mStateStackSize - 1; i >= 0; i--) {
+            StateTimeout timeout = mTimeouts[i];
+            while (timeout != null) {
+                final StateTimeout next = timeout.scopeNext;
+                if (timeout.what == what) {
+                    _cancelTimeout(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private void _cancelTimeouts(int depth) {
+        while (mTimeouts[depth] != null) {
+            _cancelTimeout(mTimeouts[depth]);
+        }
+    }
+
+    // A timeout the wheel has already fired is only marked; its pending delivery frees it.
+    private void _cancelTimeout(@NonNull StateTimeout timeout) {
+        _unlinkTimeout(timeout);
+        if (timeout.wheel.cancel(timeout)) {
+            _freeTimeout(timeout);
+        } else {
+            timeout.cancelled = true;
+        }
+    }
+
+    private void _unlinkTimeout(@NonNull StateTimeout timeout) {
+        final int scope = timeout.scope;
+        if (scope < 0) {
+            return;
+        }
+        if (timeout.scopePrev == null) {
+            mTimeouts[scope] = timeout.scopeNext;
+        } else {
+            timeout.scopePrev.scopeNext = timeout.scopeNext;
+        }
+        if (timeout.scopeNext != null) {
+            timeout.scopeNext.scopePrev = timeout.scopePrev;
+        }
+        timeout.scope = -1;
+        timeout.scopePrev = null;
+        timeout.scopeNext = null;
+    }
+
+    private void _freeTimeout(@NonNull StateTimeout timeout) {
+        timeout.obj = null;
+        timeout.cancelled = false;
+        timeout.scopeNext = mFreeTimeouts;
+        mFreeTimeouts = timeout;
+    }
+
+    private void _deliverTimeout(@NonNull StateTimeout timeout) {
+        if (timeout.cancelled) {
+            _freeTimeout(timeout);
+            return;
+        }
+        _unlinkTimeout(timeout);
+        final Event event = mEventPool.obtain(timeout.what, timeout.arg1, timeout.arg2, timeout.obj);
+        _freeTimeout(timeout);
+        try {
+            _handleEvent(event);
+        } finally {
+            event.recycle();
+        }
+    }
+
+    private boolean _contains(@NonNull AbstractState state) {
+        boolean ret = false;
+        for (int i = mStateStackSize - 1; i >= 0; i--) {
+            if (mStateStack[i].state == state) {
+                ret = true;
+                break;
+            }
+        }
+        return ret;
+    }
+
+    private final class ActiveRegion extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @NonNull
+        private final StateInfo owner;
+        @NonNull
+        private final StateTopology topology;
+        @NonNull
+        private StateInfo[] stack = new StateInfo[4];
+        private int size;
+        @Nullable
+        private AbstractState destState;
+        private boolean handled;
+        @Nullable
+        private Event event;
+        // Events the region sent during the current dispatch; only its own thread adds to it.
+        @NonNull
+        private final ArrayList<Event> raised = new ArrayList<>();
+
+        ActiveRegion(@NonNull StateInfo owner, @NonNull StateTopology topology) {
+            this.owner = owner;
+            this.topology = topology;
+        }
+
+        @NonNull
+        AbstractStateMachine machine() {
+            return AbstractStateMachine.this;
+        }
+
+        @Override
+        protected void compute() {
+            sParallelRegion.set(this);
+            try {
+                handled = _dispatchRegion(this, event);
+            } finally {
+                sParallelRegion.set(null);
+            }
+        }
+    }
+
+    private final class StateTimeout extends TimerWheel.Timer implements Runnable {
+        @NonNull
+        private TimerWheel wheel = mTimerWheel;
+        // Depth of the state that armed it, -1 once unlinked.
+        private int scope = -1;
+        @Nullable
+        private StateTimeout scopePrev;
+        @Nullable
+        private StateTimeout scopeNext;
+        private int what;
+        private int arg1;
+        private int arg2;
+        @Nullable
+        private Object obj;
+        private boolean cancelled;
+
+        @Override
+        void onExpired() {
+            mDispatcher.post(this);
+        }
+
+        @Override
+        public void run() {
+            _deliverTimeout(this);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// FIFO of deferred events, doubly linked through the events themselves, with a chain per
+// what so that removing a code touches only its own events. Chains are indexed by what like
+// the dispatch tables and are reset in place, so deferring and replaying allocate nothing once
+// each code has its chain; codes outside that range share a small map.
+final class DeferredEvents {
+
+    @NonNull
+    private Chain[] mChains = new Chain[16];
+    @Nullable
+    private HashMap<Integer, Chain> mOtherChains;
+    @NonNull
+    private Event[] mDrained = new Event[16];
+    @Nullable
+    private Event mHead;
+    @Nullable
+    private Event mTail;
+    private int mSize;
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    // Oldest event; the rest follow through deferredNext.
+    @Nullable
+    Event head() {
+        return mHead;
+    }
+
+    int count(int what) {
+        final Chain chain = _find(what);
+        return chain == null ? 0 : chain.count;
+    }
+
+    void add(@NonNull Event event) {
+        event.deferredPrev = mTail;
+        event.deferredNext = null;
+        if (mTail == null) {
+            mHead = event;
+        } else {
+            mTail.deferredNext = event;
+        }
+        mTail = event;
+        mSize++;
+        final Chain chain = _obtain(event.what);
+        if (chain.tail == null) {
+            chain.head = event;
+        } else {
+            chain.tail.deferredSameNext = event;
+        }
+        chain.tail = event;
+        chain.count++;
+    }
+
+    void remove(int what) {
+        final Chain chain = _find(what);
+        if (chain == null) {
+            return;
+        }
+        Event event = chain.head;
+        while (event != null) {
+            final Event sameNext = event.deferredSameNext;
+            _unlink(event);
+            event.recycle();
+            event = sameNext;
+        }
+        mSize -= chain.count;
+        chain.reset();
+    }
+
+    // Empties the store into the first size() slots of a shared array, in FIFO order.
+    @NonNull
+    Event[] drain() {
+        if (mDrained.length < mSize) {
+            mDrained = Arrays.copyOf(mDrained, Math.max(mSize, mDrained.length * 2));
+        }
+        int count = 0;
+        Event event = mHead;
+        while (event != null) {
+            final Event next = event.deferredNext;
+            final Chain chain = _find(event.what);
+            if (chain != null) {
+                chain.reset();
+            }
+            event.deferredPrev = null;
+            event.deferredNext = null;
+            event.deferredSameNext = null;
+            mDrained[count++] = event;
+            event = next;
+        }
+        mHead = null;
+        mTail = null;
+        mSize = 0;
+        return mDrained;
+    }
+
+    void clear() {
+        final int count = mSize;
+        final Event[] events = drain();
+        for (int i = 0; i < count; i++) {
+            events[i].recycle();
+            events[i] = null;
+        }
+    }
+
+    @Nullable
+    private Chain _find(int what) {
+        if (what >= 0 && what < AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE) {
+            return what < mChains.length ? mChains[what] : null;
+        }
+        return mOtherChains == null ? null : mOtherChains.get(what);
+    }
+
+    @NonNull
+    private Chain _obtain(int what) {
+        Chain chain = _find(what);
+        if (chain != null) {
+            return chain;
+        }
+        chain = new Chain();
+        if (what >= 0 && what < AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE) {
+            if (what >= mChains.length) {
+                mChains = Arrays.copyOf(mChains,
+                        Math.min(AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE, Math.max(what + 1, mChains.length * 2)));
+            }
+            mChains[what] = chain;
+        } else {
+            if (mOtherChains == null) {
+                mOtherChains = new HashMap<>();
+            }
+            mOtherChains.put(what, chain);
+        }
+        return chain;
+    }
+
+    private void _unlink(@NonNull Event event) {
+        final Event prev = event.deferredPrev;
+        final Event next = event.deferredNext;
+        if (prev == null) {
+            mHead = next;
+        } else {
+            prev.deferredNext = next;
+        }
+        if (next == null) {
+            mTail = prev;
+        } else {
+            next.deferredPrev = prev;
+        }
+        event.deferredPrev = null;
+        event.deferredNext = null;
+        event.deferredSameNext = null;
+    }
+
+    private static final class Chain {
+        @Nullable
+        Event head;
+        @Nullable
+        Event tail;
+        int count;
+
+        void reset() {
+            head = null;
+            tail = null;
+            count = 0;
+        }
+    }
+}
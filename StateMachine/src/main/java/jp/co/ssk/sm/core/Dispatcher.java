@@ -0,0 +1,50 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+@SuppressWarnings("unused")
+public interface Dispatcher {
+
+    interface Callback {
+        void dispatchEvent(@NonNull Event event);
+
+        // Called on the dispatcher's thread when an error ends it; nothing posted runs after this.
+        default void onDied(@NonNull Throwable error) {
+        }
+    }
+
+    interface Factory {
+        @NonNull
+        Dispatcher create(@NonNull String name, @NonNull Callback callback);
+    }
+
+    boolean isCurrentThread();
+
+    void post(@NonNull Runnable r);
+
+    void postAtFrontOfQueue(@NonNull Runnable r);
+
+    void sendEvent(@NonNull Event event);
+
+    void sendEventAtFrontOfQueue(@NonNull Event event);
+
+    // Places events[0, count) at the front of the queue, keeping their order.
+    default void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            sendEventAtFrontOfQueue(events[i]);
+        }
+    }
+
+    void sendEventDelayed(@NonNull Event event, long delayMillis);
+
+    boolean hasEvents(int what);
+
+    // Events and callbacks waiting to run, or -1 if the queue cannot report it.
+    default int getPendingEventCount() {
+        return -1;
+    }
+
+    void removeEvents(int what);
+
+    void quit();
+}
@@ -0,0 +1,73 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class Dispatchers {
+
+    private Dispatchers() {
+    }
+
+    @NonNull
+    public static Dispatcher.Factory thread() {
+        return ThreadDispatcher::new;
+    }
+
+    @NonNull
+    public static Dispatcher.Factory mpsc(@NonNull final MpscDispatcher.WaitStrategy waitStrategy) {
+        return (name, callback) -> new MpscDispatcher(name, callback, waitStrategy);
+    }
+
+    @NonNull
+    public static Dispatcher.Factory virtualThread() {
+        if (!VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported.");
+        }
+        return (name, callback) -> new ThreadDispatcher(name, callback, VirtualThreads.factory());
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.isSupported();
+    }
+
+    @NonNull
+    public static Dispatcher.Factory pooled() {
+        return pooled(SharedPool.EXECUTOR, SharedPool.SCHEDULER);
+    }
+
+    @NonNull
+    public static Dispatcher.Factory pooled(@NonNull Executor executor, @NonNull ScheduledExecutorService scheduler) {
+        return pooled(executor, scheduler, ExecutorDispatcher.DEFAULT_THROUGHPUT);
+    }
+
+    @NonNull
+    public static Dispatcher.Factory pooled(@NonNull final Executor executor,
+                                            @NonNull final ScheduledExecutorService scheduler,
+                                            final int throughput) {
+        return (name, callback) -> new ExecutorDispatcher(executor, scheduler, callback, throughput);
+    }
+
+    @NonNull
+    static ThreadFactory daemonThreadFactory(@NonNull final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class SharedPool {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), daemonThreadFactory("StateMachine-Pool"));
+        static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+                daemonThreadFactory("StateMachine-Timer"));
+    }
+}
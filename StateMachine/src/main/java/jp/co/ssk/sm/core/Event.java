@@ -0,0 +1,136 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class Event {
+
+    private static final int MAX_POOL_SIZE = 50;
+    private static final Object sPoolSync = new Object();
+    @Nullable
+    private static Event sPool;
+    private static int sPoolSize = 0;
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    // Primitive slots, so timestamps and readings need not be boxed into obj.
+    public long longArg;
+    public double doubleArg;
+    @Nullable
+    public Object obj;
+    // Free list of the machine that handed this event out; null for the shared pool.
+    @Nullable
+    EventPool pool;
+    @Nullable
+    Runnable callback;
+    long when;
+    long seq;
+    @Nullable
+    Event next;
+    @Nullable
+    volatile Event mailboxNext;
+    @Nullable
+    Event deferredPrev;
+    @Nullable
+    Event deferredNext;
+    @Nullable
+    Event deferredSameNext;
+
+    @NonNull
+    public static Event obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                Event event = sPool;
+                sPool = event.next;
+                event.next = null;
+                sPoolSize--;
+                return event;
+            }
+        }
+        return new Event();
+    }
+
+    @NonNull
+    public static Event obtain(int what) {
+        return obtain(what, 0, 0, null);
+    }
+
+    @NonNull
+    public static Event obtain(int what, int arg1, int arg2, @Nullable Object obj) {
+        Event event = obtain();
+        event.what = what;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.obj = obj;
+        return event;
+    }
+
+    @NonNull
+    static Event obtain(@NonNull Runnable callback) {
+        Event event = obtain();
+        event.callback = callback;
+        return event;
+    }
+
+    public void recycle() {
+        what = 0;
+        arg1 = 0;
+        arg2 = 0;
+        longArg = 0;
+        doubleArg = 0;
+        obj = null;
+        callback = null;
+        when = 0;
+        seq = 0;
+        mailboxNext = null;
+        deferredPrev = null;
+        deferredNext = null;
+        deferredSameNext = null;
+        if (pool != null) {
+            pool.release(this);
+            return;
+        }
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                next = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    public void copyFrom(@NonNull Event o) {
+        what = o.what;
+        arg1 = o.arg1;
+        arg2 = o.arg2;
+        longArg = o.longArg;
+        doubleArg = o.doubleArg;
+        obj = o.obj;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    public <T> T payload() {
+        return (T) obj;
+    }
+
+    @Override
+    public String toString() {
+        String str = "{what=" + what;
+        str += ", arg1=" + arg1;
+        str += ", arg2=" + arg2;
+        if (longArg != 0) {
+            str += ", longArg=" + longArg;
+        }
+        if (doubleArg != 0) {
+            str += ", doubleArg=" + doubleArg;
+        }
+        if (obj != null) {
+            str += ", obj=" + obj;
+        }
+        str += '}';
+        return str;
+    }
+}
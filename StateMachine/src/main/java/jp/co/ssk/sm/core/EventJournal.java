@@ -0,0 +1,649 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+// Append-only binary journal of the events a machine processes and the transitions it makes.
+// Records are [length][type][payload][crc32] and are group-committed: buffered, then written
+// when the buffer fills or the commit interval elapses, on a journal I/O thread. A torn tail
+// is truncated on open. Each snapshot rolls the journal over to a new file that starts with
+// it, since nothing before the last snapshot is ever replayed. A payload the codec cannot
+// encode is recorded as missing and replays as null.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class EventJournal implements Closeable {
+
+    public interface Codec {
+        @NonNull
+        byte[] encode(@NonNull Object obj);
+
+        @NonNull
+        Object decode(@NonNull byte[] bytes);
+    }
+
+    @NonNull
+    public static final Codec SERIALIZABLE = new Codec() {
+        @NonNull
+        @Override
+        public byte[] encode(@NonNull Object obj) {
+            if (!(obj instanceof Serializable)) {
+                throw new IllegalArgumentException("Not serializable: " + obj.getClass().getName());
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(obj);
+                out.close();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Not serializable: " + obj.getClass().getName(), e);
+            }
+        }
+
+        @NonNull
+        @Override
+        public Object decode(@NonNull byte[] bytes) {
+            try {
+                return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalArgumentException("Corrupt journal object.", e);
+            }
+        }
+    };
+
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+
+    static final byte EVENT = 1;
+    static final byte TRANSITION = 2;
+    static final byte SNAPSHOT = 3;
+
+    private static final int MAGIC = 0x53534b4a;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int RECORD_OVERHEAD = 4 + 4;
+    // Length written in place of a payload the codec failed to encode.
+    private static final int UNENCODED = -2;
+    @NonNull
+    private static final byte[] UNENCODED_BYTES = new byte[0];
+
+    // Group commits run here rather than on the timer wheel's thread, which also fires the
+    // state timeouts of every machine.
+    @NonNull
+    private static final Executor sIoExecutor =
+            Executors.newSingleThreadExecutor(Dispatchers.daemonThreadFactory("StateMachine-Journal"));
+
+    @NonNull
+    private final File mFile;
+    @NonNull
+    private FileChannel mChannel;
+    @NonNull
+    private final Codec mCodec;
+    private final int mSnapshotInterval;
+    private final long mCommitIntervalMillis;
+    @NonNull
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    @NonNull
+    private final CRC32 mCrc = new CRC32();
+    // Holds one record at a time while the file is scanned or replayed, so neither maps more
+    // than a record of it.
+    @NonNull
+    private ByteBuffer mRecord = ByteBuffer.allocate(256);
+    @NonNull
+    private final Runnable mCommitTask = this::_commit;
+    @NonNull
+    private final Runnable mFinishRollOverTask = this::_finishRollOver;
+    @NonNull
+    private final TimerWheel.Timer mCommitTimer = new TimerWheel.Timer() {
+        @Override
+        void onExpired() {
+            sIoExecutor.execute(mCommitTask);
+        }
+    };
+    private int mStateCount;
+    private int mRecordStart;
+    private long mReplayStart;
+    private long mReplayEnd;
+    private int mEventsSinceSnapshot;
+    private boolean mCommitScheduled;
+    private boolean mClosed;
+    // The file a rollover writes to until the I/O thread has forced it and renamed it over mFile.
+    @Nullable
+    private File mPendingRename;
+    private int mRollOverCount;
+    // The first codec failure since the last append returned, if any.
+    @Nullable
+    private RuntimeException mEncodeError;
+    @Nullable
+    private IOException mError;
+
+    private EventJournal(@NonNull File file, @NonNull FileChannel channel, @NonNull Codec codec,
+                         int snapshotInterval, long commitIntervalMillis) {
+        mFile = file;
+        mChannel = channel;
+        mCodec = codec;
+        mSnapshotInterval = snapshotInterval;
+        mCommitIntervalMillis = commitIntervalMillis;
+    }
+
+    @NonNull
+    public static EventJournal open(@NonNull File file) throws IOException {
+        return open(file, SERIALIZABLE, DEFAULT_SNAPSHOT_INTERVAL, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    @NonNull
+    public static EventJournal open(@NonNull File file, @NonNull Codec codec, int snapshotInterval,
+                                    long commitIntervalMillis) throws IOException {
+        if (snapshotInterval <= 0) {
+            throw new IllegalArgumentException("snapshotInterval must be positive.");
+        }
+        _recoverRollOver(file, codec);
+        final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        final EventJournal journal = new EventJournal(file, channel, codec, snapshotInterval, commitIntervalMillis);
+        try {
+            journal._recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    @Nullable
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    // Writes buffered records to the file.
+    public synchronized void flush() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        _flush();
+    }
+
+    // Writes buffered records and forces them to the storage device.
+    public synchronized void sync() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        _flush();
+        mChannel.force(false);
+        _renamePending();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            _flush();
+            if (mPendingRename != null) {
+                mChannel.force(false);
+                _renamePending();
+            }
+        } finally {
+            mClosed = true;
+            TimerWheel.shared().cancel(mCommitTimer);
+            mChannel.close();
+        }
+    }
+
+    // Binds the journal to a machine topology, writing the header of a new journal.
+    synchronized void bind(int stateCount) {
+        if (mStateCount == 0) {
+            mStateCount = stateCount;
+            mBuffer.putInt(MAGIC).putInt(VERSION).putInt(stateCount);
+            _scheduleCommit();
+        } else if (mStateCount != stateCount) {
+            throw new IllegalStateException("Journal was written by a different topology.");
+        }
+    }
+
+    boolean hasReplay() {
+        return mReplayEnd > mReplayStart;
+    }
+
+    @NonNull
+    Reader reader() {
+        return new Reader(mReplayStart, mReplayEnd);
+    }
+
+    // Returns why the payload could not be encoded, or null. Such an event is still recorded,
+    // with its payload marked missing, so the failure never stops the machine.
+    @Nullable
+    synchronized RuntimeException appendEvent(@NonNull Event event) {
+        if (mClosed) {
+            return null;
+        }
+        final byte[] obj = _encode(event.obj);
+        final ByteBuffer buffer = _begin(EVENT, _eventSize(obj));
+        _putEvent(buffer, event, obj);
+        _end(buffer);
+        mEventsSinceSnapshot++;
+        return _takeEncodeError();
+    }
+
+    synchronized void appendTransition(int leafIndex) {
+        if (mClosed) {
+            return;
+        }
+        final ByteBuffer buffer = _begin(TRANSITION, 4);
+        buffer.putInt(leafIndex);
+        _end(buffer);
+    }
+
+    // Returns why a payload or the state could not be encoded, or null, as appendEvent() does.
+    @Nullable
+    synchronized RuntimeException appendSnapshot(int leafIndex, @Nullable Event deferred, @Nullable Object state) {
+        if (mClosed) {
+            return null;
+        }
+        int count = 0;
+        int size = 4 + 4 + 4;
+        for (Event event = deferred; event != null; event = event.deferredNext) {
+            count++;
+        }
+        final byte[][] objs = new byte[count][];
+        int i = 0;
+        for (Event event = deferred; event != null; event = event.deferredNext, i++) {
+            objs[i] = _encode(event.obj);
+            size += _eventSize(objs[i]);
+        }
+        final byte[] encodedState = _encode(state);
+        size += _bytesSize(encodedState) - 4;
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + RECORD_OVERHEAD + 1 + size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(mStateCount);
+        mRecordStart = buffer.position();
+        buffer.putInt(1 + size);
+        buffer.put(SNAPSHOT);
+        buffer.putInt(leafIndex);
+        buffer.putInt(count);
+        i = 0;
+        for (Event event = deferred; event != null; event = event.deferredNext, i++) {
+            _putEvent(buffer, event, objs[i]);
+        }
+        _putBytes(buffer, encodedState);
+        _putCrc(buffer);
+        buffer.flip();
+        try {
+            _rollOver(buffer);
+        } catch (IOException e) {
+            _fail(e);
+        }
+        mEventsSinceSnapshot = 0;
+        return _takeEncodeError();
+    }
+
+    synchronized boolean isSnapshotDue() {
+        return mEventsSinceSnapshot >= mSnapshotInterval;
+    }
+
+    @NonNull
+    private ByteBuffer _begin(byte type, int payloadSize) {
+        final int size = 4 + 1 + payloadSize + 4;
+        ByteBuffer buffer = mBuffer;
+        if (buffer.remaining() < size) {
+            try {
+                _flush();
+            } catch (IOException e) {
+                _fail(e);
+            }
+            if (size > buffer.capacity()) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+        mRecordStart = buffer.position();
+        buffer.putInt(1 + payloadSize);
+        buffer.put(type);
+        return buffer;
+    }
+
+    private void _end(@NonNull ByteBuffer buffer) {
+        _putCrc(buffer);
+        if (buffer != mBuffer) {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+            } catch (IOException e) {
+                _fail(e);
+            }
+            return;
+        }
+        _scheduleCommit();
+    }
+
+    private void _putCrc(@NonNull ByteBuffer buffer) {
+        final int from = mRecordStart + 4;
+        mCrc.reset();
+        mCrc.update(buffer.array(), buffer.arrayOffset() + from, buffer.position() - from);
+        buffer.putInt((int) mCrc.getValue());
+    }
+
+    // Starts a sibling file holding only the header and the snapshot, and appends to it from
+    // now on. The I/O thread forces it and renames it over the journal, so the machine thread
+    // never waits for the device; until then open() prefers the sibling once its snapshot is
+    // intact. A sibling not renamed yet is rewritten in place, as the journal is still whole.
+    // Records still buffered precede the snapshot and are dropped.
+    private void _rollOver(@NonNull ByteBuffer contents) throws IOException {
+        mBuffer.clear();
+        mRollOverCount++;
+        if (mPendingRename != null) {
+            mChannel.truncate(0);
+            while (contents.hasRemaining()) {
+                mChannel.write(contents);
+            }
+            sIoExecutor.execute(mFinishRollOverTask);
+            return;
+        }
+        final File next = _nextFile(mFile);
+        final FileChannel channel = new RandomAccessFile(next, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        final FileChannel previous = mChannel;
+        mChannel = channel;
+        mPendingRename = next;
+        try {
+            previous.close();
+        } catch (IOException ignored) {
+        }
+        sIoExecutor.execute(mFinishRollOverTask);
+    }
+
+    // Forces outside the lock, so appends carry on meanwhile. The snapshot was written before
+    // this was scheduled, so it is on the device before the rename; if the sibling was
+    // rewritten meanwhile, the task scheduled by that rewrite renames it instead.
+    private void _finishRollOver() {
+        final FileChannel channel;
+        final int rollOverCount;
+        synchronized (this) {
+            if (mPendingRename == null || mClosed) {
+                return;
+            }
+            channel = mChannel;
+            rollOverCount = mRollOverCount;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (!mClosed) {
+                    _fail(e);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            if (mClosed || rollOverCount != mRollOverCount) {
+                return;
+            }
+            try {
+                _renamePending();
+            } catch (IOException e) {
+                _fail(e);
+            }
+        }
+    }
+
+    private void _renamePending() throws IOException {
+        final File next = mPendingRename;
+        if (next == null) {
+            return;
+        }
+        if (!next.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile + ".");
+        }
+        mPendingRename = null;
+    }
+
+    // A sibling left by a crash mid-rollover replaces the journal if its snapshot is intact;
+    // otherwise the journal it was to replace is still complete and the sibling is dropped.
+    private static void _recoverRollOver(@NonNull File file, @NonNull Codec codec) throws IOException {
+        final File next = _nextFile(file);
+        if (!next.exists()) {
+            return;
+        }
+        boolean intact = false;
+        try (FileChannel channel = new RandomAccessFile(next, "rw").getChannel()) {
+            final EventJournal journal = new EventJournal(next, channel, codec, 1, 0);
+            journal._recover();
+            intact = journal.hasReplay();
+        } catch (IOException ignored) {
+        }
+        if (intact ? !next.renameTo(file) : !next.delete()) {
+            throw new IOException("Cannot recover " + next + ".");
+        }
+    }
+
+    @NonNull
+    private static File _nextFile(@NonNull File file) {
+        return new File(file.getPath() + ".next");
+    }
+
+    @Nullable
+    private byte[] _encode(@Nullable Object obj) {
+        if (obj == null) {
+            return null;
+        }
+        try {
+            return mCodec.encode(obj);
+        } catch (RuntimeException e) {
+            if (mEncodeError == null) {
+                mEncodeError = e;
+            }
+            return UNENCODED_BYTES;
+        }
+    }
+
+    @Nullable
+    private RuntimeException _takeEncodeError() {
+        final RuntimeException error = mEncodeError;
+        mEncodeError = null;
+        return error;
+    }
+
+    private void _scheduleCommit() {
+        if (!mCommitScheduled && !mClosed) {
+            mCommitScheduled = true;
+            TimerWheel.shared().schedule(mCommitTimer, mCommitIntervalMillis);
+        }
+    }
+
+    private synchronized void _commit() {
+        mCommitScheduled = false;
+        if (mClosed) {
+            return;
+        }
+        try {
+            _flush();
+        } catch (IOException e) {
+            _fail(e);
+        }
+    }
+
+    private void _flush() throws IOException {
+        if (mBuffer.position() == 0) {
+            return;
+        }
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+        } finally {
+            mBuffer.clear();
+        }
+    }
+
+    private void _fail(@NonNull IOException e) {
+        mError = e;
+        mClosed = true;
+        TimerWheel.shared().cancel(mCommitTimer);
+        try {
+            mChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Validates the existing records, truncates a torn tail and finds where replay begins.
+    private void _recover() throws IOException {
+        final long size = mChannel.size();
+        if (size < HEADER_SIZE) {
+            mChannel.truncate(0);
+            return;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        _readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not an event journal.");
+        }
+        mStateCount = header.getInt();
+        long replayStart = HEADER_SIZE;
+        long position = HEADER_SIZE;
+        while (_readRecord(position, size)) {
+            if (mRecord.get(0) == SNAPSHOT) {
+                replayStart = position;
+            }
+            position += RECORD_OVERHEAD + mRecord.limit();
+        }
+        mReplayStart = replayStart;
+        mReplayEnd = position;
+        mChannel.truncate(mReplayEnd);
+        mChannel.position(mReplayEnd);
+    }
+
+    // Reads the record at position into mRecord, limited to its type and payload; false at the
+    // end or at a torn or corrupt record.
+    private boolean _readRecord(long position, long end) throws IOException {
+        if (end - position < RECORD_OVERHEAD + 1) {
+            return false;
+        }
+        ByteBuffer record = mRecord;
+        record.clear().limit(4);
+        _readFully(record, position);
+        final int length = record.getInt(0);
+        if (length < 1 || length > end - position - RECORD_OVERHEAD) {
+            return false;
+        }
+        if (record.capacity() < length + 4) {
+            record = ByteBuffer.allocate(Math.max(length + 4, record.capacity() * 2));
+            mRecord = record;
+        }
+        record.clear().limit(length + 4);
+        _readFully(record, position + 4);
+        mCrc.reset();
+        mCrc.update(record.array(), record.arrayOffset(), length);
+        if ((int) mCrc.getValue() != record.getInt(length)) {
+            return false;
+        }
+        record.position(0).limit(length);
+        return true;
+    }
+
+    private void _readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of journal.");
+            }
+            position += read;
+        }
+    }
+
+    private static int _eventSize(@Nullable byte[] obj) {
+        return 4 + 4 + 4 + 8 + 8 + _bytesSize(obj);
+    }
+
+    private static int _bytesSize(@Nullable byte[] bytes) {
+        return 4 + (bytes == null || bytes == UNENCODED_BYTES ? 0 : bytes.length);
+    }
+
+    private static void _putEvent(@NonNull ByteBuffer buffer, @NonNull Event event, @Nullable byte[] obj) {
+        buffer.putInt(event.what);
+        buffer.putInt(event.arg1);
+        buffer.putInt(event.arg2);
+        buffer.putLong(event.longArg);
+        buffer.putDouble(event.doubleArg);
+        _putBytes(buffer, obj);
+    }
+
+    private static void _putBytes(@NonNull ByteBuffer buffer, @Nullable byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else if (bytes == UNENCODED_BYTES) {
+            buffer.putInt(UNENCODED);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    final class Reader {
+        private long mNext;
+        private final long mEnd;
+
+        private Reader(long start, long end) {
+            mNext = start;
+            mEnd = end;
+        }
+
+        // Type of the next record, or -1 at the end.
+        int next() throws IOException {
+            if (!_readRecord(mNext, mEnd)) {
+                return -1;
+            }
+            mNext += RECORD_OVERHEAD + mRecord.limit();
+            return mRecord.get();
+        }
+
+        int readInt() {
+            return mRecord.getInt();
+        }
+
+        void readEvent(@NonNull Event event) {
+            event.what = mRecord.getInt();
+            event.arg1 = mRecord.getInt();
+            event.arg2 = mRecord.getInt();
+            event.longArg = mRecord.getLong();
+            event.doubleArg = mRecord.getDouble();
+            event.obj = readObject();
+        }
+
+        @Nullable
+        Object readObject() {
+            final int length = mRecord.getInt();
+            if (length < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            mRecord.get(bytes);
+            return mCodec.decode(bytes);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Per-code send policies of one machine. A coalesced code has at most one pending event, whose
+// arguments later sends overwrite; urgent events wait in their own FIFO lane, which the machine
+// drains before each event taken from the dispatcher. Events under a policy are held here and
+// only a token runnable goes through the dispatcher, so this works with any Dispatcher. Each
+// coalesced event gets its own pooled token, which a removed event leaves behind empty, so a
+// later send of the code is delivered at its own place in the queue.
+final class EventLanes {
+
+    static final int COALESCED = 1;
+    static final int URGENT = 1 << 1;
+
+    @NonNull
+    private final Dispatcher mDispatcher;
+    @NonNull
+    private final Dispatcher.Callback mCallback;
+    @NonNull
+    private volatile byte[] mPolicies = new byte[0];
+    @NonNull
+    private final ArrayDeque<Event> mUrgentEvents = new ArrayDeque<>();
+    private volatile int mUrgentCount;
+    @NonNull
+    private Event[] mPendingEvents = new Event[0];
+    @NonNull
+    private Delivery[] mDeliveries = new Delivery[0];
+    @NonNull
+    private final ArrayDeque<Delivery> mFreeDeliveries = new ArrayDeque<>();
+    @NonNull
+    private final Runnable mUrgentDrain = this::drainUrgent;
+
+    EventLanes(@NonNull Dispatcher dispatcher, @NonNull Dispatcher.Callback callback) {
+        mDispatcher = dispatcher;
+        mCallback = callback;
+    }
+
+    synchronized void setPolicy(int what, int policy, boolean enabled) {
+        if (what < 0 || what >= AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE) {
+            throw new IllegalArgumentException("Event code out of range: " + what);
+        }
+        byte[] policies = mPolicies;
+        if (what >= policies.length) {
+            policies = Arrays.copyOf(policies, what + 1);
+        } else {
+            policies = policies.clone();
+        }
+        policies[what] = (byte) (enabled ? policies[what] | policy : policies[what] & ~policy);
+        if ((policies[what] & COALESCED) != 0 && what >= mPendingEvents.length) {
+            mPendingEvents = Arrays.copyOf(mPendingEvents, what + 1);
+            mDeliveries = Arrays.copyOf(mDeliveries, what + 1);
+        }
+        mPolicies = policies;
+    }
+
+    boolean isUrgent(int what) {
+        final byte[] policies = mPolicies;
+        return what >= 0 && what < policies.length && (policies[what] & URGENT) != 0;
+    }
+
+    // Takes the event if its code has a policy; false leaves sending it to the caller.
+    boolean offer(@NonNull Event event) {
+        final byte[] policies = mPolicies;
+        final int what = event.what;
+        final int policy = what >= 0 && what < policies.length ? policies[what] : 0;
+        if (policy == 0) {
+            return false;
+        }
+        final Runnable token;
+        synchronized (this) {
+            if ((policy & COALESCED) != 0) {
+                final Event pending = mPendingEvents[what];
+                if (pending != null) {
+                    pending.copyFrom(event);
+                    event.recycle();
+                    return true;
+                }
+                mPendingEvents[what] = event;
+            }
+            if ((policy & URGENT) != 0) {
+                mUrgentEvents.offerLast(event);
+                mUrgentCount = mUrgentEvents.size();
+                token = mUrgentDrain;
+            } else {
+                final Delivery delivery = mFreeDeliveries.isEmpty() ? new Delivery() : mFreeDeliveries.pollFirst();
+                delivery.event = event;
+                mDeliveries[what] = delivery;
+                token = delivery;
+            }
+        }
+        mDispatcher.post(token);
+        return true;
+    }
+
+    // Runs on the machine thread.
+    void drainUrgent() {
+        while (mUrgentCount != 0) {
+            final Event event;
+            synchronized (this) {
+                event = mUrgentEvents.pollFirst();
+                mUrgentCount = mUrgentEvents.size();
+                if (event == null) {
+                    return;
+                }
+                _unsetPending(event);
+            }
+            _deliver(event);
+        }
+    }
+
+    synchronized boolean has(int what) {
+        if (what >= 0 && what < mPendingEvents.length && mPendingEvents[what] != null) {
+            return true;
+        }
+        for (Event event : mUrgentEvents) {
+            if (event.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void remove(int what) {
+        if (what >= 0 && what < mPendingEvents.length && mPendingEvents[what] != null) {
+            final Event pending = mPendingEvents[what];
+            mPendingEvents[what] = null;
+            if (mDeliveries[what] != null) {
+                mDeliveries[what].event = null;
+                mDeliveries[what] = null;
+            }
+            mUrgentEvents.remove(pending);
+            pending.recycle();
+        }
+        final Iterator<Event> iterator = mUrgentEvents.iterator();
+        while (iterator.hasNext()) {
+            final Event event = iterator.next();
+            if (event.what == what) {
+                iterator.remove();
+                event.recycle();
+            }
+        }
+        mUrgentCount = mUrgentEvents.size();
+    }
+
+    private void _unsetPending(@NonNull Event event) {
+        final int what = event.what;
+        if (what >= 0 && what < mPendingEvents.length && mPendingEvents[what] == event) {
+            mPendingEvents[what] = null;
+        }
+    }
+
+    private void _deliver(@NonNull Event event) {
+        try {
+            mCallback.dispatchEvent(event);
+        } finally {
+            event.recycle();
+        }
+    }
+
+    private final class Delivery implements Runnable {
+        @Nullable
+        Event event;
+
+        @Override
+        public void run() {
+            drainUrgent();
+            final Event e;
+            synchronized (EventLanes.this) {
+                e = event;
+                event = null;
+                mFreeDeliveries.offerLast(this);
+                if (e == null) {
+                    return;
+                }
+                mPendingEvents[e.what] = null;
+                mDeliveries[e.what] = null;
+            }
+            _deliver(e);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+// Free list of one machine's events. Its lock is only shared by that machine's thread and the
+// threads sending to it, instead of every machine in the process contending on the global pool.
+final class EventPool {
+
+    private static final int MAX_POOL_SIZE = 256;
+
+    @Nullable
+    private Event mHead;
+    private int mSize;
+
+    @NonNull
+    Event obtain(int what, int arg1, int arg2, @Nullable Object obj) {
+        Event event;
+        synchronized (this) {
+            event = mHead;
+            if (event != null) {
+                mHead = event.next;
+                event.next = null;
+                mSize--;
+            }
+        }
+        if (event == null) {
+            event = new Event();
+            event.pool = this;
+        }
+        event.what = what;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.obj = obj;
+        return event;
+    }
+
+    // Called by Event.recycle with the fields already cleared.
+    void release(@NonNull Event event) {
+        synchronized (this) {
+            if (mSize < MAX_POOL_SIZE) {
+                event.next = mHead;
+                mHead = event;
+                mSize++;
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+// Outcome of one event sent with sendMessageAsync, taken once its transition has finished.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class EventResult {
+
+    private final boolean mHandled;
+    @NonNull
+    private final StateSnapshot mSnapshot;
+
+    EventResult(boolean handled, @NonNull StateSnapshot snapshot) {
+        mHandled = handled;
+        mSnapshot = snapshot;
+    }
+
+    public boolean isHandled() {
+        return mHandled;
+    }
+
+    @NonNull
+    public AbstractState getCurrentState() {
+        return mSnapshot.getCurrentState();
+    }
+
+    @NonNull
+    public StateSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "EventResult{handled=" + mHandled + ", state=" + mSnapshot + "}";
+    }
+}
@@ -0,0 +1,301 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ExecutorDispatcher implements Dispatcher, Runnable {
+
+    public static final int DEFAULT_THROUGHPUT = 64;
+
+    private static final ThreadLocal<ExecutorDispatcher> sCurrent = new ThreadLocal<>();
+    private static final Comparator<Event> DELAYED_ORDER = (lhs, rhs) -> {
+        if (lhs.when != rhs.when) {
+            return lhs.when - rhs.when < 0 ? -1 : 1;
+        }
+        return Long.compare(lhs.seq, rhs.seq);
+    };
+
+    @NonNull
+    private final Executor mExecutor;
+    @NonNull
+    private final ScheduledExecutorService mScheduler;
+    @NonNull
+    private final Callback mCallback;
+    private final int mThroughput;
+    @NonNull
+    private final ReentrantLock mLock = new ReentrantLock();
+    @NonNull
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    @NonNull
+    private final PriorityQueue<Event> mDelayedQueue = new PriorityQueue<>(11, DELAYED_ORDER);
+    @NonNull
+    private final Runnable mFlushDelayed = this::_flushDelayed;
+    private long mSequence;
+    private boolean mScheduled;
+    private boolean mQuit;
+
+    public ExecutorDispatcher(@NonNull Executor executor, @NonNull ScheduledExecutorService scheduler,
+                              @NonNull Callback callback) {
+        this(executor, scheduler, callback, DEFAULT_THROUGHPUT);
+    }
+
+    public ExecutorDispatcher(@NonNull Executor executor, @NonNull ScheduledExecutorService scheduler,
+                              @NonNull Callback callback, int throughput) {
+        if (throughput <= 0) {
+            throw new IllegalArgumentException("throughput must be positive.");
+        }
+        mExecutor = executor;
+        mScheduler = scheduler;
+        mCallback = callback;
+        mThroughput = throughput;
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return sCurrent.get() == this;
+    }
+
+    @Override
+    public void post(@NonNull Runnable r) {
+        sendEvent(Event.obtain(r));
+    }
+
+    @Override
+    public void postAtFrontOfQueue(@NonNull Runnable r) {
+        sendEventAtFrontOfQueue(Event.obtain(r));
+    }
+
+    @Override
+    public void sendEvent(@NonNull Event event) {
+        final boolean schedule;
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            mQueue.offerLast(event);
+            schedule = _markScheduled();
+        } finally {
+            mLock.unlock();
+        }
+        if (schedule) {
+            mExecutor.execute(this);
+        }
+    }
+
+    @Override
+    public void sendEventAtFrontOfQueue(@NonNull Event event) {
+        final boolean schedule;
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            mQueue.offerFirst(event);
+            schedule = _markScheduled();
+        } finally {
+            mLock.unlock();
+        }
+        if (schedule) {
+            mExecutor.execute(this);
+        }
+    }
+
+    @Override
+    public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        final boolean schedule;
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                mQueue.offerFirst(events[i]);
+            }
+            schedule = _markScheduled();
+        } finally {
+            mLock.unlock();
+        }
+        if (schedule) {
+            mExecutor.execute(this);
+        }
+    }
+
+    @Override
+    public void sendEventDelayed(@NonNull Event event, long delayMillis) {
+        if (delayMillis <= 0) {
+            sendEvent(event);
+            return;
+        }
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            event.when = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            event.seq = mSequence++;
+            mDelayedQueue.offer(event);
+        } finally {
+            mLock.unlock();
+        }
+        mScheduler.schedule(mFlushDelayed, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public boolean hasEvents(int what) {
+        mLock.lock();
+        try {
+            return _contains(mQueue, what) || _contains(mDelayedQueue, what);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int getPendingEventCount() {
+        mLock.lock();
+        try {
+            return mQueue.size() + mDelayedQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeEvents(int what) {
+        mLock.lock();
+        try {
+            _remove(mQueue, what);
+            _remove(mDelayedQueue, what);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void quit() {
+        mLock.lock();
+        try {
+            mQuit = true;
+            mQueue.clear();
+            mDelayedQueue.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        final ExecutorDispatcher previous = sCurrent.get();
+        sCurrent.set(this);
+        boolean drained = false;
+        try {
+            for (int i = 0; i < mThroughput; i++) {
+                final Event event = _poll();
+                if (null == event) {
+                    drained = true;
+                    return;
+                }
+                try {
+                    if (null != event.callback) {
+                        event.callback.run();
+                    } else {
+                        mCallback.dispatchEvent(event);
+                    }
+                } finally {
+                    event.recycle();
+                }
+            }
+        } finally {
+            sCurrent.set(previous);
+            // Also after a callback threw, which the executor reports, so one failing event
+            // does not leave the dispatcher marked scheduled with nothing running it.
+            if (!drained) {
+                _reschedule();
+            }
+        }
+    }
+
+    private boolean _markScheduled() {
+        if (mScheduled) {
+            return false;
+        }
+        mScheduled = true;
+        return true;
+    }
+
+    private Event _poll() {
+        mLock.lock();
+        try {
+            final Event event = mQuit ? null : mQueue.pollFirst();
+            if (null == event) {
+                mScheduled = false;
+            }
+            return event;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void _reschedule() {
+        final boolean schedule;
+        mLock.lock();
+        try {
+            schedule = !mQuit && !mQueue.isEmpty();
+            mScheduled = schedule;
+        } finally {
+            mLock.unlock();
+        }
+        if (schedule) {
+            mExecutor.execute(this);
+        }
+    }
+
+    private void _flushDelayed() {
+        boolean schedule = false;
+        mLock.lock();
+        try {
+            final long now = System.nanoTime();
+            Event delayed;
+            while (null != (delayed = mDelayedQueue.peek()) && delayed.when - now <= 0) {
+                mQueue.offerLast(mDelayedQueue.poll());
+                schedule = true;
+            }
+            schedule = schedule && _markScheduled();
+        } finally {
+            mLock.unlock();
+        }
+        if (schedule) {
+            mExecutor.execute(this);
+        }
+    }
+
+    private static boolean _contains(@NonNull Iterable<Event> queue, int what) {
+        for (Event event : queue) {
+            if (null == event.callback && event.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void _remove(@NonNull Iterable<Event> queue, int what) {
+        Iterator<Event> it = queue.iterator();
+        while (it.hasNext()) {
+            Event event = it.next();
+            if (null == event.callback && event.what == what) {
+                it.remove();
+                event.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of nanosecond latencies in the HdrHistogram style: every power of two
+// is split into SUB_BUCKET_COUNT linear buckets, so values are kept within 1/8 relative error.
+// Recorded by a single thread with ordered stores; read from any thread.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    @NonNull
+    private final AtomicLongArray mCounts;
+    @NonNull
+    private final AtomicLong mCount = new AtomicLong();
+    @NonNull
+    private final AtomicLong mSum = new AtomicLong();
+    @NonNull
+    private final AtomicLong mMax = new AtomicLong();
+
+    LatencyHistogram() {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    private LatencyHistogram(@NonNull LatencyHistogram source) {
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.lazySet(i, source.mCounts.get(i));
+        }
+        mCount.lazySet(source.mCount.get());
+        mSum.lazySet(source.mSum.get());
+        mMax.lazySet(source.mMax.get());
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        final int index = _bucketIndex(nanos);
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        mCount.lazySet(mCount.get() + 1);
+        mSum.lazySet(mSum.get() + nanos);
+        if (nanos > mMax.get()) {
+            mMax.lazySet(nanos);
+        }
+    }
+
+    @NonNull
+    public LatencyHistogram snapshot() {
+        return new LatencyHistogram(this);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        final long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    // Upper bound of the bucket holding the given percentile, capped at the recorded maximum.
+    public long getValueAtPercentile(double percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(_bucketUpperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    private static int _bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    private static long _bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final long base = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,328 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One machine per key, created on the first event sent to it. Keys are hashed onto a fixed set
+// of shards, each a single worker thread shared by all of its machines, so a key's events keep
+// their order and a machine costs no thread. A machine that stayed quiescent for a whole idle
+// period is passivated: its saveState() output is kept and the machine dropped, then restored
+// by the next event sent to its key.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class MachineRegistry<K, M extends AbstractStateMachine> {
+
+    public interface Factory<K, M extends AbstractStateMachine> {
+        // Builds the machine for key on the given dispatchers, then starts it, or restores it
+        // with restoreState(state) when state is not null.
+        @NonNull
+        M create(@NonNull K key, @NonNull Dispatcher.Factory dispatcherFactory, @Nullable byte[] state);
+    }
+
+    @NonNull
+    private final Factory<K, M> mFactory;
+    @NonNull
+    private final Shard<K, M>[] mShards;
+    @NonNull
+    private final ScheduledExecutorService mScheduler;
+    @Nullable
+    private final ScheduledFuture<?> mSweep;
+
+    // idleMillis of 0 or less never passivates on its own; passivateIdle() still can.
+    @SuppressWarnings("unchecked")
+    public MachineRegistry(int shardCount, long idleMillis, @NonNull Factory<K, M> factory) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive.");
+        }
+        mFactory = factory;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(
+                Dispatchers.daemonThreadFactory("StateMachine-Registry-Timer"));
+        mShards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard<>(Executors.newSingleThreadExecutor(
+                    Dispatchers.daemonThreadFactory("StateMachine-Shard" + i)), mScheduler);
+        }
+        mSweep = idleMillis > 0
+                ? mScheduler.scheduleWithFixedDelay(this::passivateIdle, idleMillis, idleMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    public void sendMessage(@NonNull K key, int what) {
+        sendMessage(key, what, 0, 0, null);
+    }
+
+    public void sendMessage(@NonNull K key, int what, int arg1) {
+        sendMessage(key, what, arg1, 0, null);
+    }
+
+    public void sendMessage(@NonNull K key, int what, int arg1, int arg2) {
+        sendMessage(key, what, arg1, arg2, null);
+    }
+
+    // The machine is resolved under the shard lock but sent to outside it, so a sender parked on
+    // a full mailbox does not hold up the other keys of the shard. Until the event is queued, the
+    // entry's sender count keeps the machine from being passivated under it.
+    public void sendMessage(@NonNull K key, int what, int arg1, int arg2, @Nullable Object obj) {
+        final Shard<K, M> shard = _shard(key);
+        final Entry<M> entry;
+        final M machine;
+        shard.lock.lock();
+        try {
+            entry = _activate(shard, key);
+            machine = entry.machine;
+            entry.senders.incrementAndGet();
+        } finally {
+            shard.lock.unlock();
+        }
+        try {
+            machine.sendMessage(what, arg1, arg2, obj);
+        } finally {
+            entry.senders.decrementAndGet();
+        }
+    }
+
+    public void sendMessage(@NonNull K key, int what, @Nullable Object obj) {
+        sendMessage(key, what, 0, 0, obj);
+    }
+
+    public void sendMessage(@NonNull K key, int what, long longArg, double doubleArg) {
+        final Shard<K, M> shard = _shard(key);
+        final Entry<M> entry;
+        final M machine;
+        shard.lock.lock();
+        try {
+            entry = _activate(shard, key);
+            machine = entry.machine;
+            entry.senders.incrementAndGet();
+        } finally {
+            shard.lock.unlock();
+        }
+        try {
+            machine.sendEvent(machine.obtainEvent(what, longArg, doubleArg));
+        } finally {
+            entry.senders.decrementAndGet();
+        }
+    }
+
+    // The live machine for key, activating it if needed. It may be passivated again once idle,
+    // so hold on to the key rather than the machine.
+    @NonNull
+    public M get(@NonNull K key) {
+        final Shard<K, M> shard = _shard(key);
+        shard.lock.lock();
+        try {
+            return _activate(shard, key).machine;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public boolean contains(@NonNull K key) {
+        final Shard<K, M> shard = _shard(key);
+        shard.lock.lock();
+        try {
+            return shard.entries.containsKey(key);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public boolean isActive(@NonNull K key) {
+        final Shard<K, M> shard = _shard(key);
+        shard.lock.lock();
+        try {
+            final Entry<M> entry = shard.entries.get(key);
+            return entry != null && entry.machine != null;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Quits the machine for key, if active, and forgets any state kept for it.
+    public void remove(@NonNull K key) {
+        final Shard<K, M> shard = _shard(key);
+        final M machine;
+        shard.lock.lock();
+        try {
+            final Entry<M> entry = shard.entries.remove(key);
+            if (entry == null || entry.machine == null) {
+                return;
+            }
+            machine = entry.machine;
+            entry.machine = null;
+            shard.activeCount--;
+        } finally {
+            shard.lock.unlock();
+        }
+        machine.quit();
+    }
+
+    public int size() {
+        int ret = 0;
+        for (Shard<K, M> shard : mShards) {
+            shard.lock.lock();
+            try {
+                ret += shard.entries.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return ret;
+    }
+
+    public int getActiveCount() {
+        int ret = 0;
+        for (Shard<K, M> shard : mShards) {
+            shard.lock.lock();
+            try {
+                ret += shard.activeCount;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return ret;
+    }
+
+    // Passivates every machine not sent to since the previous call and quiescent now. Runs every
+    // idle period on its own; call it directly to shed memory sooner, e.g. on a trim request.
+    public void passivateIdle() {
+        for (Shard<K, M> shard : mShards) {
+            final List<Entry<M>> idle = new ArrayList<>();
+            final List<M> machines = new ArrayList<>();
+            shard.lock.lock();
+            try {
+                for (Entry<M> entry : shard.entries.values()) {
+                    if (entry.machine == null || entry.passivating) {
+                        continue;
+                    }
+                    if (entry.touched) {
+                        entry.touched = false;
+                    } else {
+                        entry.passivating = true;
+                        idle.add(entry);
+                        machines.add(entry.machine);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            for (int i = 0; i < idle.size(); i++) {
+                final Entry<M> entry = idle.get(i);
+                final M machine = machines.get(i);
+                machine.getDispatcher().post(() -> _passivate(shard, entry, machine));
+            }
+        }
+    }
+
+    public void shutdown() {
+        if (mSweep != null) {
+            mSweep.cancel(false);
+        }
+        for (Shard<K, M> shard : mShards) {
+            final List<M> machines = new ArrayList<>();
+            shard.lock.lock();
+            try {
+                for (Entry<M> entry : shard.entries.values()) {
+                    if (entry.machine != null) {
+                        machines.add(entry.machine);
+                    }
+                }
+                shard.entries.clear();
+                shard.activeCount = 0;
+            } finally {
+                shard.lock.unlock();
+            }
+            for (M machine : machines) {
+                machine.quit();
+            }
+            shard.executor.shutdown();
+        }
+        mScheduler.shutdown();
+    }
+
+    @NonNull
+    private Shard<K, M> _shard(@NonNull K key) {
+        final int h = key.hashCode();
+        return mShards[((h ^ (h >>> 16)) & 0x7fffffff) % mShards.length];
+    }
+
+    // Called with the shard lock held; the entry's machine is then set.
+    @NonNull
+    private Entry<M> _activate(@NonNull Shard<K, M> shard, @NonNull K key) {
+        Entry<M> entry = shard.entries.get(key);
+        if (entry == null) {
+            entry = new Entry<>();
+            shard.entries.put(key, entry);
+        }
+        entry.touched = true;
+        if (entry.machine == null) {
+            final byte[] state = entry.state;
+            entry.state = null;
+            entry.machine = mFactory.create(key, shard.dispatcherFactory, state);
+            shard.activeCount++;
+        }
+        return entry;
+    }
+
+    // Runs on the machine's thread. The shard lock keeps any sender from resolving the machine
+    // behind the snapshot; if a sender holds it, or resolved the machine and is still sending,
+    // the machine is left for the next sweep.
+    private void _passivate(@NonNull Shard<K, M> shard, @NonNull Entry<M> entry, @NonNull M machine) {
+        if (!shard.lock.tryLock()) {
+            entry.passivating = false;
+            return;
+        }
+        try {
+            entry.passivating = false;
+            if (entry.machine != machine || entry.touched || entry.senders.get() != 0 || !machine.isQuiescent()) {
+                return;
+            }
+            entry.state = machine.saveState();
+            entry.machine = null;
+            shard.activeCount--;
+            machine.quit();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private static final class Shard<K, M extends AbstractStateMachine> {
+        @NonNull
+        final ReentrantLock lock = new ReentrantLock();
+        @NonNull
+        final Map<K, Entry<M>> entries = new HashMap<>();
+        @NonNull
+        final ExecutorService executor;
+        @NonNull
+        final Dispatcher.Factory dispatcherFactory;
+        int activeCount;
+
+        Shard(@NonNull ExecutorService executor, @NonNull ScheduledExecutorService scheduler) {
+            this.executor = executor;
+            dispatcherFactory = Dispatchers.pooled(executor, scheduler);
+        }
+    }
+
+    // A live machine, or the state it was passivated with; guarded by the shard lock.
+    private static final class Entry<M> {
+        @Nullable
+        M machine;
+        @Nullable
+        byte[] state;
+        boolean touched;
+        volatile boolean passivating;
+        @NonNull
+        final AtomicInteger senders = new AtomicInteger();
+    }
+}
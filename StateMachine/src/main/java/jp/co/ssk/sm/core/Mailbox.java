@@ -0,0 +1,218 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// Bounded FIFO of one machine's sent events. Events stay here and a pooled token runnable is
+// posted for each, which delivers that event when it runs, so the bound and the overflow
+// policies hold whatever the Dispatcher queues internally. A dropped or removed event leaves
+// its token behind empty, rather than letting it deliver a later event ahead of its turn.
+final class Mailbox {
+
+    static final int QUEUED = 0;
+    static final int DROPPED = 1;
+    static final int FULL = 2;
+    static final int REJECTED = 3;
+
+    @NonNull
+    private final Dispatcher mDispatcher;
+    @NonNull
+    private final Dispatcher.Callback mCallback;
+    @NonNull
+    private final ArrayDeque<Delivery> mDeliveries = new ArrayDeque<>();
+    @NonNull
+    private final ArrayDeque<Delivery> mFreeDeliveries = new ArrayDeque<>();
+    private volatile int mCapacity;
+    private int mOverflowPolicy;
+    private int mWaiters;
+    private boolean mClosed;
+    private volatile long mDroppedCount;
+    @Nullable
+    private AbstractStateMachine.DemandListener mDemandListener;
+    private int mReleased;
+
+    Mailbox(@NonNull Dispatcher dispatcher, @NonNull Dispatcher.Callback callback) {
+        mDispatcher = dispatcher;
+        mCallback = callback;
+    }
+
+    boolean isBounded() {
+        return mCapacity > 0;
+    }
+
+    synchronized void setCapacity(int capacity, int overflowPolicy) {
+        mCapacity = Math.max(capacity, 0);
+        mOverflowPolicy = overflowPolicy;
+        notifyAll();
+    }
+
+    synchronized int size() {
+        return mDeliveries.size();
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    // wait lets a full BLOCK mailbox park the caller; overflow lets the event in regardless,
+    // for the machine's own sends, which must never park the thread that drains the mailbox.
+    int offer(@NonNull Event event, boolean wait, boolean overflow) {
+        final Delivery delivery;
+        synchronized (this) {
+            while (!mClosed && mCapacity > 0 && mDeliveries.size() >= mCapacity) {
+                if (mOverflowPolicy == AbstractStateMachine.OVERFLOW_DROP_OLDEST) {
+                    mDeliveries.pollFirst().cancel();
+                    mDroppedCount = mDroppedCount + 1;
+                    break;
+                }
+                if (mOverflowPolicy == AbstractStateMachine.OVERFLOW_DROP_NEWEST) {
+                    event.recycle();
+                    mDroppedCount = mDroppedCount + 1;
+                    return DROPPED;
+                }
+                if (mOverflowPolicy == AbstractStateMachine.OVERFLOW_REJECT) {
+                    event.recycle();
+                    return REJECTED;
+                }
+                if (overflow) {
+                    break;
+                }
+                if (!wait) {
+                    event.recycle();
+                    return FULL;
+                }
+                mWaiters++;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    event.recycle();
+                    return FULL;
+                } finally {
+                    mWaiters--;
+                }
+            }
+            if (mClosed) {
+                event.recycle();
+                return DROPPED;
+            }
+            delivery = mFreeDeliveries.isEmpty() ? new Delivery() : mFreeDeliveries.pollFirst();
+            delivery.event = event;
+            mDeliveries.offerLast(delivery);
+        }
+        mDispatcher.post(delivery);
+        return QUEUED;
+    }
+
+    synchronized boolean has(int what) {
+        for (Delivery delivery : mDeliveries) {
+            if (delivery.event.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void remove(int what) {
+        final Iterator<Delivery> iterator = mDeliveries.iterator();
+        while (iterator.hasNext()) {
+            final Delivery delivery = iterator.next();
+            if (delivery.event.what == what) {
+                iterator.remove();
+                delivery.cancel();
+            }
+        }
+        if (mWaiters > 0) {
+            notifyAll();
+        }
+    }
+
+    // Runs on the machine thread; the listener first gets the room left now.
+    void setDemandListener(@Nullable AbstractStateMachine.DemandListener listener) {
+        final int demand;
+        synchronized (this) {
+            mDemandListener = listener;
+            mReleased = 0;
+            demand = mCapacity > 0 ? Math.max(mCapacity - mDeliveries.size(), 0) : Integer.MAX_VALUE;
+        }
+        if (listener != null && demand > 0) {
+            listener.onDemand(demand);
+        }
+    }
+
+    // Wakes blocked producers; whatever is sent afterwards is dropped.
+    synchronized void close() {
+        mClosed = true;
+        for (Delivery delivery : mDeliveries) {
+            delivery.cancel();
+        }
+        mDeliveries.clear();
+        notifyAll();
+    }
+
+    // Runs on the machine thread. Tokens normally run in the order their events were queued, so
+    // this is the head; a producer that lost the race to post after queueing is found further on.
+    private void _deliver(@NonNull Delivery delivery) {
+        final Event event;
+        synchronized (this) {
+            event = delivery.event;
+            delivery.event = null;
+            mFreeDeliveries.offerLast(delivery);
+            if (event == null) {
+                return;
+            }
+            mDeliveries.removeFirstOccurrence(delivery);
+            if (mWaiters > 0) {
+                notifyAll();
+            }
+        }
+        try {
+            mCallback.dispatchEvent(event);
+        } finally {
+            event.recycle();
+        }
+        _signalDemand();
+    }
+
+    // Demand is granted in batches of a quarter of the capacity, or whatever was freed once the
+    // mailbox runs empty, so producers are woken a few times per capacity rather than per event.
+    private void _signalDemand() {
+        final AbstractStateMachine.DemandListener listener;
+        final int demand;
+        synchronized (this) {
+            listener = mDemandListener;
+            if (listener == null || mCapacity <= 0) {
+                return;
+            }
+            mReleased++;
+            if (mReleased < Math.max(1, mCapacity / 4) && !mDeliveries.isEmpty()) {
+                return;
+            }
+            demand = mReleased;
+            mReleased = 0;
+        }
+        listener.onDemand(demand);
+    }
+
+    private final class Delivery implements Runnable {
+        @Nullable
+        Event event;
+
+        // Under the mailbox lock; the token stays queued and finds nothing when it runs.
+        void cancel() {
+            final Event e = event;
+            event = null;
+            if (e != null) {
+                e.recycle();
+            }
+        }
+
+        @Override
+        public void run() {
+            _deliver(this);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class MpscDispatcher implements Dispatcher {
+
+    public enum WaitStrategy {
+        PARK, SPIN, YIELD,
+    }
+
+    private static final Comparator<Event> DELAYED_ORDER = (lhs, rhs) -> {
+        if (lhs.when != rhs.when) {
+            return lhs.when - rhs.when < 0 ? -1 : 1;
+        }
+        return Long.compare(lhs.seq, rhs.seq);
+    };
+    private static final AtomicReferenceFieldUpdater<MpscDispatcher, Event> TAIL =
+            AtomicReferenceFieldUpdater.newUpdater(MpscDispatcher.class, Event.class, "mTail");
+    private static final AtomicReferenceFieldUpdater<Event, Event> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Event.class, Event.class, "mailboxNext");
+
+    @NonNull
+    private final Callback mCallback;
+    @NonNull
+    private final WaitStrategy mWaitStrategy;
+    @NonNull
+    private final Thread mThread;
+    @NonNull
+    private final Event mStub = new Event();
+    @NonNull
+    private volatile Event mTail = mStub;
+    @NonNull
+    private Event mHead = mStub;
+    @NonNull
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    @NonNull
+    private final PriorityQueue<Event> mDelayedQueue = new PriorityQueue<>(11, DELAYED_ORDER);
+    // Queued events per code below MAX_DISPATCH_TABLE_SIZE, so hasEvents() needs no round trip
+    // to the dispatcher thread for them.
+    @NonNull
+    private final AtomicIntegerArray mPendingCounts = new AtomicIntegerArray(AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE);
+    // Callers waiting for the dispatcher thread, released when it stops.
+    @NonNull
+    private final ConcurrentLinkedQueue<SyncCallback<?>> mWaiters = new ConcurrentLinkedQueue<>();
+    private long mSequence;
+    private volatile boolean mParked;
+    private volatile boolean mQuit;
+
+    public MpscDispatcher(@NonNull String name, @NonNull Callback callback, @NonNull WaitStrategy waitStrategy) {
+        this(name, callback, waitStrategy, Dispatchers.daemonThreadFactory(name));
+    }
+
+    public MpscDispatcher(@NonNull String name, @NonNull Callback callback, @NonNull WaitStrategy waitStrategy,
+                          @NonNull ThreadFactory threadFactory) {
+        mCallback = callback;
+        mWaitStrategy = waitStrategy;
+        mThread = threadFactory.newThread(this::_loop);
+        mThread.setName(name);
+        mThread.start();
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    @Override
+    public void post(@NonNull Runnable r) {
+        sendEvent(Event.obtain(r));
+    }
+
+    @Override
+    public void postAtFrontOfQueue(@NonNull Runnable r) {
+        sendEventAtFrontOfQueue(Event.obtain(r));
+    }
+
+    @Override
+    public void sendEvent(@NonNull Event event) {
+        if (mQuit) {
+            return;
+        }
+        event.when = 0;
+        _count(event, 1);
+        _offer(event);
+    }
+
+    @Override
+    public void sendEventAtFrontOfQueue(@NonNull final Event event) {
+        _count(event, 1);
+        if (isCurrentThread()) {
+            mQueue.offerFirst(event);
+        } else {
+            post(() -> mQueue.offerFirst(event));
+        }
+    }
+
+    @Override
+    public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        if (isCurrentThread()) {
+            for (int i = count - 1; i >= 0; i--) {
+                _count(events[i], 1);
+                mQueue.offerFirst(events[i]);
+            }
+        } else {
+            final Event[] copy = Arrays.copyOf(events, count);
+            for (Event event : copy) {
+                _count(event, 1);
+            }
+            post(() -> {
+                for (int i = copy.length - 1; i >= 0; i--) {
+                    mQueue.offerFirst(copy[i]);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void sendEventDelayed(@NonNull Event event, long delayMillis) {
+        if (delayMillis <= 0) {
+            sendEvent(event);
+            return;
+        }
+        if (mQuit) {
+            return;
+        }
+        event.when = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        _count(event, 1);
+        _offer(event);
+    }
+
+    @Override
+    public boolean hasEvents(final int what) {
+        if (mQuit) {
+            return false;
+        }
+        if (what >= 0 && what < mPendingCounts.length()) {
+            return mPendingCounts.get(what) > 0;
+        }
+        if (isCurrentThread()) {
+            return _hasEvents(what);
+        }
+        final SyncCallback<Boolean> callback = new SyncCallback<>();
+        _awaitDispatcher(callback, () -> {
+            callback.setResult(_hasEvents(what));
+            callback.unlock();
+        });
+        return Boolean.TRUE.equals(callback.getResult());
+    }
+
+    // Off the dispatcher thread this waits until the dispatcher gets to the removal, behind
+    // the event being handled; it returns at once if the dispatcher has quit.
+    @Override
+    public void removeEvents(final int what) {
+        if (mQuit) {
+            return;
+        }
+        if (isCurrentThread()) {
+            _removeEvents(what);
+            return;
+        }
+        final SyncCallback<Void> callback = new SyncCallback<>();
+        _awaitDispatcher(callback, () -> {
+            _removeEvents(what);
+            callback.unlock();
+        });
+    }
+
+    @Override
+    public void quit() {
+        mQuit = true;
+        LockSupport.unpark(mThread);
+    }
+
+    // Runs r on the dispatcher thread and waits for it to unlock callback, or for the
+    // dispatcher to stop, which drops r.
+    private void _awaitDispatcher(@NonNull SyncCallback<?> callback, @NonNull Runnable r) {
+        mWaiters.offer(callback);
+        // Checked after registering: the loop releases every waiter it can see once mQuit is set.
+        if (mQuit) {
+            mWaiters.remove(callback);
+            return;
+        }
+        post(r);
+        callback.lock();
+        mWaiters.remove(callback);
+    }
+
+    private void _count(@NonNull Event event, int delta) {
+        if (null == event.callback && event.what >= 0 && event.what < mPendingCounts.length()) {
+            mPendingCounts.addAndGet(event.what, delta);
+        }
+    }
+
+    private void _offer(@NonNull Event event) {
+        NEXT.lazySet(event, null);
+        final Event prev = TAIL.getAndSet(this, event);
+        NEXT.lazySet(prev, event);
+        if (mParked) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    // Vyukov's intrusive MPSC queue; only the dispatcher thread polls.
+    @Nullable
+    private Event _poll() {
+        Event head = mHead;
+        Event next = head.mailboxNext;
+        if (head == mStub) {
+            if (null == next) {
+                return null;
+            }
+            mHead = next;
+            head = next;
+            next = next.mailboxNext;
+        }
+        if (null != next) {
+            mHead = next;
+            return head;
+        }
+        if (head != mTail) {
+            return null;
+        }
+        _offerStub();
+        next = head.mailboxNext;
+        if (null != next) {
+            mHead = next;
+            return head;
+        }
+        return null;
+    }
+
+    private void _offerStub() {
+        NEXT.lazySet(mStub, null);
+        final Event prev = TAIL.getAndSet(this, mStub);
+        NEXT.lazySet(prev, mStub);
+    }
+
+    private boolean _isMailboxEmpty() {
+        return mHead == mStub && mTail == mStub;
+    }
+
+    private void _drainMailbox() {
+        Event event;
+        while (null != (event = _poll())) {
+            _accept(event);
+        }
+    }
+
+    private void _accept(@NonNull Event event) {
+        if (event.when == 0) {
+            mQueue.offerLast(event);
+        } else {
+            event.seq = mSequence++;
+            mDelayedQueue.offer(event);
+        }
+    }
+
+    private void _loop() {
+        while (!mQuit) {
+            final Event event = _next();
+            if (null == event) {
+                continue;
+            }
+            try {
+                if (null != event.callback) {
+                    event.callback.run();
+                } else {
+                    _count(event, -1);
+                    mCallback.dispatchEvent(event);
+                }
+            } finally {
+                event.recycle();
+            }
+        }
+        mQueue.clear();
+        mDelayedQueue.clear();
+        SyncCallback<?> waiter;
+        while (null != (waiter = mWaiters.poll())) {
+            waiter.unlock();
+        }
+    }
+
+    @Nullable
+    private Event _next() {
+        final long now = System.nanoTime();
+        Event delayed;
+        while (null != (delayed = mDelayedQueue.peek()) && delayed.when - now <= 0) {
+            mQueue.offerLast(mDelayedQueue.poll());
+        }
+        Event event = mQueue.pollFirst();
+        if (null != event) {
+            return event;
+        }
+        while (null != (event = _poll())) {
+            if (event.when == 0) {
+                return event;
+            }
+            _accept(event);
+        }
+        // Delayed events just taken from the mailbox may be due before the one peeked above.
+        delayed = mDelayedQueue.peek();
+        _await(null == delayed ? 0 : Math.max(1, delayed.when - now));
+        return null;
+    }
+
+    private void _await(long timeoutNanos) {
+        switch (mWaitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+            default:
+                mParked = true;
+                if (_isMailboxEmpty() && !mQuit) {
+                    if (timeoutNanos > 0) {
+                        LockSupport.parkNanos(this, timeoutNanos);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                mParked = false;
+                break;
+        }
+    }
+
+    private boolean _hasEvents(int what) {
+        _drainMailbox();
+        return _contains(mQueue, what) || _contains(mDelayedQueue, what);
+    }
+
+    private void _removeEvents(int what) {
+        _drainMailbox();
+        _remove(mQueue, what);
+        _remove(mDelayedQueue, what);
+    }
+
+    private static boolean _contains(@NonNull Iterable<Event> queue, int what) {
+        for (Event event : queue) {
+            if (null == event.callback && event.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void _remove(@NonNull Iterable<Event> queue, int what) {
+        Iterator<Event> it = queue.iterator();
+        while (it.hasNext()) {
+            Event event = it.next();
+            if (null == event.callback && event.what == what) {
+                it.remove();
+                _count(event, -1);
+                event.recycle();
+            }
+        }
+    }
+}
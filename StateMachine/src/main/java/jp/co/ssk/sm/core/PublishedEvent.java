@@ -0,0 +1,76 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// Seqlock over the fields of the event being dispatched. The machine thread publishes with
+// ordered (release) stores only, so it stays cheap on the dispatch path; readers on other
+// threads retry until they see an even, unchanged sequence.
+final class PublishedEvent {
+
+    private static final AtomicIntegerFieldUpdater<PublishedEvent> SEQ =
+            AtomicIntegerFieldUpdater.newUpdater(PublishedEvent.class, "mSeq");
+    private static final AtomicIntegerFieldUpdater<PublishedEvent> WHAT =
+            AtomicIntegerFieldUpdater.newUpdater(PublishedEvent.class, "mWhat");
+    private static final AtomicIntegerFieldUpdater<PublishedEvent> ARG1 =
+            AtomicIntegerFieldUpdater.newUpdater(PublishedEvent.class, "mArg1");
+    private static final AtomicIntegerFieldUpdater<PublishedEvent> ARG2 =
+            AtomicIntegerFieldUpdater.newUpdater(PublishedEvent.class, "mArg2");
+    private static final AtomicLongFieldUpdater<PublishedEvent> LONG_ARG =
+            AtomicLongFieldUpdater.newUpdater(PublishedEvent.class, "mLongArg");
+    private static final AtomicLongFieldUpdater<PublishedEvent> DOUBLE_ARG =
+            AtomicLongFieldUpdater.newUpdater(PublishedEvent.class, "mDoubleArgBits");
+    private static final AtomicReferenceFieldUpdater<PublishedEvent, Object> OBJ =
+            AtomicReferenceFieldUpdater.newUpdater(PublishedEvent.class, Object.class, "mObj");
+
+    private volatile int mSeq;
+    private volatile int mWhat;
+    private volatile int mArg1;
+    private volatile int mArg2;
+    private volatile long mLongArg;
+    private volatile long mDoubleArgBits;
+    @Nullable
+    private volatile Object mObj;
+
+    void publish(@NonNull Event event) {
+        final int seq = mSeq;
+        SEQ.lazySet(this, seq + 1);
+        WHAT.lazySet(this, event.what);
+        ARG1.lazySet(this, event.arg1);
+        ARG2.lazySet(this, event.arg2);
+        LONG_ARG.lazySet(this, event.longArg);
+        DOUBLE_ARG.lazySet(this, Double.doubleToRawLongBits(event.doubleArg));
+        OBJ.lazySet(this, event.obj);
+        SEQ.lazySet(this, seq + 2);
+    }
+
+    @Nullable
+    Event read() {
+        while (true) {
+            final int seq = mSeq;
+            if (seq == 0) {
+                return null;
+            }
+            if ((seq & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final int what = mWhat;
+            final int arg1 = mArg1;
+            final int arg2 = mArg2;
+            final long longArg = mLongArg;
+            final long doubleArgBits = mDoubleArgBits;
+            final Object obj = mObj;
+            if (seq == mSeq) {
+                final Event event = Event.obtain(what, arg1, arg2, obj);
+                event.longArg = longArg;
+                event.doubleArg = Double.longBitsToDouble(doubleArgBits);
+                return event;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+// A node of a StateTopology. Holds nothing specific to one machine, so a sealed topology's
+// nodes are shared by every machine built on it.
+final class StateInfo {
+    @NonNull
+    final StateTopology topology;
+    @NonNull
+    final AbstractState state;
+    final int index;
+    @Nullable
+    final boolean[] handles;
+    @Nullable
+    final StateTopology[] regions;
+    // Rows are replaced whole, never written in place, so readers need no lock.
+    @Nullable
+    volatile int[][] plans;
+    @Nullable
+    StateSnapshot snapshot;
+    @Nullable
+    int[][] dispatchTable;
+    @Nullable
+    int[] dispatchFallback;
+    int dispatchTableVersion;
+
+    StateInfo(@NonNull StateTopology topology, @NonNull AbstractState state, int index,
+              @Nullable boolean[] handles, @Nullable StateTopology[] regions) {
+        this.topology = topology;
+        this.state = state;
+        this.index = index;
+        this.handles = handles;
+        this.regions = regions;
+    }
+
+    // Kept by the topology with the parent links, not in the node.
+    int depth() {
+        return topology.depthOf(index);
+    }
+
+    @Override
+    public String toString() {
+        String str = "{state=" + state.name();
+        str += ", id=" + index;
+        str += ", depth=" + depth();
+        str += '}';
+        return str;
+    }
+}
@@ -0,0 +1,207 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters of one machine. Only its dispatcher thread writes them, with ordered stores and no
+// read-modify-write, so recording costs a few plain stores; any thread may read or export.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class StateMachineMetrics {
+
+    private static final double[] EXPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+    @NonNull
+    private final Dispatcher mDispatcher;
+    @NonNull
+    private final Mailbox mMailbox;
+    @NonNull
+    private final CounterArray mEnterCounts = new CounterArray();
+    @NonNull
+    private final CounterArray mExitCounts = new CounterArray();
+    @NonNull
+    private final CounterArray mHandledCounts = new CounterArray();
+    @NonNull
+    private final CounterArray mUnhandledCounts = new CounterArray();
+    @NonNull
+    private final AtomicLong mEventsProcessed = new AtomicLong();
+    @NonNull
+    private final AtomicLong mDeferredDepth = new AtomicLong();
+    @NonNull
+    private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+    @NonNull
+    private final LatencyHistogram mTransitionLatency = new LatencyHistogram();
+    @NonNull
+    private volatile AbstractState[] mStates = new AbstractState[0];
+
+    StateMachineMetrics(@NonNull Dispatcher dispatcher, @NonNull Mailbox mailbox) {
+        mDispatcher = dispatcher;
+        mMailbox = mailbox;
+    }
+
+    public long getEventsProcessed() {
+        return mEventsProcessed.get();
+    }
+
+    public long getEnterCount(@NonNull AbstractState state) {
+        return mEnterCounts.get(_indexOf(state));
+    }
+
+    public long getExitCount(@NonNull AbstractState state) {
+        return mExitCounts.get(_indexOf(state));
+    }
+
+    public long getHandledCount(int what) {
+        return mHandledCounts.get(_whatIndex(what));
+    }
+
+    public long getUnhandledCount(int what) {
+        return mUnhandledCounts.get(_whatIndex(what));
+    }
+
+    public long getDeferredDepth() {
+        return mDeferredDepth.get();
+    }
+
+    // Events held by a bounded mailbox, otherwise the dispatcher's queue length, or -1 when the
+    // dispatcher cannot report it.
+    public int getMailboxDepth() {
+        return mMailbox.isBounded() ? mMailbox.size() : mDispatcher.getPendingEventCount();
+    }
+
+    public long getDroppedCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    @NonNull
+    public LatencyHistogram getDispatchLatency() {
+        return mDispatchLatency.snapshot();
+    }
+
+    @NonNull
+    public LatencyHistogram getTransitionLatency() {
+        return mTransitionLatency.snapshot();
+    }
+
+    // Flat name/value view for metrics agents; latencies are in nanoseconds.
+    @NonNull
+    public Map<String, Long> export() {
+        final Map<String, Long> ret = new LinkedHashMap<>();
+        ret.put("events.processed", getEventsProcessed());
+        ret.put("deferred.depth", getDeferredDepth());
+        ret.put("mailbox.depth", (long) getMailboxDepth());
+        ret.put("mailbox.dropped", getDroppedCount());
+        _exportHistogram(ret, "dispatch.latency", getDispatchLatency());
+        _exportHistogram(ret, "transition.latency", getTransitionLatency());
+        final AbstractState[] states = mStates;
+        for (int i = 0; i < states.length; i++) {
+            _add(ret, "state." + states[i].name() + ".enter", mEnterCounts.get(i));
+            _add(ret, "state." + states[i].name() + ".exit", mExitCounts.get(i));
+        }
+        for (int i = 0; i < mHandledCounts.length() || i < mUnhandledCounts.length(); i++) {
+            final long handled = mHandledCounts.get(i);
+            final long unhandled = mUnhandledCounts.get(i);
+            if (handled == 0 && unhandled == 0) {
+                continue;
+            }
+            final String what = i == 0 ? "other" : String.valueOf(i - 1);
+            ret.put("event." + what + ".handled", handled);
+            ret.put("event." + what + ".unhandled", unhandled);
+        }
+        return ret;
+    }
+
+    void onStateAdded(@NonNull AbstractState state, int index) {
+        AbstractState[] states = mStates;
+        if (index >= states.length) {
+            states = Arrays.copyOf(states, index + 1);
+        }
+        states[index] = state;
+        mStates = states;
+    }
+
+    void onEnter(int index) {
+        mEnterCounts.increment(index);
+    }
+
+    void onExit(int index) {
+        mExitCounts.increment(index);
+    }
+
+    void onEvent(int what, boolean handled, long nanos) {
+        mEventsProcessed.lazySet(mEventsProcessed.get() + 1);
+        (handled ? mHandledCounts : mUnhandledCounts).increment(_whatIndex(what));
+        mDispatchLatency.record(nanos);
+    }
+
+    void onTransition(long nanos) {
+        mTransitionLatency.record(nanos);
+    }
+
+    void onDeferredDepth(int depth) {
+        mDeferredDepth.lazySet(depth);
+    }
+
+    private int _indexOf(@NonNull AbstractState state) {
+        final AbstractState[] states = mStates;
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] == state) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Slot 0 collects codes outside the dense range.
+    private static int _whatIndex(int what) {
+        return what >= 0 && what < AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE ? what + 1 : 0;
+    }
+
+    // States sharing a name are reported together.
+    private static void _add(@NonNull Map<String, Long> map, @NonNull String name, long value) {
+        final Long current = map.get(name);
+        map.put(name, current == null ? value : current + value);
+    }
+
+    private static void _exportHistogram(@NonNull Map<String, Long> map, @NonNull String name,
+                                         @NonNull LatencyHistogram histogram) {
+        map.put(name + ".count", histogram.getCount());
+        map.put(name + ".mean", Math.round(histogram.getMean()));
+        map.put(name + ".max", histogram.getMax());
+        for (double percentile : EXPORTED_PERCENTILES) {
+            map.put(name + ".p" + (percentile == (long) percentile
+                    ? String.valueOf((long) percentile) : String.valueOf(percentile)),
+                    histogram.getValueAtPercentile(percentile));
+        }
+    }
+
+    private static final class CounterArray {
+        @NonNull
+        private volatile AtomicLongArray mValues = new AtomicLongArray(16);
+
+        void increment(int index) {
+            AtomicLongArray values = mValues;
+            if (index >= values.length()) {
+                final AtomicLongArray grown = new AtomicLongArray(Math.max(index + 1, values.length() * 2));
+                for (int i = 0; i < values.length(); i++) {
+                    grown.lazySet(i, values.get(i));
+                }
+                mValues = values = grown;
+            }
+            values.lazySet(index, values.get(index) + 1);
+        }
+
+        long get(int index) {
+            final AtomicLongArray values = mValues;
+            return index >= 0 && index < values.length() ? values.get(index) : 0;
+        }
+
+        int length() {
+            return mValues.length();
+        }
+    }
+}
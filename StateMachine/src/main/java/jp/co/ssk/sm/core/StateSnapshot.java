@@ -0,0 +1,46 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class StateSnapshot {
+
+    @NonNull
+    private final AbstractState[] mActivePath;
+
+    StateSnapshot(@NonNull AbstractState[] activePath) {
+        mActivePath = activePath;
+    }
+
+    @NonNull
+    public AbstractState getCurrentState() {
+        return mActivePath[mActivePath.length - 1];
+    }
+
+    @NonNull
+    public List<AbstractState> getActivePath() {
+        return Collections.unmodifiableList(Arrays.asList(mActivePath));
+    }
+
+    public int getDepth() {
+        return mActivePath.length;
+    }
+
+    public boolean contains(@NonNull AbstractState state) {
+        for (int i = mActivePath.length - 1; i >= 0; i--) {
+            if (mActivePath[i] == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(mActivePath);
+    }
+}
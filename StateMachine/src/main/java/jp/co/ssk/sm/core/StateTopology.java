@@ -0,0 +1,340 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+// State hierarchy with states numbered by dense ids in the order they were added. A machine
+// calling addState() owns a private one; a topology made by Builder is sealed and immutable,
+// and any number of machines share it, each keeping only its own active path.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class StateTopology {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Indexed by state id. Parent links and depths are kept apart from the nodes, so walking
+    // ancestors only touches two int arrays.
+    @NonNull
+    private StateInfo[] mStateInfos = new StateInfo[INITIAL_CAPACITY];
+    @NonNull
+    private int[] mParentIds = new int[INITIAL_CAPACITY];
+    @NonNull
+    private int[] mDepths = new int[INITIAL_CAPACITY];
+    private int mStateCount;
+    // Ids are assigned here, so a state may be in any number of topologies. IdentityHashMap
+    // keeps keys and values in one flat array, with no entry objects.
+    @NonNull
+    private final IdentityHashMap<AbstractState, StateInfo> mStateInfoMap = new IdentityHashMap<>();
+    @Nullable
+    private AbstractState mInitialState;
+    private boolean mTableDispatch;
+    private int mDispatchTableSize;
+    private int mDispatchTableVersion;
+    private boolean mSealed;
+
+    StateTopology() {
+    }
+
+    public int getStateCount() {
+        return mStateCount;
+    }
+
+    // -1 if the state is not part of this topology.
+    public int getStateId(@NonNull AbstractState state) {
+        final StateInfo stateInfo = find(state);
+        return stateInfo == null ? -1 : stateInfo.index;
+    }
+
+    @NonNull
+    public AbstractState getState(int id) {
+        return get(id).state;
+    }
+
+    // -1 for a root state.
+    public int getParentId(int id) {
+        get(id);
+        return mParentIds[id];
+    }
+
+    public int getDepth(int id) {
+        get(id);
+        return mDepths[id];
+    }
+
+    @Nullable
+    public AbstractState getInitialState() {
+        return mInitialState;
+    }
+
+    public boolean isSealed() {
+        return mSealed;
+    }
+
+    @NonNull
+    StateInfo add(@NonNull AbstractState state, @Nullable AbstractState parent, @Nullable boolean[] handles) {
+        if (mSealed) {
+            throw new IllegalStateException("Topology is sealed.");
+        }
+        if (find(state) != null) {
+            throw new RuntimeException("State already added.");
+        }
+        int parentId = -1;
+        if (parent != null) {
+            StateInfo parentStateInfo = find(parent);
+            if (parentStateInfo == null) {
+                parentStateInfo = add(parent, null, handledEventSet(parent));
+            }
+            if (parentStateInfo.regions != null) {
+                throw new IllegalArgumentException("A state with regions cannot have child states.");
+            }
+            parentId = parentStateInfo.index;
+        }
+        if (handles != null) {
+            mTableDispatch = true;
+            mDispatchTableSize = Math.max(mDispatchTableSize, handles.length);
+        }
+        mDispatchTableVersion++;
+        final int id = mStateCount;
+        if (id == mStateInfos.length) {
+            mStateInfos = Arrays.copyOf(mStateInfos, id * 2);
+            mParentIds = Arrays.copyOf(mParentIds, id * 2);
+            mDepths = Arrays.copyOf(mDepths, id * 2);
+        }
+        final int depth = parentId < 0 ? 0 : mDepths[parentId] + 1;
+        final StateInfo stateInfo = new StateInfo(this, state, id, handles, regionsOf(state));
+        mStateInfos[id] = stateInfo;
+        mParentIds[id] = parentId;
+        mDepths[id] = depth;
+        mStateCount++;
+        mStateInfoMap.put(state, stateInfo);
+        return stateInfo;
+    }
+
+    @Nullable
+    StateInfo find(@NonNull AbstractState state) {
+        return mStateInfoMap.get(state);
+    }
+
+    @NonNull
+    StateInfo get(int id) {
+        if (id < 0 || id >= mStateCount) {
+            throw new IllegalArgumentException("No state with id " + id + ".");
+        }
+        return mStateInfos[id];
+    }
+
+    // -1 for a root state; id must be valid.
+    int parentIdOf(int id) {
+        return mParentIds[id];
+    }
+
+    // id must be valid.
+    int depthOf(int id) {
+        return mDepths[id];
+    }
+
+    boolean isTableDispatch() {
+        return mTableDispatch;
+    }
+
+    // Precomputes everything a machine would otherwise fill in lazily, so machines on different
+    // threads only ever read the shared nodes; transition plans are the one exception.
+    private void _seal() {
+        for (int id = 0; id < mStateCount; id++) {
+            final StateInfo stateInfo = mStateInfos[id];
+            snapshot(stateInfo);
+            if (mTableDispatch) {
+                _buildDispatchTable(stateInfo);
+            }
+        }
+        mSealed = true;
+    }
+
+    @NonNull
+    StateSnapshot snapshot(@NonNull StateInfo leafStateInfo) {
+        if (leafStateInfo.snapshot == null) {
+            final AbstractState[] activePath = new AbstractState[mDepths[leafStateInfo.index] + 1];
+            for (int id = leafStateInfo.index; id >= 0; id = mParentIds[id]) {
+                activePath[mDepths[id]] = mStateInfos[id].state;
+            }
+            leafStateInfo.snapshot = new StateSnapshot(activePath);
+        }
+        return leafStateInfo.snapshot;
+    }
+
+    @NonNull
+    int[] transitionPlan(@Nullable StateInfo sourceStateInfo, @NonNull StateInfo destStateInfo) {
+        if (sourceStateInfo == null) {
+            return _compileTransitionPlan(null, destStateInfo);
+        }
+        final int[][] plans = sourceStateInfo.plans;
+        if (plans != null && destStateInfo.index < plans.length && plans[destStateInfo.index] != null) {
+            return plans[destStateInfo.index];
+        }
+        final int[] plan = _compileTransitionPlan(sourceStateInfo, destStateInfo);
+        synchronized (sourceStateInfo) {
+            final int[][] current = sourceStateInfo.plans;
+            final int[][] updated = current == null
+                    ? new int[mStateCount][]
+                    : Arrays.copyOf(current, Math.max(current.length, mStateCount));
+            updated[destStateInfo.index] = plan;
+            sourceStateInfo.plans = updated;
+        }
+        return plan;
+    }
+
+    // plan[0] is the number of states to exit from the leaf, plan[1..] are the state indices
+    // to enter from the outermost one.
+    @NonNull
+    private int[] _compileTransitionPlan(@Nullable StateInfo sourceStateInfo, @NonNull StateInfo destStateInfo) {
+        final int commonId = sourceStateInfo == null ? -1 : _commonAncestor(sourceStateInfo.index, destStateInfo.index);
+        final int commonDepth = commonId < 0 ? -1 : mDepths[commonId];
+        final int enterCount = mDepths[destStateInfo.index] - commonDepth;
+        final int[] plan = new int[1 + enterCount];
+        plan[0] = sourceStateInfo == null ? 0 : mDepths[sourceStateInfo.index] - commonDepth;
+        int id = destStateInfo.index;
+        for (int i = enterCount; i > 0; i--) {
+            plan[i] = id;
+            id = mParentIds[id];
+        }
+        return plan;
+    }
+
+    // -1 if the two states share no ancestor.
+    private int _commonAncestor(int lhs, int rhs) {
+        while (mDepths[lhs] > mDepths[rhs]) {
+            lhs = mParentIds[lhs];
+        }
+        while (mDepths[rhs] > mDepths[lhs]) {
+            rhs = mParentIds[rhs];
+        }
+        while (lhs != rhs) {
+            lhs = mParentIds[lhs];
+            rhs = mParentIds[rhs];
+            if (lhs < 0 || rhs < 0) {
+                return -1;
+            }
+        }
+        return lhs;
+    }
+
+    @NonNull
+    int[] dispatchCandidates(@NonNull StateInfo leafStateInfo, int what) {
+        if (leafStateInfo.dispatchTable == null || leafStateInfo.dispatchTableVersion != mDispatchTableVersion) {
+            _buildDispatchTable(leafStateInfo);
+        }
+        final int[][] table = leafStateInfo.dispatchTable;
+        return what >= 0 && what < table.length ? table[what] : leafStateInfo.dispatchFallback;
+    }
+
+    // For every event code, the depths of the active states to offer it to, leaf first.
+    private void _buildDispatchTable(@NonNull StateInfo leafStateInfo) {
+        final StateInfo[] path = new StateInfo[mDepths[leafStateInfo.index] + 1];
+        int fallbackCount = 0;
+        for (int id = leafStateInfo.index; id >= 0; id = mParentIds[id]) {
+            final StateInfo stateInfo = mStateInfos[id];
+            path[mDepths[leafStateInfo.index] - mDepths[stateInfo.index]] = stateInfo;
+            if (stateInfo.handles == null) {
+                fallbackCount++;
+            }
+        }
+        final int[] fallback = new int[fallbackCount];
+        fallbackCount = 0;
+        for (StateInfo stateInfo : path) {
+            if (stateInfo.handles == null) {
+                fallback[fallbackCount++] = mDepths[stateInfo.index];
+            }
+        }
+        final int[][] table = new int[mDispatchTableSize][];
+        final int[] candidates = new int[path.length];
+        for (int what = 0; what < table.length; what++) {
+            int count = 0;
+            boolean declared = false;
+            for (StateInfo stateInfo : path) {
+                if (stateInfo.handles == null) {
+                    candidates[count++] = mDepths[stateInfo.index];
+                } else if (what < stateInfo.handles.length && stateInfo.handles[what]) {
+                    candidates[count++] = mDepths[stateInfo.index];
+                    declared = true;
+                }
+            }
+            table[what] = declared ? Arrays.copyOf(candidates, count) : fallback;
+        }
+        leafStateInfo.dispatchTable = table;
+        leafStateInfo.dispatchFallback = fallback;
+        leafStateInfo.dispatchTableVersion = mDispatchTableVersion;
+    }
+
+    @Nullable
+    static boolean[] handledEventSet(@NonNull AbstractState state) {
+        final int[] handledEvents = state.handledEvents();
+        if (handledEvents == null) {
+            return null;
+        }
+        int size = 0;
+        for (int what : handledEvents) {
+            if (what < 0 || what >= AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE) {
+                throw new IllegalArgumentException("Handled event out of range: " + what);
+            }
+            size = Math.max(size, what + 1);
+        }
+        final boolean[] handles = new boolean[size];
+        for (int what : handledEvents) {
+            handles[what] = true;
+        }
+        return handles;
+    }
+
+    @Nullable
+    static StateTopology[] regionsOf(@NonNull AbstractState state) {
+        final StateTopology[] regions = state.regions();
+        if (regions == null || regions.length == 0) {
+            return null;
+        }
+        for (StateTopology region : regions) {
+            if (!region.mSealed || region.mInitialState == null) {
+                throw new IllegalArgumentException("A region must be built with an initial state.");
+            }
+        }
+        return regions.clone();
+    }
+
+    public static final class Builder {
+        @NonNull
+        private final StateTopology mTopology = new StateTopology();
+
+        @NonNull
+        public Builder addState(@NonNull AbstractState state) {
+            return addState(state, null);
+        }
+
+        @NonNull
+        public Builder addState(@NonNull AbstractState state, @Nullable AbstractState parent) {
+            mTopology.add(state, parent, handledEventSet(state));
+            return this;
+        }
+
+        @NonNull
+        public Builder setInitialState(@NonNull AbstractState state) {
+            if (mTopology.mSealed) {
+                throw new IllegalStateException("Topology is sealed.");
+            }
+            mTopology.mInitialState = state;
+            return this;
+        }
+
+        @NonNull
+        public StateTopology build() {
+            if (mTopology.mSealed) {
+                throw new IllegalStateException("Already built.");
+            }
+            if (mTopology.mInitialState != null && mTopology.find(mTopology.mInitialState) == null) {
+                throw new IllegalStateException("Initial state not added.");
+            }
+            mTopology._seal();
+            return mTopology;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.CountDownLatch;
+
+final class SyncCallback<T> {
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    @Nullable
+    private volatile T mResult;
+    @Nullable
+    private volatile RuntimeException mError;
+
+    void lock() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mLatch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final RuntimeException error = mError;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    void unlock() {
+        mLatch.countDown();
+    }
+
+    // Releases the waiter, which then throws error from lock().
+    void fail(@NonNull RuntimeException error) {
+        mError = error;
+        mLatch.countDown();
+    }
+
+    void setResult(@Nullable T result) {
+        mResult = result;
+    }
+
+    @Nullable
+    T getResult() {
+        return mResult;
+    }
+}
@@ -0,0 +1,257 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class ThreadDispatcher implements Dispatcher {
+
+    private static final Comparator<Event> DELAYED_ORDER = (lhs, rhs) -> {
+        if (lhs.when != rhs.when) {
+            return lhs.when - rhs.when < 0 ? -1 : 1;
+        }
+        return Long.compare(lhs.seq, rhs.seq);
+    };
+
+    @NonNull
+    private final Callback mCallback;
+    @NonNull
+    private final Thread mThread;
+    @NonNull
+    private final ReentrantLock mLock = new ReentrantLock();
+    @NonNull
+    private final Condition mCondition = mLock.newCondition();
+    @NonNull
+    private final ArrayDeque<Event> mQueue = new ArrayDeque<>();
+    @NonNull
+    private final PriorityQueue<Event> mDelayedQueue = new PriorityQueue<>(11, DELAYED_ORDER);
+    private long mSequence;
+    private boolean mQuit;
+
+    public ThreadDispatcher(@NonNull String name, @NonNull Callback callback) {
+        this(name, callback, Dispatchers.daemonThreadFactory(name));
+    }
+
+    public ThreadDispatcher(@NonNull String name, @NonNull Callback callback, @NonNull ThreadFactory threadFactory) {
+        mCallback = callback;
+        mThread = threadFactory.newThread(this::_loop);
+        mThread.setName(name);
+        mThread.start();
+    }
+
+    @NonNull
+    public Thread getThread() {
+        return mThread;
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    @Override
+    public void post(@NonNull Runnable r) {
+        sendEvent(Event.obtain(r));
+    }
+
+    @Override
+    public void postAtFrontOfQueue(@NonNull Runnable r) {
+        sendEventAtFrontOfQueue(Event.obtain(r));
+    }
+
+    @Override
+    public void sendEvent(@NonNull Event event) {
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            mQueue.offerLast(event);
+            mCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendEventAtFrontOfQueue(@NonNull Event event) {
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            mQueue.offerFirst(event);
+            mCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendEventsAtFrontOfQueue(@NonNull Event[] events, int count) {
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                mQueue.offerFirst(events[i]);
+            }
+            mCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendEventDelayed(@NonNull Event event, long delayMillis) {
+        if (delayMillis <= 0) {
+            sendEvent(event);
+            return;
+        }
+        mLock.lock();
+        try {
+            if (mQuit) {
+                return;
+            }
+            event.when = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            event.seq = mSequence++;
+            mDelayedQueue.offer(event);
+            mCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasEvents(int what) {
+        mLock.lock();
+        try {
+            return _contains(mQueue, what) || _contains(mDelayedQueue, what);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int getPendingEventCount() {
+        mLock.lock();
+        try {
+            return mQueue.size() + mDelayedQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeEvents(int what) {
+        mLock.lock();
+        try {
+            _remove(mQueue, what);
+            _remove(mDelayedQueue, what);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void quit() {
+        mLock.lock();
+        try {
+            mQuit = true;
+            mQueue.clear();
+            mDelayedQueue.clear();
+            mCondition.signal();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void _loop() {
+        Event event;
+        try {
+            while (null != (event = _next())) {
+                try {
+                    if (null != event.callback) {
+                        event.callback.run();
+                    } else {
+                        mCallback.dispatchEvent(event);
+                    }
+                } catch (RuntimeException e) {
+                    // A failed event or runnable is reported and the loop goes on to the next.
+                    _report(e);
+                } finally {
+                    event.recycle();
+                }
+            }
+        } catch (Error e) {
+            quit();
+            mCallback.onDied(e);
+            throw e;
+        }
+    }
+
+    private void _report(@NonNull RuntimeException e) {
+        final Thread.UncaughtExceptionHandler handler = mThread.getUncaughtExceptionHandler();
+        if (null != handler) {
+            handler.uncaughtException(mThread, e);
+        }
+    }
+
+    @Nullable
+    private Event _next() {
+        mLock.lock();
+        try {
+            while (!mQuit) {
+                final long now = System.nanoTime();
+                Event delayed;
+                while (null != (delayed = mDelayedQueue.peek()) && delayed.when - now <= 0) {
+                    mQueue.offerLast(mDelayedQueue.poll());
+                }
+                final Event event = mQueue.pollFirst();
+                if (null != event) {
+                    return event;
+                }
+                if (null == delayed) {
+                    mCondition.await();
+                } else {
+                    mCondition.awaitNanos(delayed.when - now);
+                }
+            }
+        } catch (InterruptedException e) {
+            mQuit = true;
+        } finally {
+            mLock.unlock();
+        }
+        return null;
+    }
+
+    private static boolean _contains(@NonNull Iterable<Event> queue, int what) {
+        for (Event event : queue) {
+            if (null == event.callback && event.what == what) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void _remove(@NonNull Iterable<Event> queue, int what) {
+        Iterator<Event> it = queue.iterator();
+        while (it.hasNext()) {
+            Event event = it.next();
+            if (null == event.callback && event.what == what) {
+                it.remove();
+                event.recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+// Hierarchical hashed timer wheel shared by many machines. Arming and cancelling a timer is
+// O(1); far deadlines sit in coarser levels and cascade down as the wheel turns.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class TimerWheel {
+
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    @NonNull
+    public static final Clock SYSTEM_CLOCK = () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    private static final int LEVEL_BITS = 6;
+    private static final int SLOT_COUNT = 1 << LEVEL_BITS;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+    private static final int LEVEL_COUNT = 4;
+
+    @NonNull
+    private final Clock mClock;
+    private final long mTickMillis;
+    private final long mOriginMillis;
+    @NonNull
+    private final Timer[][] mSlots = new Timer[LEVEL_COUNT][SLOT_COUNT];
+    private long mCurrentTick;
+    private int mSize;
+    @Nullable
+    private Thread mTicker;
+
+    public TimerWheel() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    // Turned by its own daemon thread, which sleeps while no timer is armed.
+    public TimerWheel(long tickMillis) {
+        this(SYSTEM_CLOCK, tickMillis);
+        mTicker = Dispatchers.daemonThreadFactory("StateMachine-TimerWheel").newThread(this::_tickLoop);
+        mTicker.start();
+    }
+
+    // Turned only by calls to advance(), so tests can drive time deterministically.
+    public TimerWheel(@NonNull Clock clock, long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive.");
+        }
+        mClock = clock;
+        mTickMillis = tickMillis;
+        mOriginMillis = clock.uptimeMillis();
+    }
+
+    @NonNull
+    public static TimerWheel shared() {
+        return Shared.INSTANCE;
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    // Fires every timer whose deadline has passed on the clock.
+    public void advance() {
+        Timer expired;
+        synchronized (this) {
+            expired = _advanceTo((mClock.uptimeMillis() - mOriginMillis) / mTickMillis);
+        }
+        while (expired != null) {
+            final Timer next = expired.next;
+            expired.next = null;
+            expired.onExpired();
+            expired = next;
+        }
+    }
+
+    synchronized void schedule(@NonNull Timer timer, long delayMillis) {
+        if (timer.level >= 0) {
+            throw new IllegalStateException("Timer already scheduled.");
+        }
+        final long now = mClock.uptimeMillis() - mOriginMillis;
+        final long deadline = (now + Math.max(delayMillis, 0) + mTickMillis - 1) / mTickMillis;
+        timer.deadline = Math.max(deadline, mCurrentTick + 1);
+        _insert(timer);
+        if (mSize++ == 0 && mTicker != null) {
+            notifyAll();
+        }
+    }
+
+    synchronized boolean cancel(@NonNull Timer timer) {
+        if (timer.level < 0) {
+            return false;
+        }
+        _unlink(timer);
+        mSize--;
+        return true;
+    }
+
+    // Time left before the timer fires; 0 once it has fired or if it is not scheduled.
+    synchronized long remainingMillis(@NonNull Timer timer) {
+        if (timer.level < 0) {
+            return 0;
+        }
+        return Math.max(0, timer.deadline * mTickMillis - (mClock.uptimeMillis() - mOriginMillis));
+    }
+
+    @Nullable
+    private Timer _advanceTo(long tick) {
+        if (mSize == 0) {
+            mCurrentTick = Math.max(mCurrentTick, tick);
+            return null;
+        }
+        Timer expired = null;
+        while (mCurrentTick < tick) {
+            final long current = ++mCurrentTick;
+            int level = 0;
+            while (level < LEVEL_COUNT - 1 && (current & ((1L << (LEVEL_BITS * (level + 1))) - 1)) == 0) {
+                level++;
+            }
+            for (; level > 0; level--) {
+                _cascade(level, (int) (current >>> (LEVEL_BITS * level)) & SLOT_MASK);
+            }
+            final int slot = (int) current & SLOT_MASK;
+            Timer timer = mSlots[0][slot];
+            mSlots[0][slot] = null;
+            while (timer != null) {
+                final Timer next = timer.next;
+                timer.prev = null;
+                timer.level = -1;
+                timer.next = expired;
+                expired = timer;
+                mSize--;
+                timer = next;
+            }
+            if (mSize == 0) {
+                mCurrentTick = tick;
+            }
+        }
+        return expired;
+    }
+
+    private void _cascade(int level, int slot) {
+        Timer timer = mSlots[level][slot];
+        mSlots[level][slot] = null;
+        while (timer != null) {
+            final Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            _insert(timer);
+            timer = next;
+        }
+    }
+
+    private void _insert(@NonNull Timer timer) {
+        long deadline = timer.deadline;
+        int level = 0;
+        while ((deadline >>> (LEVEL_BITS * level)) - (mCurrentTick >>> (LEVEL_BITS * level)) >= SLOT_COUNT) {
+            if (level == LEVEL_COUNT - 1) {
+                // Beyond the wheel; parked in the furthest slot and re-sorted when it cascades.
+                deadline = ((mCurrentTick >>> (LEVEL_BITS * level)) + SLOT_COUNT - 1) << (LEVEL_BITS * level);
+                break;
+            }
+            level++;
+        }
+        final int slot = (int) (deadline >>> (LEVEL_BITS * level)) & SLOT_MASK;
+        final Timer head = mSlots[level][slot];
+        timer.level = level;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        mSlots[level][slot] = timer;
+    }
+
+    private void _unlink(@NonNull Timer timer) {
+        if (timer.prev == null) {
+            mSlots[timer.level][timer.slot] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.level = -1;
+    }
+
+    private void _tickLoop() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (mSize == 0) {
+                        wait();
+                    }
+                }
+                Thread.sleep(mTickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            advance();
+        }
+    }
+
+    abstract static class Timer {
+        @Nullable
+        private Timer prev;
+        @Nullable
+        private Timer next;
+        private long deadline;
+        private int level = -1;
+        private int slot;
+
+        abstract void onExpired();
+    }
+
+    private static final class Shared {
+        static final TimerWheel INSTANCE = new TimerWheel(DEFAULT_TICK_MILLIS);
+    }
+}
@@ -0,0 +1,229 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Declarative transitions of a topology: (source, what, guard) -> target, with an optional
+// action. The machine offers each event to the active states from the leaf up to the root;
+// at each state the first of its transitions whose guard passes is taken, and only if none
+// does is its processEvent() called. Built tables are immutable and may be shared by every
+// machine on the topology.
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final class TransitionTable<M extends AbstractStateMachine> {
+
+    public interface Guard<M extends AbstractStateMachine> {
+        boolean test(@NonNull M owner, @NonNull Event event);
+    }
+
+    public interface Action<M extends AbstractStateMachine> {
+        void run(@NonNull M owner, @NonNull Event event);
+    }
+
+    @NonNull
+    private final StateTopology mTopology;
+    // Indexed by source state id, then by what; transitions in declaration order.
+    @NonNull
+    private final Transition[][][] mRows;
+
+    private TransitionTable(@NonNull StateTopology topology, @NonNull Transition[][][] rows) {
+        mTopology = topology;
+        mRows = rows;
+    }
+
+    @NonNull
+    public StateTopology getTopology() {
+        return mTopology;
+    }
+
+    // States no sequence of table transitions enters from initialState, or from the topology's
+    // initial state if null. Transitions made by processEvent() are not seen, so this is only
+    // conclusive for machines driven by the table alone.
+    @NonNull
+    public List<AbstractState> getUnreachableStates(@Nullable AbstractState initialState) {
+        if (initialState == null) {
+            initialState = mTopology.getInitialState();
+        }
+        if (initialState == null) {
+            throw new IllegalStateException("Unset initial state.");
+        }
+        final StateInfo initialStateInfo = mTopology.find(initialState);
+        if (initialStateInfo == null) {
+            throw new IllegalArgumentException("State not added: " + initialState.name());
+        }
+        final int stateCount = mTopology.getStateCount();
+        final boolean[] entered = new boolean[stateCount];
+        final boolean[] visited = new boolean[stateCount];
+        final int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = initialStateInfo.index;
+        visited[initialStateInfo.index] = true;
+        while (head < tail) {
+            final int leafId = queue[head++];
+            for (int id = leafId; id >= 0; id = mTopology.parentIdOf(id)) {
+                entered[id] = true;
+                final Transition[][] row = id < mRows.length ? mRows[id] : null;
+                if (row == null) {
+                    continue;
+                }
+                for (Transition[] transitions : row) {
+                    if (transitions == null) {
+                        continue;
+                    }
+                    for (Transition transition : transitions) {
+                        if (transition.targetId >= 0 && !visited[transition.targetId]) {
+                            visited[transition.targetId] = true;
+                            queue[tail++] = transition.targetId;
+                        }
+                    }
+                }
+            }
+        }
+        final List<AbstractState> ret = new ArrayList<>();
+        for (int id = 0; id < stateCount; id++) {
+            if (!entered[id]) {
+                ret.add(mTopology.getState(id));
+            }
+        }
+        return ret;
+    }
+
+    @Nullable
+    Transition[] transitions(@NonNull StateInfo stateInfo, int what) {
+        final Transition[][] row = stateInfo.index < mRows.length ? mRows[stateInfo.index] : null;
+        return row != null && what >= 0 && what < row.length ? row[what] : null;
+    }
+
+    static final class Transition {
+        @NonNull
+        final AbstractState source;
+        final int sourceId;
+        final int what;
+        @Nullable
+        final Guard guard;
+        // -1 for an internal transition, which runs the action and stays.
+        final int targetId;
+        @Nullable
+        final AbstractState target;
+        @Nullable
+        final Action action;
+
+        Transition(@NonNull StateInfo sourceStateInfo, int what, @Nullable Guard guard,
+                   @Nullable StateInfo targetStateInfo, @Nullable Action action) {
+            this.source = sourceStateInfo.state;
+            this.sourceId = sourceStateInfo.index;
+            this.what = what;
+            this.guard = guard;
+            this.targetId = targetStateInfo == null ? -1 : targetStateInfo.index;
+            this.target = targetStateInfo == null ? null : targetStateInfo.state;
+            this.action = action;
+        }
+
+        @Override
+        public String toString() {
+            return source.name() + " --" + what + (guard == null ? "" : "[guard]") + "--> "
+                    + (target == null ? "(internal)" : target.name());
+        }
+    }
+
+    // Checks every transition as it is added: both states must be in the topology, and a
+    // transition that could never be taken is rejected. Shadowing is found by position: any
+    // transition declared after an unguarded one for the same source and what. Guards are
+    // opaque, so among guarded ones only a repeat of the same Guard instance is caught; two
+    // separate lambdas testing the same condition are both accepted, and the first one wins.
+    public static final class Builder<M extends AbstractStateMachine> {
+        @NonNull
+        private final StateTopology mTopology;
+        @NonNull
+        private final List<Transition> mTransitions = new ArrayList<>();
+        private boolean mBuilt;
+
+        public Builder(@NonNull StateTopology topology) {
+            mTopology = topology;
+        }
+
+        @NonNull
+        public Builder<M> add(@NonNull AbstractState source, int what, @NonNull AbstractState target) {
+            return add(source, what, null, target, null);
+        }
+
+        @NonNull
+        public Builder<M> add(@NonNull AbstractState source, int what, @Nullable Guard<? super M> guard,
+                              @NonNull AbstractState target) {
+            return add(source, what, guard, target, null);
+        }
+
+        // A null target makes an internal transition: the action runs and no state is left.
+        @NonNull
+        public Builder<M> add(@NonNull AbstractState source, int what, @Nullable Guard<? super M> guard,
+                              @Nullable AbstractState target, @Nullable Action<? super M> action) {
+            if (mBuilt) {
+                throw new IllegalStateException("Already built.");
+            }
+            if (what < 0 || what >= AbstractStateMachine.MAX_DISPATCH_TABLE_SIZE) {
+                throw new IllegalArgumentException("Event out of range: " + what);
+            }
+            if (target == null && action == null) {
+                throw new IllegalArgumentException("An internal transition needs an action.");
+            }
+            final StateInfo sourceStateInfo = _find(source);
+            final StateInfo targetStateInfo = target == null ? null : _find(target);
+            final Transition transition = new Transition(sourceStateInfo, what, guard, targetStateInfo, action);
+            for (Transition previous : mTransitions) {
+                if (previous.source != source || previous.what != what) {
+                    continue;
+                }
+                if (previous.guard == null) {
+                    throw new IllegalStateException("Unreachable transition " + transition
+                            + ": follows unguarded " + previous);
+                }
+                // Identity only: equal conditions in separate guards cannot be told apart.
+                if (previous.guard == guard) {
+                    throw new IllegalStateException("Conflicting transitions " + previous + " and " + transition);
+                }
+            }
+            mTransitions.add(transition);
+            return this;
+        }
+
+        @NonNull
+        public TransitionTable<M> build() {
+            if (mBuilt) {
+                throw new IllegalStateException("Already built.");
+            }
+            mBuilt = true;
+            final Transition[][][] rows = new Transition[mTopology.getStateCount()][][];
+            for (Transition transition : mTransitions) {
+                Transition[][] row = rows[transition.sourceId];
+                if (row == null || row.length <= transition.what) {
+                    row = row == null
+                            ? new Transition[transition.what + 1][]
+                            : Arrays.copyOf(row, transition.what + 1);
+                    rows[transition.sourceId] = row;
+                }
+                final Transition[] current = row[transition.what];
+                if (current == null) {
+                    row[transition.what] = new Transition[]{transition};
+                } else {
+                    final Transition[] updated = Arrays.copyOf(current, current.length + 1);
+                    updated[current.length] = transition;
+                    row[transition.what] = updated;
+                }
+            }
+            return new TransitionTable<>(mTopology, rows);
+        }
+
+        @NonNull
+        private StateInfo _find(@NonNull AbstractState state) {
+            final StateInfo stateInfo = mTopology.find(state);
+            if (stateInfo == null) {
+                throw new IllegalArgumentException("State not added: " + state.name());
+            }
+            return stateInfo;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+final class VirtualThreads {
+
+    @Nullable
+    private static final Method OF_VIRTUAL;
+    @Nullable
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method factory = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+            ofVirtual = null;
+            factory = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return null != OF_VIRTUAL;
+    }
+
+    @NonNull
+    static ThreadFactory factory() {
+        if (null == OF_VIRTUAL || null == FACTORY) {
+            throw new UnsupportedOperationException("Virtual threads are not supported.");
+        }
+        try {
+            return (ThreadFactory) FACTORY.invoke(OF_VIRTUAL.invoke(null));
+        } catch (IllegalAccessException e) {
+            throw new UnsupportedOperationException(e);
+        } catch (InvocationTargetException e) {
+            throw new UnsupportedOperationException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AbstractStateMachineTest {
+
+    private TestStateMachine mStateMachine;
+
+    @Before
+    public void before() {
+        mStateMachine = new TestStateMachine();
+    }
+
+    @After
+    public void after() {
+        mStateMachine.quit();
+    }
+
+    @Test
+    public void getInitState() {
+        assertSame(mStateMachine.mIdleState, mStateMachine.getCurrentState());
+        assertTrue(mStateMachine.contains(mStateMachine.mRootState));
+        assertFalse(mStateMachine.contains(mStateMachine.mBusyState));
+        assertEquals(Arrays.asList("enter:RootState", "enter:IdleState"), mStateMachine.history());
+    }
+
+    @Test
+    public void transition() {
+        assertSame(mStateMachine.mIdleState, mStateMachine.getCurrentState());
+        mStateMachine.clearHistory();
+        mStateMachine.sendMessageSyncIf(TestStateMachine.START);
+        assertSame(mStateMachine.mBusyState, mStateMachine.getCurrentState());
+        assertEquals(Arrays.asList("exit:IdleState", "enter:BusyState"), mStateMachine.history());
+    }
+
+    @Test
+    public void queryWhileBusy() {
+        mStateMachine.sendMessageSyncIf(TestStateMachine.START);
+        SyncCallback<Void> blocker = new SyncCallback<>();
+        mStateMachine.sendMessage(TestStateMachine.BLOCK, blocker);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                assertSame(mStateMachine.mBusyState, mStateMachine.getCurrentState());
+                assertTrue(mStateMachine.contains(mStateMachine.mRootState));
+                assertFalse(mStateMachine.contains(mStateMachine.mIdleState));
+            }
+            StateSnapshot snapshot = mStateMachine.getStateSnapshot();
+            assertEquals(Arrays.asList(mStateMachine.mRootState, mStateMachine.mBusyState), snapshot.getActivePath());
+            assertEquals(2, mStateMachine.getTransitionCount());
+        } finally {
+            blocker.unlock();
+        }
+    }
+
+    @Test
+    public void deferMessage() {
+        mStateMachine.sendMessage(TestStateMachine.WORK, 1);
+        mStateMachine.sendMessage(TestStateMachine.WORK, 2);
+        mStateMachine.sendMessageSyncIf(TestStateMachine.START);
+        mStateMachine.sendMessageSyncIf(TestStateMachine.STOP);
+        assertSame(mStateMachine.mIdleState, mStateMachine.getCurrentState());
+        List<String> history = mStateMachine.history();
+        assertEquals(Arrays.asList("work:1", "work:2"), history.subList(4, 6));
+    }
+
+    @Test
+    public void removeDeferredMessages() {
+        for (int i = 0; i < 100; i++) {
+            mStateMachine.sendMessage(TestStateMachine.WORK, i);
+        }
+        mStateMachine.await();
+        assertEquals(100, mStateMachine.getDeferredMessageCount(TestStateMachine.WORK));
+        assertFalse(mStateMachine.hasDeferredMessages(TestStateMachine.START));
+        mStateMachine.removeDeferredMessages(TestStateMachine.WORK);
+        mStateMachine.sendMessage(TestStateMachine.WORK, 100);
+        mStateMachine.await();
+        assertEquals(1, mStateMachine.getDeferredMessageCount(TestStateMachine.WORK));
+        mStateMachine.clearHistory();
+        mStateMachine.sendMessageSyncIf(TestStateMachine.START);
+        mStateMachine.await();
+        assertEquals(Arrays.asList("exit:IdleState", "enter:BusyState", "work:100"), mStateMachine.history());
+    }
+
+    @Test
+    public void sendMessageBatch() {
+        assertSame(mStateMachine.mIdleState, mStateMachine.getCurrentState());
+        mStateMachine.clearHistory();
+        mStateMachine.sendMessageBatchSyncIf(
+                Event.obtain(TestStateMachine.WORK, 1, 0, null),
+                Event.obtain(TestStateMachine.WORK, 2, 0, null),
+                Event.obtain(TestStateMachine.START),
+                Event.obtain(TestStateMachine.WORK, 3, 0, null));
+        List<String> history = mStateMachine.history();
+        assertSame(mStateMachine.mBusyState, mStateMachine.getCurrentState());
+        assertEquals(Arrays.asList("exit:IdleState", "enter:BusyState", "work:1", "work:2", "work:3"), history);
+    }
+
+    @Test
+    public void sendMessageDelayed() throws InterruptedException {
+        mStateMachine.sendMessageDelayed(TestStateMachine.START, 50);
+        assertTrue(mStateMachine.hasMessages(TestStateMachine.START));
+        Thread.sleep(200);
+        assertFalse(mStateMachine.hasMessages(TestStateMachine.START));
+        assertSame(mStateMachine.mBusyState, mStateMachine.getCurrentState());
+    }
+
+    @Test
+    public void removeMessages() throws InterruptedException {
+        mStateMachine.sendMessageDelayed(TestStateMachine.START, 50);
+        mStateMachine.removeMessages(TestStateMachine.START);
+        Thread.sleep(200);
+        assertSame(mStateMachine.mIdleState, mStateMachine.getCurrentState());
+    }
+
+    @Test
+    public void virtualThread() {
+        Assume.assumeTrue(Dispatchers.isVirtualThreadSupported());
+        TestStateMachine machine = new TestStateMachine(Dispatchers.virtualThread());
+        machine.sendMessageSyncIf(TestStateMachine.START);
+        assertSame(machine.mBusyState, machine.getCurrentState());
+        machine.quit();
+    }
+
+    @Test(timeout = 5000)
+    public void failedEventKeepsDispatching() {
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        TestStateMachine machine = new TestStateMachine((name, callback) -> new ThreadDispatcher(name, callback, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((t, e) -> errors.add(e));
+            return thread;
+        }));
+        try {
+            machine.sendMessageSyncIf(TestStateMachine.FAIL);
+            machine.sendMessageSyncIf(TestStateMachine.START);
+            assertSame(machine.mBusyState, machine.getCurrentState());
+            assertEquals(0, machine.getDeferredMessageCount(TestStateMachine.WORK));
+            assertEquals(1, errors.size());
+            assertTrue(errors.get(0) instanceof IllegalStateException);
+        } finally {
+            machine.quit();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void quitReleasesWaiters() throws InterruptedException {
+        SyncCallback<Void> blocker = new SyncCallback<>();
+        mStateMachine.sendMessage(TestStateMachine.BLOCK, blocker);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread waiter = new Thread(() -> {
+            try {
+                mStateMachine.getDeferredMessageCount(TestStateMachine.WORK);
+            } catch (RuntimeException e) {
+                errors.add(e);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        mStateMachine.quit();
+        waiter.join();
+        blocker.unlock();
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof CancellationException);
+        try {
+            mStateMachine.sendMessageSyncIf(TestStateMachine.START);
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    static class TestStateMachine extends AbstractStateMachine {
+
+        static final int START = 0;
+        static final int STOP = 1;
+        static final int WORK = 2;
+        static final int BLOCK = 3;
+        static final int FAIL = 4;
+
+        final AbstractState mRootState = new RootState();
+        final AbstractState mIdleState = new IdleState();
+        final AbstractState mBusyState = new BusyState();
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+
+        TestStateMachine() {
+            this(null);
+        }
+
+        TestStateMachine(Dispatcher.Factory factory) {
+            super(factory);
+            addState(mRootState);
+            addState(mIdleState, mRootState);
+            addState(mBusyState, mRootState);
+            setInitialState(mIdleState);
+            start();
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        void clearHistory() {
+            mHistory.clear();
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class RootState extends AbstractState<TestStateMachine> {
+            @Override
+            public void enter(@NonNull TestStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull TestStateMachine owner, @NonNull Event event) {
+                if (event.what == BLOCK) {
+                    ((SyncCallback<?>) event.obj).lock();
+                } else if (event.what == FAIL) {
+                    throw new IllegalStateException("Failed.");
+                }
+                return HANDLED;
+            }
+        }
+
+        private static class IdleState extends AbstractState<TestStateMachine> {
+            @Override
+            public void enter(@NonNull TestStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public void exit(@NonNull TestStateMachine owner) {
+                owner.mHistory.add("exit:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull TestStateMachine owner, @NonNull Event event) {
+                boolean ret = NOT_HANDLED;
+                switch (event.what) {
+                    case START:
+                        ret = HANDLED;
+                        owner.transitionTo(owner.mBusyState);
+                        break;
+                    case WORK:
+                        ret = HANDLED;
+                        owner.deferEvent(event);
+                        break;
+                }
+                return ret;
+            }
+        }
+
+        private static class BusyState extends AbstractState<TestStateMachine> {
+            @Override
+            public void enter(@NonNull TestStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public void exit(@NonNull TestStateMachine owner) {
+                owner.mHistory.add("exit:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull TestStateMachine owner, @NonNull Event event) {
+                boolean ret = NOT_HANDLED;
+                switch (event.what) {
+                    case STOP:
+                        ret = HANDLED;
+                        owner.transitionTo(owner.mIdleState);
+                        break;
+                    case WORK:
+                        ret = HANDLED;
+                        owner.mHistory.add("work:" + event.arg1);
+                        break;
+                }
+                return ret;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncSendTest {
+
+    @Test
+    public void completesAfterTransition() {
+        SwitchStateMachine sm = new SwitchStateMachine();
+        try {
+            EventResult result = sm.sendMessageAsync(SwitchStateMachine.TOGGLE).join();
+            assertTrue(result.isHandled());
+            assertSame(SwitchStateMachine.ON_STATE, result.getCurrentState());
+            assertEquals(SwitchStateMachine.ON_STATE.name(), sm.mEntered);
+
+            result = sm.sendMessageAsync(SwitchStateMachine.UNKNOWN).join();
+            assertFalse(result.isHandled());
+            assertSame(SwitchStateMachine.ON_STATE, result.getCurrentState());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void manyInFlight() {
+        SwitchStateMachine sm = new SwitchStateMachine();
+        try {
+            List<CompletableFuture<EventResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(sm.sendMessageAsync(SwitchStateMachine.TOGGLE));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            for (int i = 0; i < futures.size(); i++) {
+                assertSame(i % 2 == 0 ? SwitchStateMachine.ON_STATE : SwitchStateMachine.OFF_STATE,
+                        futures.get(i).join().getCurrentState());
+            }
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void failedEvent() {
+        SwitchStateMachine sm = new SwitchStateMachine();
+        try {
+            try {
+                sm.sendMessageAsync(SwitchStateMachine.FAIL).join();
+                fail();
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            // The failure stays with its future; the machine goes on to the next event.
+            assertSame(SwitchStateMachine.ON_STATE, sm.sendMessageAsync(SwitchStateMachine.TOGGLE).join()
+                    .getCurrentState());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void afterQuit() {
+        SwitchStateMachine sm = new SwitchStateMachine();
+        sm.quit();
+        CompletableFuture<EventResult> future = sm.sendMessageAsync(SwitchStateMachine.TOGGLE);
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.join();
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void quitCancelsPending() {
+        SwitchStateMachine sm = new SwitchStateMachine();
+        final SyncCallback<Void> blocker = new SyncCallback<>();
+        try {
+            sm.getDispatcher().post(blocker::lock);
+            CompletableFuture<EventResult> future = sm.sendMessageAsync(SwitchStateMachine.TOGGLE);
+            sm.quit();
+            try {
+                future.join();
+                fail();
+            } catch (CancellationException expected) {
+            }
+        } finally {
+            blocker.unlock();
+        }
+    }
+
+    static class SwitchStateMachine extends AbstractStateMachine {
+
+        static final int TOGGLE = 0;
+        static final int FAIL = 1;
+        static final int UNKNOWN = 2;
+
+        static final AbstractState OFF_STATE = new OffState();
+        static final AbstractState ON_STATE = new OnState();
+
+        volatile String mEntered;
+
+        SwitchStateMachine() {
+            super(null);
+            addState(OFF_STATE);
+            addState(ON_STATE);
+            setInitialState(OFF_STATE);
+            start();
+        }
+
+        private static class SwitchState extends AbstractState<SwitchStateMachine> {
+            @Override
+            public void enter(@NonNull SwitchStateMachine owner) {
+                owner.mEntered = name();
+            }
+            @Override
+            public boolean processEvent(@NonNull SwitchStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case TOGGLE:
+                        owner.transitionTo(this == OFF_STATE ? ON_STATE : OFF_STATE);
+                        return HANDLED;
+                    case FAIL:
+                        throw new IllegalStateException("Failed.");
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class OffState extends SwitchState {
+        }
+
+        private static class OnState extends SwitchState {
+        }
+    }
+}
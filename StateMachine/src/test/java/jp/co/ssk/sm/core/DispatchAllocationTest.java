@@ -0,0 +1,212 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class DispatchAllocationTest {
+
+    private static final int WARMUP_COUNT = 20000;
+    private static final int MEASURE_COUNT = 100000;
+    private static final long ALLOWANCE_BYTES = 16 * 1024;
+
+    private PingStateMachine mStateMachine;
+    private DeferStateMachine mDeferStateMachine;
+
+    @Before
+    public void before() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void after() {
+        if (mStateMachine != null) {
+            mStateMachine.quit();
+        }
+        if (mDeferStateMachine != null) {
+            mDeferStateMachine.quit();
+        }
+    }
+
+    // Each PING is sent from the machine thread, so it is raised and runs in the same step.
+    @Test
+    public void dispatchWithoutAllocation() throws InterruptedException {
+        mStateMachine = new PingStateMachine(true);
+        mStateMachine.sendMessage(PingStateMachine.PING);
+        assertAllocationFree();
+    }
+
+    // Every PING is sent from this thread and taken from the dispatcher's queue. The machine
+    // thread is held until all are queued, so it never waits between them.
+    @Test
+    public void externalDispatchWithoutAllocation() throws InterruptedException {
+        mStateMachine = new PingStateMachine(false);
+        final CountDownLatch queued = new CountDownLatch(1);
+        mStateMachine.getDispatcher().post(() -> {
+            try {
+                queued.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < WARMUP_COUNT + MEASURE_COUNT; i++) {
+            mStateMachine.sendMessage(PingStateMachine.PING);
+        }
+        queued.countDown();
+        assertAllocationFree();
+    }
+
+    private void assertAllocationFree() throws InterruptedException {
+        assertTrue(mStateMachine.mLatch.await(30, TimeUnit.SECONDS));
+        long allocated = mStateMachine.mEndBytes - mStateMachine.mStartBytes;
+        assertTrue("allocated " + allocated + " bytes for " + MEASURE_COUNT + " events",
+                allocated < ALLOWANCE_BYTES);
+    }
+
+    @Test
+    public void dispatchWithMetricsWithoutAllocation() throws InterruptedException {
+        mStateMachine = new PingStateMachine(true);
+        mStateMachine.setMetricsEnabled(true);
+        mStateMachine.sendMessage(PingStateMachine.PING);
+        assertAllocationFree();
+        assertTrue(mStateMachine.getMetrics().getEventsProcessed() >= MEASURE_COUNT);
+    }
+
+    // Every cycle defers WORK, transitions, and replays it in the next state.
+    @Test
+    public void deferAndReplayWithoutAllocation() throws InterruptedException {
+        mDeferStateMachine = new DeferStateMachine();
+        mDeferStateMachine.sendMessage(DeferStateMachine.WORK);
+        assertTrue(mDeferStateMachine.mLatch.await(30, TimeUnit.SECONDS));
+        long allocated = mDeferStateMachine.mEndBytes - mDeferStateMachine.mStartBytes;
+        assertTrue("allocated " + allocated + " bytes for " + MEASURE_COUNT + " cycles",
+                allocated < ALLOWANCE_BYTES);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static class PingStateMachine extends AbstractStateMachine {
+
+        static final int PING = 0;
+
+        final AbstractState mRootState = new RootState();
+        final AbstractState mLeftState = new ChildState();
+        final AbstractState mLeftLeafState = new ChildState();
+        final AbstractState mRightState = new ChildState();
+        final AbstractState mRightLeafState = new ChildState();
+
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        private final boolean mSelfSend;
+        volatile long mStartBytes;
+        volatile long mEndBytes;
+        private int mCount;
+        private boolean mLeft = true;
+
+        PingStateMachine(boolean selfSend) {
+            mSelfSend = selfSend;
+            addState(mRootState);
+            addState(mLeftState, mRootState);
+            addState(mLeftLeafState, mLeftState);
+            addState(mRightState, mRootState);
+            addState(mRightLeafState, mRightState);
+            setInitialState(mLeftLeafState);
+            start();
+        }
+
+        private static class RootState extends AbstractState<PingStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull PingStateMachine owner, @NonNull Event event) {
+                owner.mCount++;
+                if (owner.mCount == WARMUP_COUNT) {
+                    owner.mStartBytes = allocatedBytes();
+                } else if (owner.mCount == WARMUP_COUNT + MEASURE_COUNT) {
+                    owner.mEndBytes = allocatedBytes();
+                    owner.mLatch.countDown();
+                    return HANDLED;
+                }
+                owner.mLeft = !owner.mLeft;
+                owner.transitionTo(owner.mLeft ? owner.mLeftLeafState : owner.mRightLeafState);
+                if (owner.mSelfSend) {
+                    owner.sendMessage(PING);
+                }
+                return HANDLED;
+            }
+        }
+
+        private static class ChildState extends AbstractState<PingStateMachine> {
+        }
+    }
+
+    static class DeferStateMachine extends AbstractStateMachine {
+
+        static final int WORK = 0;
+        static final int GO = 1;
+
+        final AbstractState mWaitingState = new WaitingState();
+        final AbstractState mWorkingState = new WorkingState();
+
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile long mStartBytes;
+        volatile long mEndBytes;
+        private int mCount;
+
+        DeferStateMachine() {
+            addState(mWaitingState);
+            addState(mWorkingState);
+            setInitialState(mWaitingState);
+            start();
+        }
+
+        private static class WaitingState extends AbstractState<DeferStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull DeferStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case WORK:
+                        owner.deferEvent(event.what, event.arg1, event.arg2, event.obj);
+                        owner.sendMessage(GO);
+                        return HANDLED;
+                    case GO:
+                        owner.transitionTo(owner.mWorkingState);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class WorkingState extends AbstractState<DeferStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull DeferStateMachine owner, @NonNull Event event) {
+                if (event.what != WORK) {
+                    return NOT_HANDLED;
+                }
+                owner.mCount++;
+                if (owner.mCount == WARMUP_COUNT) {
+                    owner.mStartBytes = allocatedBytes();
+                } else if (owner.mCount == WARMUP_COUNT + MEASURE_COUNT) {
+                    owner.mEndBytes = allocatedBytes();
+                    owner.mLatch.countDown();
+                    return HANDLED;
+                }
+                owner.transitionTo(owner.mWaitingState);
+                owner.sendMessage(WORK);
+                return HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DispatchTableTest {
+
+    private DeclaredStateMachine mStateMachine;
+
+    @Before
+    public void before() {
+        mStateMachine = new DeclaredStateMachine();
+    }
+
+    @After
+    public void after() {
+        mStateMachine.quit();
+    }
+
+    @Test
+    public void skipsStatesNotDeclaringEvent() {
+        assertEquals(Arrays.asList("Leaf:1", "Middle:1"), mStateMachine.dispatch(1));
+        assertEquals(Arrays.asList("Middle:2", "Root:2"), mStateMachine.dispatch(2));
+        assertEquals(Collections.singletonList("Root:3"), mStateMachine.dispatch(3));
+        assertEquals(Collections.singletonList("Root:100000"), mStateMachine.dispatch(100000));
+    }
+
+    @Test
+    public void tableFollowsTransitions() {
+        mStateMachine.dispatch(0);
+        assertEquals(Collections.singletonList("Middle:1"), mStateMachine.dispatch(1));
+        assertEquals(Arrays.asList("Middle:2", "Root:2"), mStateMachine.dispatch(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOutOfRangeDeclaration() {
+        new AbstractStateMachine() {
+            {
+                addState(new RecordingState("Bad", new int[]{-1}));
+            }
+        };
+    }
+
+    static class DeclaredStateMachine extends AbstractStateMachine {
+
+        final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+        final AbstractState mRoot = new RecordingState("Root", null);
+        final AbstractState mMiddle = new RecordingState("Middle", new int[]{0, 1, 2});
+        final AbstractState mLeaf = new RecordingState("Leaf", new int[]{1});
+
+        DeclaredStateMachine() {
+            addState(mRoot);
+            addState(mMiddle, mRoot);
+            addState(mLeaf, mMiddle);
+            setInitialState(mLeaf);
+            start();
+        }
+
+        List<String> dispatch(int what) {
+            mHistory.clear();
+            sendMessageSyncIf(what);
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+    }
+
+    // Records every event it is offered; Middle consumes 0 (moving to itself) and 2 is never consumed.
+    private static class RecordingState extends AbstractState<DeclaredStateMachine> {
+        private final String mName;
+        @Nullable
+        private final int[] mHandledEvents;
+        RecordingState(String name, @Nullable int[] handledEvents) {
+            mName = name;
+            mHandledEvents = handledEvents;
+        }
+        @NonNull
+        @Override
+        public String name() {
+            return mName;
+        }
+        @Nullable
+        @Override
+        public int[] handledEvents() {
+            return mHandledEvents;
+        }
+        @Override
+        public boolean processEvent(@NonNull DeclaredStateMachine owner, @NonNull Event event) {
+            owner.mHistory.add(mName + ":" + event.what);
+            if (event.what == 0 && owner.mMiddle == this) {
+                owner.transitionTo(this);
+                return AbstractStateMachine.HANDLED;
+            }
+            return event.what == 1 && owner.mMiddle == this;
+        }
+    }
+}
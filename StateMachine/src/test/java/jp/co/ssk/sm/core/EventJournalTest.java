@@ -0,0 +1,278 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void replayRestoresPositionWithoutEnter() throws IOException {
+        File file = mFolder.newFile();
+        drive(file, EventJournal.DEFAULT_SNAPSHOT_INTERVAL);
+        assertRecovered(file, EventJournal.DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    @Test
+    public void replayFromSnapshot() throws IOException {
+        File file = mFolder.newFile();
+        drive(file, 2);
+        assertRecovered(file, 2);
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        File file = mFolder.newFile();
+        drive(file, EventJournal.DEFAULT_SNAPSHOT_INTERVAL);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 40, EventJournal.EVENT, 1, 2});
+        }
+        assertRecovered(file, EventJournal.DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    @Test
+    public void snapshotCompacts() throws IOException {
+        File file = mFolder.newFile();
+        EventJournal journal = EventJournal.open(file, EventJournal.SERIALIZABLE, 10, 1);
+        JournalStateMachine machine = new JournalStateMachine(journal);
+        machine.sendMessage(JournalStateMachine.START);
+        for (int i = 0; i < 1000; i++) {
+            machine.sendMessage(JournalStateMachine.WORK, "w");
+        }
+        machine.await();
+        journal.flush();
+        // The last snapshot and at most ten events, not a thousand.
+        assertTrue(file.length() < 2048);
+        machine.quit();
+        journal.close();
+
+        journal = EventJournal.open(file, EventJournal.SERIALIZABLE, 10, 1);
+        machine = new JournalStateMachine(journal);
+        try {
+            machine.await();
+            assertSame(machine.mBusyState, machine.getCurrentState());
+            assertEquals(1000, machine.mWorkCount);
+        } finally {
+            machine.quit();
+            journal.close();
+        }
+    }
+
+    @Test
+    public void unencodablePayload() throws IOException {
+        File file = mFolder.newFile();
+        EventJournal journal = EventJournal.open(file, EventJournal.SERIALIZABLE, 10, 1);
+        JournalStateMachine machine = new JournalStateMachine(journal);
+        machine.sendMessage(JournalStateMachine.START);
+        machine.sendMessage(JournalStateMachine.NOTE, new Object());
+        machine.sendMessage(JournalStateMachine.WORK, "a");
+        machine.await();
+        assertEquals(Collections.singletonList("a"), machine.mWork);
+        assertEquals(1, machine.mLogs.size());
+        assertTrue(machine.mLogs.get(0).startsWith("Journal cannot encode"));
+        machine.quit();
+        journal.close();
+
+        journal = EventJournal.open(file, EventJournal.SERIALIZABLE, 10, 1);
+        machine = new JournalStateMachine(journal);
+        try {
+            machine.await();
+            assertSame(machine.mBusyState, machine.getCurrentState());
+            assertEquals(1, machine.mWorkCount);
+        } finally {
+            machine.quit();
+            journal.close();
+        }
+    }
+
+    @Test
+    public void interruptedRollOver() throws IOException {
+        // The sibling's snapshot is intact, so it replaces whatever the journal holds.
+        File file = mFolder.newFile();
+        File next = new File(file.getPath() + ".next");
+        drive(file, 2);
+        Files.copy(file.toPath(), next.toPath());
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        assertRecovered(file, 2);
+        assertTrue(!next.exists());
+
+        // A torn sibling is dropped and the journal it was to replace is kept.
+        file = mFolder.newFile();
+        next = new File(file.getPath() + ".next");
+        drive(file, 2);
+        try (FileOutputStream out = new FileOutputStream(next)) {
+            out.write(new byte[]{1, 2, 3});
+        }
+        assertRecovered(file, 2);
+        assertTrue(!next.exists());
+    }
+
+    private static void drive(File file, int snapshotInterval) throws IOException {
+        EventJournal journal = EventJournal.open(file, EventJournal.SERIALIZABLE, snapshotInterval, 1);
+        JournalStateMachine machine = new JournalStateMachine(journal);
+        machine.sendMessage(JournalStateMachine.WORK, "a");
+        machine.sendMessage(JournalStateMachine.START);
+        machine.sendMessage(JournalStateMachine.WORK, "b");
+        machine.sendMessage(JournalStateMachine.STOP);
+        machine.sendMessage(JournalStateMachine.WORK, "c");
+        machine.sendMessage(JournalStateMachine.START);
+        machine.sendMessage(JournalStateMachine.STOP);
+        machine.sendMessage(JournalStateMachine.WORK, "d");
+        machine.await();
+        assertEquals(Arrays.asList("a", "b", "c"), machine.mWork);
+        machine.quit();
+        journal.close();
+    }
+
+    private static void assertRecovered(File file, int snapshotInterval) throws IOException {
+        EventJournal journal = EventJournal.open(file, EventJournal.SERIALIZABLE, snapshotInterval, 1);
+        JournalStateMachine machine = new JournalStateMachine(journal);
+        try {
+            machine.await();
+            assertSame(machine.mIdleState, machine.getCurrentState());
+            assertEquals(Collections.emptyList(), machine.history());
+            assertEquals(3, machine.mWorkCount);
+            assertEquals(1, machine.getDeferredMessageCount(JournalStateMachine.WORK));
+            machine.sendMessage(JournalStateMachine.START);
+            machine.await();
+            assertEquals(Arrays.asList("exit:IdleState", "enter:BusyState"), machine.history());
+            assertEquals("d", machine.mWork.get(machine.mWork.size() - 1));
+            assertEquals(4, machine.mWorkCount);
+        } finally {
+            machine.quit();
+            journal.close();
+        }
+    }
+
+    static class JournalStateMachine extends AbstractStateMachine {
+
+        static final int START = 0;
+        static final int STOP = 1;
+        static final int WORK = 2;
+        static final int NOTE = 3;
+
+        final AbstractState mRootState = new RootState();
+        final AbstractState mIdleState = new IdleState();
+        final AbstractState mBusyState = new BusyState();
+
+        final List<String> mWork = Collections.synchronizedList(new ArrayList<>());
+        final List<String> mLogs = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+        volatile int mWorkCount;
+
+        JournalStateMachine(EventJournal journal) {
+            addState(mRootState);
+            addState(mIdleState, mRootState);
+            addState(mBusyState, mRootState);
+            setInitialState(mIdleState);
+            startFromJournal(journal);
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        @Override
+        protected void outputLog(@NonNull String log) {
+            mLogs.add(log);
+        }
+
+        @Nullable
+        @Override
+        protected Object onSaveJournalState() {
+            return mWorkCount;
+        }
+
+        @Override
+        protected void onRestoreJournalState(@Nullable Object state) {
+            mWorkCount = state == null ? 0 : (Integer) state;
+        }
+
+        private static class RootState extends AbstractState<JournalStateMachine> {
+            @Override
+            public void enter(@NonNull JournalStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull JournalStateMachine owner, @NonNull Event event) {
+                return HANDLED;
+            }
+        }
+
+        private static class IdleState extends AbstractState<JournalStateMachine> {
+            @Override
+            public void enter(@NonNull JournalStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public void exit(@NonNull JournalStateMachine owner) {
+                owner.mHistory.add("exit:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull JournalStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case START:
+                        owner.transitionTo(owner.mBusyState);
+                        return HANDLED;
+                    case WORK:
+                        owner.deferEvent(event);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class BusyState extends AbstractState<JournalStateMachine> {
+            @Override
+            public void enter(@NonNull JournalStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public void exit(@NonNull JournalStateMachine owner) {
+                owner.mHistory.add("exit:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull JournalStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case STOP:
+                        owner.transitionTo(owner.mIdleState);
+                        return HANDLED;
+                    case WORK:
+                        owner.mWork.add((String) event.obj);
+                        owner.mWorkCount++;
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLanesTest {
+
+    @Test
+    public void coalesceToLatest() {
+        LaneStateMachine sm = new LaneStateMachine();
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(LaneStateMachine.STATUS, 1);
+            sm.sendMessage(LaneStateMachine.WORK, 1);
+            sm.sendMessage(LaneStateMachine.STATUS, 2);
+            sm.sendMessage(LaneStateMachine.STATUS, 3);
+            assertTrue(sm.hasMessages(LaneStateMachine.STATUS));
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList("status:3", "work:1"), sm.history());
+
+            sm.sendMessage(LaneStateMachine.STATUS, 4);
+            sm.await();
+            assertEquals(Arrays.asList("status:3", "work:1", "status:4"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void urgentOvertakes() {
+        LaneStateMachine sm = new LaneStateMachine();
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(LaneStateMachine.WORK, 1);
+            sm.sendMessage(LaneStateMachine.WORK, 2);
+            sm.sendMessage(LaneStateMachine.STOP, 1);
+            sm.sendMessage(LaneStateMachine.STOP, 2);
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList("stop:1", "stop:2", "work:1", "work:2"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void removeHeldEvents() {
+        LaneStateMachine sm = new LaneStateMachine();
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(LaneStateMachine.STATUS, 1);
+            sm.sendMessage(LaneStateMachine.STOP, 1);
+            sm.removeMessages(LaneStateMachine.STATUS);
+            sm.removeMessages(LaneStateMachine.STOP);
+            assertFalse(sm.hasMessages(LaneStateMachine.STATUS));
+            assertFalse(sm.hasMessages(LaneStateMachine.STOP));
+            blocker.unlock();
+            sm.await();
+            assertEquals(Collections.emptyList(), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void removedKeepPostOrder() {
+        LaneStateMachine sm = new LaneStateMachine();
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(LaneStateMachine.STATUS, 1);
+            sm.removeMessages(LaneStateMachine.STATUS);
+            sm.getDispatcher().post(() -> sm.mHistory.add("post"));
+            sm.sendMessage(LaneStateMachine.STATUS, 2);
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList("post", "status:2"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void raisedEventsKeepOrder() {
+        LaneStateMachine sm = new LaneStateMachine();
+        try {
+            sm.sendMessage(LaneStateMachine.WORK, 1);
+            sm.sendMessage(LaneStateMachine.RAISE);
+            sm.await();
+            assertEquals(Arrays.asList("work:1", "raise:0", "status:1", "work:2", "status:2", "stop:1"),
+                    sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    static class LaneStateMachine extends AbstractStateMachine {
+
+        static final int WORK = 0;
+        static final int STATUS = 1;
+        static final int STOP = 2;
+        static final int RAISE = 3;
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+
+        LaneStateMachine() {
+            super(null);
+            AbstractState state = new RecordState();
+            addState(state);
+            setInitialState(state);
+            setCoalesced(STATUS, true);
+            setUrgent(STOP, true);
+            start();
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        // Holds the machine thread until the returned callback is unlocked.
+        SyncCallback<Void> block() {
+            final SyncCallback<Void> started = new SyncCallback<>();
+            final SyncCallback<Void> blocker = new SyncCallback<>();
+            getDispatcher().post(() -> {
+                started.unlock();
+                blocker.lock();
+            });
+            started.lock();
+            return blocker;
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class RecordState extends AbstractState<LaneStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull LaneStateMachine owner, @NonNull Event event) {
+                final String name = event.what == WORK ? "work" : event.what == STATUS ? "status"
+                        : event.what == STOP ? "stop" : "raise";
+                owner.mHistory.add(name + ":" + event.arg1);
+                if (event.what == RAISE) {
+                    owner.sendMessage(STATUS, 1);
+                    owner.sendMessage(WORK, 2);
+                    owner.sendMessage(STATUS, 2);
+                    owner.sendMessage(STOP, 1);
+                }
+                return HANDLED;
+            }
+        }
+    }
+}
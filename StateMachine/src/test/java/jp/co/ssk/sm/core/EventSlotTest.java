@@ -0,0 +1,129 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class EventSlotTest {
+
+    @Test
+    public void primitiveSlots() {
+        SensorStateMachine sm = new SensorStateMachine();
+        try {
+            sm.sendEvent(sm.obtainEvent(SensorStateMachine.SAMPLE, 1234567890123L, 0.25));
+            Event event = sm.obtainEvent(SensorStateMachine.SAMPLE);
+            event.longArg = -1;
+            event.doubleArg = 36.5;
+            event.obj = "celsius";
+            sm.sendEvent(event);
+            sm.await();
+            assertEquals(Arrays.asList("1234567890123:0.25:null", "-1:36.5:celsius"), sm.samples());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void reusedFromMachinePool() {
+        SensorStateMachine sm = new SensorStateMachine();
+        try {
+            Event event = sm.obtainEvent(SensorStateMachine.SAMPLE, 1, 1);
+            assertNotSame(event, Event.obtain());
+            sm.sendEvent(event);
+            sm.await();
+            assertSame(event, sm.obtainEvent(SensorStateMachine.SAMPLE));
+            assertEquals(0, event.longArg);
+            assertEquals(0, event.doubleArg, 0);
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void deferredKeepsSlots() {
+        SensorStateMachine sm = new SensorStateMachine();
+        try {
+            sm.sendMessage(SensorStateMachine.PAUSE);
+            sm.sendEvent(sm.obtainEvent(SensorStateMachine.SAMPLE, 42, 4.2));
+            sm.await();
+            assertEquals(Collections.emptyList(), sm.samples());
+            sm.sendMessage(SensorStateMachine.RESUME);
+            sm.await();
+            assertEquals(Collections.singletonList("42:4.2:null"), sm.samples());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    static class SensorStateMachine extends AbstractStateMachine {
+
+        static final int SAMPLE = 0;
+        static final int PAUSE = 1;
+        static final int RESUME = 2;
+
+        static final AbstractState RUNNING_STATE = new RunningState();
+        static final AbstractState PAUSED_STATE = new PausedState();
+
+        private final List<String> mSamples = Collections.synchronizedList(new ArrayList<>());
+
+        SensorStateMachine() {
+            super(null);
+            addState(RUNNING_STATE);
+            addState(PAUSED_STATE);
+            setInitialState(RUNNING_STATE);
+            start();
+        }
+
+        List<String> samples() {
+            synchronized (mSamples) {
+                return new ArrayList<>(mSamples);
+            }
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class RunningState extends AbstractState<SensorStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull SensorStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case SAMPLE:
+                        final String unit = event.payload();
+                        owner.mSamples.add(event.longArg + ":" + event.doubleArg + ":" + unit);
+                        return HANDLED;
+                    case PAUSE:
+                        owner.transitionTo(PAUSED_STATE);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class PausedState extends AbstractState<SensorStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull SensorStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case SAMPLE:
+                        owner.deferEvent(event);
+                        return HANDLED;
+                    case RESUME:
+                        owner.transitionTo(RUNNING_STATE);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package jp.co.ssk.sm.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class ExecutorDispatcherTest {
+
+    private static final int MACHINE_COUNT = 1000;
+    private static final int POOL_SIZE = 4;
+
+    private ExecutorService mExecutor;
+    private ScheduledExecutorService mScheduler;
+
+    @Before
+    public void before() {
+        mExecutor = Executors.newFixedThreadPool(POOL_SIZE);
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void after() {
+        mExecutor.shutdownNow();
+        mScheduler.shutdownNow();
+    }
+
+    @Test
+    public void multiplexMachines() {
+        Dispatcher.Factory factory = Dispatchers.pooled(mExecutor, mScheduler);
+        List<AbstractStateMachineTest.TestStateMachine> machines = new ArrayList<>();
+        for (int i = 0; i < MACHINE_COUNT; i++) {
+            machines.add(new AbstractStateMachineTest.TestStateMachine(factory));
+        }
+        for (AbstractStateMachineTest.TestStateMachine machine : machines) {
+            for (int i = 0; i < 10; i++) {
+                machine.sendMessage(AbstractStateMachineTest.TestStateMachine.WORK, i);
+            }
+            machine.sendMessage(AbstractStateMachineTest.TestStateMachine.START);
+        }
+        for (AbstractStateMachineTest.TestStateMachine machine : machines) {
+            machine.await();
+            assertSame(machine.mBusyState, machine.getCurrentState());
+            List<String> history = machine.history();
+            assertEquals(14, history.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("work:" + i, history.get(4 + i));
+            }
+            machine.quit();
+        }
+    }
+
+    @Test
+    public void sendMessageDelayed() throws InterruptedException {
+        AbstractStateMachineTest.TestStateMachine machine =
+                new AbstractStateMachineTest.TestStateMachine(Dispatchers.pooled(mExecutor, mScheduler));
+        machine.sendMessageDelayed(AbstractStateMachineTest.TestStateMachine.START, 50);
+        Thread.sleep(200);
+        assertSame(machine.mBusyState, machine.getCurrentState());
+        machine.quit();
+    }
+
+    @Test(timeout = 5000)
+    public void continueAfterFailure() {
+        ExecutorDispatcher dispatcher = new ExecutorDispatcher(mExecutor, mScheduler, event -> {
+        });
+        SyncCallback<Void> callback = new SyncCallback<>();
+        dispatcher.post(() -> {
+            throw new IllegalStateException("failed");
+        });
+        dispatcher.post(callback::unlock);
+        callback.lock();
+        dispatcher.quit();
+    }
+}
@@ -0,0 +1,202 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MachineRegistryTest {
+
+    @Test
+    public void routeByKey() {
+        MachineRegistry<String, CounterStateMachine> registry = new MachineRegistry<>(4, 0, CounterStateMachine::new);
+        try {
+            for (int i = 0; i < 100; i++) {
+                for (int key = 0; key < 50; key++) {
+                    registry.sendMessage("device-" + key, CounterStateMachine.ADD, i);
+                }
+            }
+            assertEquals(50, registry.size());
+            assertEquals(50, registry.getActiveCount());
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                expected.add(i);
+            }
+            for (int key = 0; key < 50; key++) {
+                CounterStateMachine sm = registry.get("device-" + key);
+                sm.await();
+                assertEquals(expected, sm.received());
+            }
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    @Test
+    public void passivateAndReactivate() throws InterruptedException {
+        MachineRegistry<String, CounterStateMachine> registry = new MachineRegistry<>(2, 0, CounterStateMachine::new);
+        try {
+            registry.sendMessage("a", CounterStateMachine.ADD, 1);
+            registry.sendMessage("a", CounterStateMachine.ADD, 2);
+            registry.sendMessage("b", CounterStateMachine.ADD, 5);
+            registry.get("a").await();
+            registry.get("b").await();
+
+            // The first sweep only clears the sent-to marks.
+            registry.passivateIdle();
+            assertTrue(registry.isActive("a"));
+            registry.passivateIdle();
+            waitInactive(registry, "a");
+            waitInactive(registry, "b");
+            assertEquals(2, registry.size());
+            assertEquals(0, registry.getActiveCount());
+
+            registry.sendMessage("a", CounterStateMachine.ADD, 3);
+            CounterStateMachine sm = registry.get("a");
+            sm.await();
+            assertEquals(6, sm.mTotal);
+            assertEquals(0, sm.mStarts);
+            assertEquals(1, registry.getActiveCount());
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    @Test
+    public void keepArmedTimeouts() {
+        MachineRegistry<String, CounterStateMachine> registry = new MachineRegistry<>(1, 0, CounterStateMachine::new);
+        try {
+            registry.sendMessage("a", CounterStateMachine.ARM);
+            CounterStateMachine sm = registry.get("a");
+            sm.await();
+            registry.passivateIdle();
+            registry.passivateIdle();
+            sm.await();
+            assertTrue(registry.isActive("a"));
+
+            registry.remove("a");
+            assertFalse(registry.contains("a"));
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void blockedSenderReleasesShard() throws InterruptedException {
+        MachineRegistry<String, CounterStateMachine> registry = new MachineRegistry<>(1, 0, (key, factory, state) -> {
+            CounterStateMachine sm = new CounterStateMachine(key, factory, state);
+            sm.setMailboxCapacity(1, AbstractStateMachine.OVERFLOW_BLOCK);
+            return sm;
+        });
+        try {
+            SyncCallback<Void> blocker = new SyncCallback<>();
+            registry.sendMessage("a", CounterStateMachine.BLOCK, blocker);
+            CounterStateMachine sm = registry.get("a");
+            sm.mBlocked.lock();
+            registry.sendMessage("a", CounterStateMachine.ADD, 1);
+            Thread sender = new Thread(() -> registry.sendMessage("a", CounterStateMachine.ADD, 2));
+            sender.start();
+            while (sender.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            // The parked sender must not keep other callers out of the shard.
+            assertTrue(registry.isActive("a"));
+            assertFalse(registry.contains("b"));
+            registry.passivateIdle();
+            registry.passivateIdle();
+            blocker.unlock();
+            sender.join();
+            sm.await();
+            assertEquals(Arrays.asList(1, 2), sm.received());
+            assertTrue(registry.isActive("a"));
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    private static void waitInactive(@NonNull MachineRegistry<String, ?> registry, @NonNull String key)
+            throws InterruptedException {
+        for (int i = 0; i < 500 && registry.isActive(key); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(registry.isActive(key));
+    }
+
+    static class CounterStateMachine extends AbstractStateMachine {
+
+        static final int ADD = 0;
+        static final int ARM = 1;
+        static final int TIMEOUT = 2;
+        static final int BLOCK = 3;
+
+        private static final AbstractState COUNTING_STATE = new CountingState();
+
+        private final List<Integer> mReceived = Collections.synchronizedList(new ArrayList<>());
+        final SyncCallback<Void> mBlocked = new SyncCallback<>();
+        volatile int mTotal;
+        volatile int mStarts;
+
+        CounterStateMachine(@NonNull String key, @NonNull Dispatcher.Factory factory, @Nullable byte[] state) {
+            super(factory);
+            addState(COUNTING_STATE);
+            setInitialState(COUNTING_STATE);
+            if (state == null) {
+                mStarts++;
+                start();
+            } else {
+                restoreState(state);
+            }
+        }
+
+        List<Integer> received() {
+            synchronized (mReceived) {
+                return new ArrayList<>(mReceived);
+            }
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        @Override
+        protected Object onSaveJournalState() {
+            return mTotal;
+        }
+
+        @Override
+        protected void onRestoreJournalState(@Nullable Object state) {
+            mTotal = (Integer) state;
+        }
+
+        private static class CountingState extends AbstractState<CounterStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull CounterStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case ADD:
+                        owner.mReceived.add(event.arg1);
+                        owner.mTotal += event.arg1;
+                        return HANDLED;
+                    case ARM:
+                        owner.startTimeout(TIMEOUT, 60000);
+                        return HANDLED;
+                    case BLOCK:
+                        owner.mBlocked.unlock();
+                        ((SyncCallback<?>) event.obj).lock();
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
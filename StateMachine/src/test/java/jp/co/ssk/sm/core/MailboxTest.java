@@ -0,0 +1,208 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MailboxTest {
+
+    @Test
+    public void dropOldest() {
+        BoundedStateMachine sm = new BoundedStateMachine(2, AbstractStateMachine.OVERFLOW_DROP_OLDEST);
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            for (int i = 1; i <= 4; i++) {
+                sm.sendMessage(BoundedStateMachine.WORK, i);
+            }
+            assertTrue(sm.trySendMessage(BoundedStateMachine.WORK, 5));
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList(4, 5), sm.handled());
+            assertEquals(3, sm.getDroppedMessageCount());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void dropNewest() {
+        BoundedStateMachine sm = new BoundedStateMachine(2, AbstractStateMachine.OVERFLOW_DROP_NEWEST);
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            for (int i = 1; i <= 3; i++) {
+                sm.sendMessage(BoundedStateMachine.WORK, i);
+            }
+            assertFalse(sm.trySendMessage(BoundedStateMachine.WORK, 4));
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList(1, 2), sm.handled());
+            assertEquals(2, sm.getDroppedMessageCount());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void reject() {
+        BoundedStateMachine sm = new BoundedStateMachine(1, AbstractStateMachine.OVERFLOW_REJECT);
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(BoundedStateMachine.WORK, 1);
+            try {
+                sm.sendMessage(BoundedStateMachine.WORK, 2);
+                fail();
+            } catch (RejectedExecutionException expected) {
+            }
+            assertFalse(sm.trySendMessage(BoundedStateMachine.WORK, 3));
+            blocker.unlock();
+            sm.await();
+            assertEquals(Collections.singletonList(1), sm.handled());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void blockProducer() throws InterruptedException {
+        BoundedStateMachine sm = new BoundedStateMachine(1, AbstractStateMachine.OVERFLOW_BLOCK);
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(BoundedStateMachine.WORK, 1);
+            assertFalse(sm.trySendMessage(BoundedStateMachine.WORK, 2));
+            Thread producer = new Thread(() -> {
+                sm.sendMessage(BoundedStateMachine.WORK, 3);
+                sm.sendMessage(BoundedStateMachine.WORK, 4);
+            });
+            producer.start();
+            while (producer.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            blocker.unlock();
+            producer.join();
+            sm.await();
+            assertEquals(Arrays.asList(1, 3, 4), sm.handled());
+            assertEquals(0, sm.getDroppedMessageCount());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void demand() {
+        BoundedStateMachine sm = new BoundedStateMachine(8, AbstractStateMachine.OVERFLOW_REJECT);
+        try {
+            final AtomicInteger credits = new AtomicInteger();
+            sm.setDemandListener(credits::addAndGet);
+            sm.await();
+            assertEquals(8, credits.get());
+            int sent = 0;
+            while (sent < 100) {
+                if (credits.get() > 0) {
+                    credits.decrementAndGet();
+                    sm.sendMessage(BoundedStateMachine.WORK, sent++);
+                } else {
+                    Thread.yield();
+                }
+            }
+            sm.await();
+            assertEquals(100, sm.handled().size());
+            assertEquals(8, credits.get());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void droppedKeepPostOrder() {
+        BoundedStateMachine sm = new BoundedStateMachine(1, AbstractStateMachine.OVERFLOW_DROP_OLDEST);
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(BoundedStateMachine.WORK, 1);
+            sm.sendMessage(BoundedStateMachine.WORK, 2);
+            sm.getDispatcher().post(() -> sm.mHandled.add(0));
+            sm.sendMessage(BoundedStateMachine.WORK, 3);
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList(0, 3), sm.handled());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void removedKeepPostOrder() {
+        BoundedStateMachine sm = new BoundedStateMachine(8, AbstractStateMachine.OVERFLOW_REJECT);
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(BoundedStateMachine.WORK, 1);
+            sm.sendMessage(BoundedStateMachine.WORK, 2);
+            sm.removeMessages(BoundedStateMachine.WORK);
+            sm.getDispatcher().post(() -> sm.mHandled.add(0));
+            sm.sendMessage(BoundedStateMachine.WORK, 3);
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList(0, 3), sm.handled());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    static class BoundedStateMachine extends AbstractStateMachine {
+
+        static final int WORK = 0;
+
+        private final List<Integer> mHandled = Collections.synchronizedList(new ArrayList<>());
+
+        BoundedStateMachine(int capacity, int overflowPolicy) {
+            super(null);
+            AbstractState state = new WorkState();
+            addState(state);
+            setInitialState(state);
+            setMailboxCapacity(capacity, overflowPolicy);
+            start();
+        }
+
+        List<Integer> handled() {
+            synchronized (mHandled) {
+                return new ArrayList<>(mHandled);
+            }
+        }
+
+        SyncCallback<Void> block() {
+            final SyncCallback<Void> started = new SyncCallback<>();
+            final SyncCallback<Void> blocker = new SyncCallback<>();
+            getDispatcher().post(() -> {
+                started.unlock();
+                blocker.lock();
+            });
+            started.lock();
+            return blocker;
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class WorkState extends AbstractState<BoundedStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull BoundedStateMachine owner, @NonNull Event event) {
+                owner.mHandled.add(event.arg1);
+                return HANDLED;
+            }
+        }
+    }
+}
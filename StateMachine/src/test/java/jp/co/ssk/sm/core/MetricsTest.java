@@ -0,0 +1,86 @@
+package jp.co.ssk.sm.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    private AbstractStateMachineTest.TestStateMachine mStateMachine;
+
+    @Before
+    public void before() {
+        mStateMachine = new AbstractStateMachineTest.TestStateMachine();
+        assertNull(mStateMachine.getMetrics());
+        mStateMachine.setMetricsEnabled(true);
+        mStateMachine.await();
+    }
+
+    @After
+    public void after() {
+        mStateMachine.quit();
+    }
+
+    @Test
+    public void countsTransitionsAndEvents() {
+        mStateMachine.sendMessage(AbstractStateMachineTest.TestStateMachine.WORK, 1);
+        mStateMachine.sendMessage(AbstractStateMachineTest.TestStateMachine.WORK, 2);
+        mStateMachine.await();
+        StateMachineMetrics metrics = mStateMachine.getMetrics();
+        assertNotNull(metrics);
+        assertEquals(2, metrics.getDeferredDepth());
+        mStateMachine.sendMessageSyncIf(AbstractStateMachineTest.TestStateMachine.START);
+        mStateMachine.sendMessageSyncIf(AbstractStateMachineTest.TestStateMachine.STOP);
+        mStateMachine.await();
+
+        assertEquals(6, metrics.getEventsProcessed());
+        assertEquals(4, metrics.getHandledCount(AbstractStateMachineTest.TestStateMachine.WORK));
+        assertEquals(1, metrics.getHandledCount(AbstractStateMachineTest.TestStateMachine.START));
+        assertEquals(0, metrics.getUnhandledCount(AbstractStateMachineTest.TestStateMachine.START));
+        assertEquals(1, metrics.getEnterCount(mStateMachine.mBusyState));
+        assertEquals(1, metrics.getExitCount(mStateMachine.mBusyState));
+        assertEquals(1, metrics.getEnterCount(mStateMachine.mIdleState));
+        assertEquals(0, metrics.getDeferredDepth());
+        assertEquals(0, metrics.getMailboxDepth());
+        assertEquals(6, metrics.getDispatchLatency().getCount());
+        assertEquals(2, metrics.getTransitionLatency().getCount());
+
+        Map<String, Long> exported = metrics.export();
+        assertEquals(Long.valueOf(6), exported.get("events.processed"));
+        assertEquals(Long.valueOf(1), exported.get("state.BusyState.enter"));
+        assertEquals(Long.valueOf(4), exported.get("event.2.handled"));
+        assertTrue(exported.containsKey("dispatch.latency.p99"));
+    }
+
+    @Test
+    public void disable() {
+        mStateMachine.setMetricsEnabled(false);
+        mStateMachine.await();
+        assertNull(mStateMachine.getMetrics());
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1_000_000, histogram.getMax());
+        assertEquals(500_500, histogram.getMean(), 0.5);
+        assertWithin(500_000, histogram.getValueAtPercentile(50));
+        assertWithin(990_000, histogram.getValueAtPercentile(99));
+        assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(expected + " vs " + actual, Math.abs(actual - expected) <= expected / 8);
+    }
+}
@@ -0,0 +1,104 @@
+package jp.co.ssk.sm.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MpscDispatcherTest {
+
+    private static final int PRODUCER_COUNT = 4;
+    private static final int EVENT_COUNT = 2000;
+
+    @Test
+    public void multipleProducersPark() throws InterruptedException {
+        multipleProducers(MpscDispatcher.WaitStrategy.PARK);
+    }
+
+    @Test
+    public void multipleProducersSpin() throws InterruptedException {
+        multipleProducers(MpscDispatcher.WaitStrategy.SPIN);
+    }
+
+    @Test
+    public void multipleProducersYield() throws InterruptedException {
+        multipleProducers(MpscDispatcher.WaitStrategy.YIELD);
+    }
+
+    @Test
+    public void sendMessageDelayed() throws InterruptedException {
+        AbstractStateMachineTest.TestStateMachine machine =
+                new AbstractStateMachineTest.TestStateMachine(Dispatchers.mpsc(MpscDispatcher.WaitStrategy.PARK));
+        machine.sendMessageDelayed(AbstractStateMachineTest.TestStateMachine.START, 50);
+        assertTrue(machine.hasMessages(AbstractStateMachineTest.TestStateMachine.START));
+        Thread.sleep(200);
+        assertFalse(machine.hasMessages(AbstractStateMachineTest.TestStateMachine.START));
+        assertSame(machine.mBusyState, machine.getCurrentState());
+        machine.sendMessageDelayed(AbstractStateMachineTest.TestStateMachine.STOP, 50);
+        machine.removeMessages(AbstractStateMachineTest.TestStateMachine.STOP);
+        Thread.sleep(200);
+        assertSame(machine.mBusyState, machine.getCurrentState());
+        machine.quit();
+    }
+
+    @Test(timeout = 5000)
+    public void queriesDoNotWait() {
+        MpscDispatcher dispatcher = new MpscDispatcher("test", event -> {
+        }, MpscDispatcher.WaitStrategy.PARK);
+        SyncCallback<Void> started = new SyncCallback<>();
+        SyncCallback<Void> blocker = new SyncCallback<>();
+        dispatcher.post(() -> {
+            started.unlock();
+            blocker.lock();
+        });
+        started.lock();
+        Event event = Event.obtain();
+        event.what = 7;
+        dispatcher.sendEvent(event);
+        // Answered while the dispatcher thread is busy.
+        assertTrue(dispatcher.hasEvents(7));
+        assertFalse(dispatcher.hasEvents(8));
+        dispatcher.quit();
+        blocker.unlock();
+        assertFalse(dispatcher.hasEvents(7));
+        dispatcher.removeEvents(7);
+    }
+
+    private void multipleProducers(MpscDispatcher.WaitStrategy waitStrategy) throws InterruptedException {
+        final AbstractStateMachineTest.TestStateMachine machine =
+                new AbstractStateMachineTest.TestStateMachine(Dispatchers.mpsc(waitStrategy));
+        machine.sendMessageSyncIf(AbstractStateMachineTest.TestStateMachine.START);
+        machine.clearHistory();
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCER_COUNT; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < EVENT_COUNT; i++) {
+                    machine.sendMessage(AbstractStateMachineTest.TestStateMachine.WORK, producer * EVENT_COUNT + i);
+                }
+            });
+            producers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+        machine.await();
+        assertSame(machine.mBusyState, machine.getCurrentState());
+        List<String> history = machine.history();
+        assertEquals(PRODUCER_COUNT * EVENT_COUNT, history.size());
+        int[] last = new int[PRODUCER_COUNT];
+        for (String entry : history) {
+            int value = Integer.parseInt(entry.substring("work:".length()));
+            int producer = value / EVENT_COUNT;
+            assertEquals(last[producer], value % EVENT_COUNT);
+            last[producer]++;
+        }
+        machine.quit();
+    }
+}
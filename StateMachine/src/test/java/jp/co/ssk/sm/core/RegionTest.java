@@ -0,0 +1,326 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RegionTest {
+
+    @Test
+    public void broadcastToRegions() {
+        DeviceStateMachine sm = new DeviceStateMachine(null);
+        try {
+            sm.sendMessageSyncIf(DeviceStateMachine.POWER_ON);
+            assertEquals(Arrays.asList("enter:OffState", "exit:OffState", "enter:OnState",
+                    "enter:DisconnectedState", "enter:NormalState"), sm.history());
+            assertEquals(Arrays.asList(DeviceStateMachine.DISCONNECTED_STATE, DeviceStateMachine.NORMAL_STATE),
+                    sm.getActiveRegionStates());
+
+            sm.clearHistory();
+            sm.sendMessageSyncIf(DeviceStateMachine.CONNECT);
+            sm.sendMessageSyncIf(DeviceStateMachine.BATTERY_LOW);
+            assertEquals(Arrays.asList("exit:DisconnectedState", "enter:ConnectedState",
+                    "exit:NormalState", "enter:LowState"), sm.history());
+            assertEquals(Arrays.asList(DeviceStateMachine.CONNECTED_STATE, DeviceStateMachine.LOW_STATE),
+                    sm.getActiveRegionStates());
+            assertSame(DeviceStateMachine.ON_STATE, sm.getCurrentState());
+
+            sm.clearHistory();
+            sm.sendMessageSyncIf(DeviceStateMachine.BATTERY_EMPTY);
+            assertEquals(Arrays.asList("exit:LowState", "exit:ConnectedState", "exit:OnState", "enter:OffState"),
+                    sm.history());
+            assertEquals(Collections.emptyList(), sm.getActiveRegionStates());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void parallelRegions() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        DeviceStateMachine sm = new DeviceStateMachine(pool);
+        try {
+            sm.sendMessageSyncIf(DeviceStateMachine.POWER_ON);
+            sm.clearHistory();
+            // Each region waits for the other, so this only completes if both run at once.
+            sm.mRendezvous = new CountDownLatch(2);
+            sm.sendMessageSyncIf(DeviceStateMachine.SYNC);
+            assertEquals(0, sm.mRendezvous.getCount());
+            assertTrue(sm.mRendezvousMet);
+            assertEquals(Arrays.asList("exit:DisconnectedState", "enter:ConnectedState",
+                    "exit:NormalState", "enter:LowState"), sm.history());
+        } finally {
+            sm.quit();
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void parallelSendsToFullMailbox() throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        DeviceStateMachine sm = new DeviceStateMachine(pool);
+        try {
+            sm.setMailboxCapacity(1, AbstractStateMachine.OVERFLOW_BLOCK);
+            sm.sendMessageSyncIf(DeviceStateMachine.POWER_ON);
+            sm.clearHistory();
+            sm.mStarted = new CountDownLatch(2);
+            sm.mGate = new CountDownLatch(1);
+            sm.sendMessage(DeviceStateMachine.FLOOD);
+            assertTrue(sm.mStarted.await(5, TimeUnit.SECONDS));
+            // Fills the mailbox while both regions are still dispatching FLOOD.
+            sm.sendMessage(DeviceStateMachine.FILL);
+            sm.mGate.countDown();
+            sm.sendMessageSyncIf(DeviceStateMachine.FILL);
+            assertEquals(Arrays.asList("report:0", "report:1", "report:2",
+                    "report:10", "report:11", "report:12", "fill", "fill"), sm.history());
+        } finally {
+            sm.quit();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void regionSendsRunToCompletion() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            // Events sent by the regions run before FILL, whichever thread each region ran on.
+            assertEquals(Arrays.asList("report:0", "report:1", "report:2",
+                    "report:10", "report:11", "report:12", "fill", "fill"), floodThenFill(null));
+            assertEquals(floodThenFill(null), floodThenFill(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static List<String> floodThenFill(@Nullable ForkJoinPool pool) {
+        DeviceStateMachine sm = new DeviceStateMachine(pool);
+        try {
+            sm.sendMessageSyncIf(DeviceStateMachine.POWER_ON);
+            sm.clearHistory();
+            sm.mStarted = new CountDownLatch(2);
+            sm.mGate = new CountDownLatch(0);
+            final SyncCallback<Void> blocker = new SyncCallback<>();
+            sm.getDispatcher().post(blocker::lock);
+            sm.sendMessage(DeviceStateMachine.FLOOD);
+            sm.sendMessage(DeviceStateMachine.FILL);
+            blocker.unlock();
+            sm.sendMessageSyncIf(DeviceStateMachine.FILL);
+            return sm.history();
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void saveRegions() {
+        DeviceStateMachine source = new DeviceStateMachine(null);
+        source.sendMessageSyncIf(DeviceStateMachine.POWER_ON);
+        source.sendMessageSyncIf(DeviceStateMachine.BATTERY_LOW);
+        byte[] state = source.saveState();
+        source.quit();
+
+        DeviceStateMachine target = new DeviceStateMachine(null, state);
+        try {
+            assertEquals(Arrays.asList(DeviceStateMachine.DISCONNECTED_STATE, DeviceStateMachine.LOW_STATE),
+                    target.getActiveRegionStates());
+            assertEquals(Collections.emptyList(), target.history());
+        } finally {
+            target.quit();
+        }
+    }
+
+    static class DeviceStateMachine extends AbstractStateMachine {
+
+        static final int POWER_ON = 0;
+        static final int CONNECT = 1;
+        static final int BATTERY_LOW = 2;
+        static final int BATTERY_EMPTY = 3;
+        static final int SYNC = 4;
+        static final int FLOOD = 5;
+        static final int REPORT = 6;
+        static final int FILL = 7;
+
+        static final AbstractState OFF_STATE = new OffState();
+        static final AbstractState DISCONNECTED_STATE = new DisconnectedState();
+        static final AbstractState CONNECTED_STATE = new ConnectedState();
+        static final AbstractState NORMAL_STATE = new NormalState();
+        static final AbstractState LOW_STATE = new LowState();
+
+        static final StateTopology CONNECTION = new StateTopology.Builder()
+                .addState(DISCONNECTED_STATE)
+                .addState(CONNECTED_STATE)
+                .setInitialState(DISCONNECTED_STATE)
+                .build();
+        static final StateTopology BATTERY = new StateTopology.Builder()
+                .addState(NORMAL_STATE)
+                .addState(LOW_STATE)
+                .setInitialState(NORMAL_STATE)
+                .build();
+
+        static final AbstractState ON_STATE = new OnState();
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+        volatile CountDownLatch mRendezvous;
+        volatile boolean mRendezvousMet = true;
+        volatile CountDownLatch mStarted;
+        volatile CountDownLatch mGate;
+
+        DeviceStateMachine(@Nullable ForkJoinPool pool) {
+            this(pool, null);
+        }
+
+        DeviceStateMachine(@Nullable ForkJoinPool pool, @Nullable byte[] state) {
+            super(null);
+            addState(OFF_STATE);
+            addState(ON_STATE);
+            setInitialState(OFF_STATE);
+            setParallelRegions(pool);
+            if (state == null) {
+                start();
+            } else {
+                restoreState(state);
+            }
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        void clearHistory() {
+            mHistory.clear();
+        }
+
+        void rendezvous() {
+            mRendezvous.countDown();
+            try {
+                if (!mRendezvous.await(5, TimeUnit.SECONDS)) {
+                    mRendezvousMet = false;
+                }
+            } catch (InterruptedException e) {
+                mRendezvousMet = false;
+            }
+        }
+
+        // Sends three reports from a region once the test opens the gate.
+        void flood(int base) {
+            mStarted.countDown();
+            try {
+                mGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < 3; i++) {
+                sendMessage(REPORT, base + i);
+            }
+        }
+
+        private static class TracedState extends AbstractState<DeviceStateMachine> {
+            @Override
+            public void enter(@NonNull DeviceStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public void exit(@NonNull DeviceStateMachine owner) {
+                owner.mHistory.add("exit:" + name());
+            }
+        }
+
+        private static class OffState extends TracedState {
+            @Override
+            public boolean processEvent(@NonNull DeviceStateMachine owner, @NonNull Event event) {
+                if (event.what == POWER_ON) {
+                    owner.transitionTo(ON_STATE);
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class OnState extends TracedState {
+            @Nullable
+            @Override
+            public StateTopology[] regions() {
+                return new StateTopology[]{CONNECTION, BATTERY};
+            }
+            @Override
+            public boolean processEvent(@NonNull DeviceStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case REPORT:
+                        owner.mHistory.add("report:" + event.arg1);
+                        return HANDLED;
+                    case FILL:
+                        owner.mHistory.add("fill");
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class DisconnectedState extends TracedState {
+            @Override
+            public boolean processEvent(@NonNull DeviceStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case SYNC:
+                        owner.rendezvous();
+                        owner.transitionTo(CONNECTED_STATE);
+                        return HANDLED;
+                    case CONNECT:
+                        owner.transitionTo(CONNECTED_STATE);
+                        return HANDLED;
+                    case FLOOD:
+                        owner.flood(0);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class ConnectedState extends TracedState {
+        }
+
+        private static class NormalState extends TracedState {
+            @Override
+            public boolean processEvent(@NonNull DeviceStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case SYNC:
+                        owner.rendezvous();
+                        owner.transitionTo(LOW_STATE);
+                        return HANDLED;
+                    case BATTERY_LOW:
+                        owner.transitionTo(LOW_STATE);
+                        return HANDLED;
+                    case FLOOD:
+                        owner.flood(10);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class LowState extends TracedState {
+            @Override
+            public boolean processEvent(@NonNull DeviceStateMachine owner, @NonNull Event event) {
+                if (event.what == BATTERY_EMPTY) {
+                    owner.transitionTo(OFF_STATE);
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RunToCompletionTest {
+
+    @Test
+    public void raisedEventsRunFirst() {
+        ChainStateMachine sm = new ChainStateMachine();
+        try {
+            SyncCallback<Void> blocker = sm.block();
+            sm.sendMessage(ChainStateMachine.RAISE, 1);
+            sm.sendMessage(ChainStateMachine.LOG, 9);
+            blocker.unlock();
+            sm.await();
+            assertEquals(Arrays.asList("raise:1", "log:2", "raise:3", "log:4", "log:9"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void chainCompletesInOneSend() {
+        ChainStateMachine sm = new ChainStateMachine();
+        try {
+            sm.sendMessageSyncIf(ChainStateMachine.CONNECT);
+            assertSame(ChainStateMachine.CONNECTED_STATE, sm.getCurrentState());
+            assertEquals(Arrays.asList("enter:Connecting1State", "enter:Connecting2State",
+                    "enter:ConnectedState"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void removeRaisedEvents() {
+        ChainStateMachine sm = new ChainStateMachine();
+        try {
+            sm.sendMessageSyncIf(ChainStateMachine.CANCEL);
+            sm.await();
+            assertEquals(Collections.singletonList("cancel:0"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void deferredEventsBeforeRaised() {
+        ChainStateMachine sm = new ChainStateMachine();
+        try {
+            sm.sendMessage(ChainStateMachine.WORK, 1);
+            sm.sendMessageSyncIf(ChainStateMachine.GO);
+            sm.await();
+            // WORK was deferred in IdleState and is replayed ahead of NEXT, raised with the transition.
+            assertSame(ChainStateMachine.IDLE_STATE, sm.getCurrentState());
+            assertEquals(Arrays.asList("work:1", "next"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    static class ChainStateMachine extends AbstractStateMachine {
+
+        static final int RAISE = 0;
+        static final int LOG = 1;
+        static final int CONNECT = 2;
+        static final int COMPLETE = 3;
+        static final int CANCEL = 4;
+        static final int WORK = 5;
+        static final int GO = 6;
+        static final int NEXT = 7;
+
+        static final AbstractState IDLE_STATE = new IdleState();
+        static final AbstractState CONNECTING1_STATE = new Connecting1State();
+        static final AbstractState CONNECTING2_STATE = new Connecting2State();
+        static final AbstractState CONNECTED_STATE = new ConnectedState();
+        static final AbstractState WORKING_STATE = new WorkingState();
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+
+        ChainStateMachine() {
+            super(null);
+            addState(IDLE_STATE);
+            addState(CONNECTING1_STATE);
+            addState(CONNECTING2_STATE);
+            addState(CONNECTED_STATE);
+            addState(WORKING_STATE);
+            setInitialState(IDLE_STATE);
+            start();
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        SyncCallback<Void> block() {
+            final SyncCallback<Void> started = new SyncCallback<>();
+            final SyncCallback<Void> blocker = new SyncCallback<>();
+            getDispatcher().post(() -> {
+                started.unlock();
+                blocker.lock();
+            });
+            started.lock();
+            return blocker;
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class IdleState extends AbstractState<ChainStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull ChainStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case RAISE:
+                        owner.mHistory.add("raise:" + event.arg1);
+                        if (event.arg1 == 1) {
+                            owner.sendMessage(LOG, 2);
+                            owner.sendMessageSyncIf(RAISE, 3);
+                        } else {
+                            owner.sendMessage(LOG, 4);
+                        }
+                        return HANDLED;
+                    case LOG:
+                        owner.mHistory.add("log:" + event.arg1);
+                        return HANDLED;
+                    case CONNECT:
+                        owner.transitionTo(CONNECTING1_STATE);
+                        return HANDLED;
+                    case CANCEL:
+                        owner.mHistory.add("cancel:" + event.arg1);
+                        owner.sendMessage(LOG, 5);
+                        owner.sendMessage(LOG, 6);
+                        owner.removeMessages(LOG);
+                        return HANDLED;
+                    case WORK:
+                        owner.deferEvent(event);
+                        return HANDLED;
+                    case GO:
+                        owner.sendMessage(NEXT);
+                        owner.transitionTo(WORKING_STATE);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class ConnectingState extends AbstractState<ChainStateMachine> {
+            @Override
+            public void enter(@NonNull ChainStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+                owner.sendMessage(COMPLETE);
+            }
+        }
+
+        private static class Connecting1State extends ConnectingState {
+            @Override
+            public boolean processEvent(@NonNull ChainStateMachine owner, @NonNull Event event) {
+                if (event.what == COMPLETE) {
+                    owner.transitionTo(CONNECTING2_STATE);
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class Connecting2State extends ConnectingState {
+            @Override
+            public boolean processEvent(@NonNull ChainStateMachine owner, @NonNull Event event) {
+                if (event.what == COMPLETE) {
+                    owner.transitionTo(CONNECTED_STATE);
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class ConnectedState extends AbstractState<ChainStateMachine> {
+            @Override
+            public void enter(@NonNull ChainStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+        }
+
+        private static class WorkingState extends AbstractState<ChainStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull ChainStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case WORK:
+                        owner.mHistory.add("work:" + event.arg1);
+                        return HANDLED;
+                    case NEXT:
+                        owner.mHistory.add("next");
+                        owner.transitionTo(IDLE_STATE);
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SaveStateTest {
+
+    private final long[] mNow = new long[1];
+
+    @Test
+    public void restoreWithoutEnter() {
+        TimerWheel sourceWheel = new TimerWheel(() -> mNow[0], 10);
+        TimerWheel targetWheel = new TimerWheel(() -> mNow[0], 10);
+        SavedStateMachine source = new SavedStateMachine(sourceWheel, null);
+        source.sendMessage(SavedStateMachine.WORK, 1);
+        source.sendMessage(SavedStateMachine.WORK, 2);
+        source.sendMessage(SavedStateMachine.ARM);
+        source.await();
+        mNow[0] = 400;
+        byte[] state = source.saveState();
+        source.quit();
+
+        SavedStateMachine target = new SavedStateMachine(targetWheel, state);
+        try {
+            target.await();
+            assertSame(target.mIdleState, target.getCurrentState());
+            assertEquals(Collections.emptyList(), target.history());
+            assertEquals(2, target.getDeferredMessageCount(SavedStateMachine.WORK));
+            assertEquals(7, target.mCount);
+            assertEquals(1, targetWheel.size());
+
+            advanceTo(targetWheel, 990);
+            target.await();
+            assertEquals(Collections.emptyList(), target.history());
+            advanceTo(targetWheel, 1000);
+            target.await();
+            assertEquals(Collections.singletonList("timeout"), target.history());
+
+            target.sendMessage(SavedStateMachine.START);
+            target.await();
+            assertEquals(Arrays.asList("timeout", "exit:IdleState", "enter:BusyState", "work:1", "work:2"),
+                    target.history());
+        } finally {
+            target.quit();
+        }
+    }
+
+    @Test
+    public void restoreManyInParallel() {
+        SavedStateMachine source = new SavedStateMachine(TimerWheel.shared(), null);
+        source.sendMessageSyncIf(SavedStateMachine.START);
+        byte[] state = source.saveState();
+        source.quit();
+
+        Dispatcher.Factory factory = Dispatchers.pooled();
+        List<SavedStateMachine> machines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            machines.add(new SavedStateMachine(factory, state));
+        }
+        for (SavedStateMachine machine : machines) {
+            machine.await();
+            assertSame(machine.mBusyState, machine.getCurrentState());
+            assertEquals(Collections.emptyList(), machine.history());
+            machine.quit();
+        }
+    }
+
+    private void advanceTo(TimerWheel wheel, long now) {
+        mNow[0] = now;
+        wheel.advance();
+    }
+
+    static class SavedStateMachine extends AbstractStateMachine {
+
+        static final int START = 0;
+        static final int WORK = 1;
+        static final int ARM = 2;
+        static final int TIMEOUT = 3;
+
+        final AbstractState mRootState = new RootState();
+        final AbstractState mIdleState = new IdleState();
+        final AbstractState mBusyState = new BusyState();
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+        volatile int mCount = 7;
+
+        SavedStateMachine(TimerWheel wheel, @Nullable byte[] state) {
+            this(null, wheel, state);
+        }
+
+        SavedStateMachine(Dispatcher.Factory factory, byte[] state) {
+            this(factory, TimerWheel.shared(), state);
+        }
+
+        private SavedStateMachine(@Nullable Dispatcher.Factory factory, TimerWheel wheel, @Nullable byte[] state) {
+            super(factory);
+            setTimerWheel(wheel);
+            addState(mRootState);
+            addState(mIdleState, mRootState);
+            addState(mBusyState, mRootState);
+            setInitialState(mIdleState);
+            if (state == null) {
+                start();
+            } else {
+                mCount = 0;
+                restoreState(state);
+            }
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        @Nullable
+        @Override
+        protected Object onSaveJournalState() {
+            return mCount;
+        }
+
+        @Override
+        protected void onRestoreJournalState(@Nullable Object state) {
+            mCount = (Integer) state;
+        }
+
+        private static class RootState extends AbstractState<SavedStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull SavedStateMachine owner, @NonNull Event event) {
+                return HANDLED;
+            }
+        }
+
+        private static class IdleState extends AbstractState<SavedStateMachine> {
+            @Override
+            public void enter(@NonNull SavedStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public void exit(@NonNull SavedStateMachine owner) {
+                owner.mHistory.add("exit:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull SavedStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case START:
+                        owner.transitionTo(owner.mBusyState);
+                        return HANDLED;
+                    case WORK:
+                        owner.deferEvent(event);
+                        return HANDLED;
+                    case ARM:
+                        owner.startTimeout(TIMEOUT, 1000);
+                        return HANDLED;
+                    case TIMEOUT:
+                        owner.mHistory.add("timeout");
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class BusyState extends AbstractState<SavedStateMachine> {
+            @Override
+            public void enter(@NonNull SavedStateMachine owner) {
+                owner.mHistory.add("enter:" + name());
+            }
+            @Override
+            public boolean processEvent(@NonNull SavedStateMachine owner, @NonNull Event event) {
+                if (event.what == WORK) {
+                    owner.mHistory.add("work:" + event.arg1);
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
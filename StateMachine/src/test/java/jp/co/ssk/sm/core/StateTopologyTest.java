@@ -0,0 +1,185 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StateTopologyTest {
+
+    @Test
+    public void denseIds() {
+        StateTopology topology = SharedStateMachine.TOPOLOGY;
+        assertTrue(topology.isSealed());
+        assertEquals(4, topology.getStateCount());
+        assertEquals(0, topology.getStateId(SharedStateMachine.ROOT_STATE));
+        assertEquals(1, topology.getStateId(SharedStateMachine.IDLE_STATE));
+        assertEquals(3, topology.getStateId(SharedStateMachine.DONE_STATE));
+        assertEquals(-1, topology.getStateId(new SharedStateMachine.RootState()));
+        assertSame(SharedStateMachine.BUSY_STATE, topology.getState(2));
+        assertEquals(-1, topology.getParentId(0));
+        assertEquals(2, topology.getParentId(3));
+        assertEquals(2, topology.getDepth(3));
+        assertSame(SharedStateMachine.IDLE_STATE, topology.getInitialState());
+    }
+
+    @Test
+    public void statesInSeveralTopologies() {
+        // Added in reverse, so every id differs from the one in TOPOLOGY.
+        StateTopology topology = new StateTopology.Builder()
+                .addState(SharedStateMachine.DONE_STATE)
+                .addState(SharedStateMachine.BUSY_STATE, SharedStateMachine.DONE_STATE)
+                .addState(SharedStateMachine.IDLE_STATE, SharedStateMachine.BUSY_STATE)
+                .build();
+        assertEquals(0, topology.getStateId(SharedStateMachine.DONE_STATE));
+        assertEquals(2, topology.getStateId(SharedStateMachine.IDLE_STATE));
+        assertEquals(-1, topology.getStateId(SharedStateMachine.ROOT_STATE));
+        assertEquals(1, topology.getParentId(2));
+        assertEquals(2, topology.getDepth(2));
+        assertEquals(3, SharedStateMachine.TOPOLOGY.getStateId(SharedStateMachine.DONE_STATE));
+        assertEquals(1, SharedStateMachine.TOPOLOGY.getStateId(SharedStateMachine.IDLE_STATE));
+    }
+
+    @Test
+    public void deepChain() {
+        StateTopology.Builder builder = new StateTopology.Builder();
+        AbstractState parent = null;
+        for (int i = 0; i < 100; i++) {
+            AbstractState state = new SharedStateMachine.RootState();
+            builder.addState(state, parent);
+            parent = state;
+        }
+        StateTopology topology = builder.build();
+        assertEquals(100, topology.getStateCount());
+        assertEquals(98, topology.getParentId(99));
+        assertEquals(99, topology.getDepth(99));
+        assertEquals(99, topology.getStateId(parent));
+        assertEquals(100, topology.snapshot(topology.get(99)).getDepth());
+    }
+
+    @Test
+    public void sealedAfterBuild() {
+        StateTopology.Builder builder = new StateTopology.Builder().addState(new SharedStateMachine.RootState());
+        builder.build();
+        try {
+            builder.addState(new SharedStateMachine.IdleState());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        SharedStateMachine machine = new SharedStateMachine(null);
+        try {
+            machine.addState(new SharedStateMachine.IdleState());
+            fail();
+        } catch (IllegalStateException expected) {
+        } finally {
+            machine.quit();
+        }
+    }
+
+    @Test
+    public void machinesShareTopology() {
+        Dispatcher.Factory factory = Dispatchers.pooled();
+        List<SharedStateMachine> machines = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            SharedStateMachine machine = new SharedStateMachine(factory);
+            for (int j = 0; j < i % 3; j++) {
+                machine.sendMessage(SharedStateMachine.NEXT);
+            }
+            machines.add(machine);
+        }
+        StateSnapshot[] snapshots = new StateSnapshot[3];
+        for (int i = 0; i < machines.size(); i++) {
+            SharedStateMachine machine = machines.get(i);
+            machine.await();
+            assertSame(SharedStateMachine.TOPOLOGY.getState(1 + i % 3), machine.getCurrentState());
+            assertEquals(i % 3, machine.mTransitions);
+            if (snapshots[i % 3] == null) {
+                snapshots[i % 3] = machine.getStateSnapshot();
+            }
+            assertSame(snapshots[i % 3], machine.getStateSnapshot());
+            machine.quit();
+        }
+    }
+
+    static class SharedStateMachine extends AbstractStateMachine {
+
+        static final int NEXT = 0;
+
+        static final AbstractState ROOT_STATE = new RootState();
+        static final AbstractState IDLE_STATE = new IdleState();
+        static final AbstractState BUSY_STATE = new BusyState();
+        static final AbstractState DONE_STATE = new DoneState();
+
+        static final StateTopology TOPOLOGY = new StateTopology.Builder()
+                .addState(ROOT_STATE)
+                .addState(IDLE_STATE, ROOT_STATE)
+                .addState(BUSY_STATE, ROOT_STATE)
+                .addState(DONE_STATE, BUSY_STATE)
+                .setInitialState(IDLE_STATE)
+                .build();
+
+        volatile int mTransitions;
+
+        SharedStateMachine(@Nullable Dispatcher.Factory factory) {
+            super(factory, TOPOLOGY);
+            start();
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class RootState extends AbstractState<SharedStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull SharedStateMachine owner, @NonNull Event event) {
+                return HANDLED;
+            }
+        }
+
+        private static class IdleState extends AbstractState<SharedStateMachine> {
+            @Nullable
+            @Override
+            public int[] handledEvents() {
+                return new int[]{NEXT};
+            }
+            @Override
+            public boolean processEvent(@NonNull SharedStateMachine owner, @NonNull Event event) {
+                owner.mTransitions++;
+                owner.transitionTo(TOPOLOGY.getStateId(BUSY_STATE));
+                return HANDLED;
+            }
+        }
+
+        private static class BusyState extends AbstractState<SharedStateMachine> {
+            @Nullable
+            @Override
+            public int[] handledEvents() {
+                return new int[]{NEXT};
+            }
+            @Override
+            public boolean processEvent(@NonNull SharedStateMachine owner, @NonNull Event event) {
+                owner.mTransitions++;
+                owner.transitionTo(DONE_STATE);
+                return HANDLED;
+            }
+        }
+
+        private static class DoneState extends AbstractState<SharedStateMachine> {
+            @Nullable
+            @Override
+            public int[] handledEvents() {
+                return new int[0];
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    private final long[] mNow = new long[1];
+    private final List<String> mFired = new ArrayList<>();
+    private TimerWheel mWheel;
+
+    @Before
+    public void before() {
+        mWheel = new TimerWheel(() -> mNow[0], 10);
+    }
+
+    @Test
+    public void firesAtDeadline() {
+        mWheel.schedule(new NamedTimer("a"), 25);
+        advanceTo(20);
+        assertEquals(Collections.emptyList(), mFired);
+        advanceTo(30);
+        assertEquals(Collections.singletonList("a"), mFired);
+        assertEquals(0, mWheel.size());
+    }
+
+    @Test
+    public void cascadesAcrossLevels() {
+        final long[] delays = {5, 640, 700, 40_960, 41_000, 2_621_440, 200_000_000};
+        for (long delay : delays) {
+            mWheel.schedule(new NamedTimer(String.valueOf(delay)), delay);
+        }
+        for (long delay : delays) {
+            advanceTo(delay - 10);
+            assertFalse(mFired.contains(String.valueOf(delay)));
+            advanceTo(delay + 10);
+            assertTrue(mFired.contains(String.valueOf(delay)));
+        }
+        assertEquals(delays.length, mFired.size());
+    }
+
+    @Test
+    public void cancel() {
+        NamedTimer a = new NamedTimer("a");
+        NamedTimer b = new NamedTimer("b");
+        mWheel.schedule(a, 100);
+        mWheel.schedule(b, 100);
+        assertTrue(mWheel.cancel(a));
+        assertFalse(mWheel.cancel(a));
+        advanceTo(100);
+        assertEquals(Collections.singletonList("b"), mFired);
+        assertFalse(mWheel.cancel(b));
+    }
+
+    @Test
+    public void stateTimeout() {
+        TimeoutStateMachine machine = new TimeoutStateMachine(mWheel);
+        try {
+            machine.sendMessage(TimeoutStateMachine.ARM);
+            machine.await();
+            advanceTo(990);
+            machine.await();
+            assertEquals(Collections.emptyList(), machine.history());
+            advanceTo(1000);
+            machine.await();
+            assertEquals(Collections.singletonList("timeout:Waiting"), machine.history());
+
+            machine.sendMessage(TimeoutStateMachine.ARM);
+            machine.sendMessage(TimeoutStateMachine.LEAVE);
+            machine.await();
+            assertEquals(0, mWheel.size());
+            advanceTo(5000);
+            machine.await();
+            assertEquals(Collections.singletonList("timeout:Waiting"), machine.history());
+        } finally {
+            machine.quit();
+        }
+    }
+
+    private void advanceTo(long now) {
+        mNow[0] = now;
+        mWheel.advance();
+    }
+
+    private class NamedTimer extends TimerWheel.Timer {
+        private final String mName;
+        NamedTimer(String name) {
+            mName = name;
+        }
+        @Override
+        void onExpired() {
+            mFired.add(mName);
+        }
+    }
+
+    static class TimeoutStateMachine extends AbstractStateMachine {
+
+        static final int ARM = 0;
+        static final int LEAVE = 1;
+        static final int TIMEOUT = 2;
+
+        final AbstractState mIdleState = new IdleState();
+        final AbstractState mWaitingState = new WaitingState();
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+
+        TimeoutStateMachine(TimerWheel wheel) {
+            setTimerWheel(wheel);
+            addState(mIdleState);
+            addState(mWaitingState, mIdleState);
+            setInitialState(mIdleState);
+            start();
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        private static class IdleState extends AbstractState<TimeoutStateMachine> {
+            @Override
+            public boolean processEvent(@NonNull TimeoutStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case ARM:
+                        owner.transitionTo(owner.mWaitingState);
+                        break;
+                    case TIMEOUT:
+                        owner.mHistory.add("timeout:" + name());
+                        break;
+                }
+                return HANDLED;
+            }
+        }
+
+        private static class WaitingState extends AbstractState<TimeoutStateMachine> {
+            @NonNull
+            @Override
+            public String name() {
+                return "Waiting";
+            }
+            @Override
+            public void enter(@NonNull TimeoutStateMachine owner) {
+                owner.startTimeout(TIMEOUT, 1000);
+            }
+            @Override
+            public boolean processEvent(@NonNull TimeoutStateMachine owner, @NonNull Event event) {
+                switch (event.what) {
+                    case LEAVE:
+                        owner.transitionTo(owner.mIdleState);
+                        return HANDLED;
+                    case TIMEOUT:
+                        owner.mHistory.add("timeout:" + name());
+                        return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TransitionPlanTest {
+
+    private TreeStateMachine mStateMachine;
+
+    @Before
+    public void before() {
+        mStateMachine = new TreeStateMachine();
+        assertSame(mStateMachine.mC, mStateMachine.getCurrentState());
+    }
+
+    @After
+    public void after() {
+        mStateMachine.quit();
+    }
+
+    @Test
+    public void transitionAcrossCommonAncestor() {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(Arrays.asList("exit:C", "exit:B", "enter:D", "enter:E"),
+                    mStateMachine.transition(mStateMachine.mE));
+            assertEquals(Arrays.asList("exit:E", "exit:D", "enter:B", "enter:C"),
+                    mStateMachine.transition(mStateMachine.mC));
+        }
+    }
+
+    @Test
+    public void transitionToAncestorAndDescendant() {
+        assertEquals(Arrays.asList("exit:C", "exit:B"), mStateMachine.transition(mStateMachine.mA));
+        assertEquals(Arrays.asList("enter:D", "enter:E"), mStateMachine.transition(mStateMachine.mE));
+        assertEquals(Collections.emptyList(), mStateMachine.transition(mStateMachine.mE));
+        assertSame(mStateMachine.mE, mStateMachine.getCurrentState());
+    }
+
+    @Test
+    public void transitionToOtherRoot() {
+        assertEquals(Arrays.asList("exit:C", "exit:B", "exit:A", "enter:F"),
+                mStateMachine.transition(mStateMachine.mF));
+        assertEquals(Arrays.asList("exit:F", "enter:A", "enter:D"),
+                mStateMachine.transition(mStateMachine.mD));
+    }
+
+    static class TreeStateMachine extends AbstractStateMachine {
+
+        final AbstractState mA = new NodeState("A");
+        final AbstractState mB = new NodeState("B");
+        final AbstractState mC = new NodeState("C");
+        final AbstractState mD = new NodeState("D");
+        final AbstractState mE = new NodeState("E");
+        final AbstractState mF = new NodeState("F");
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+
+        TreeStateMachine() {
+            addState(mA);
+            addState(mB, mA);
+            addState(mC, mB);
+            addState(mD, mA);
+            addState(mE, mD);
+            addState(mF);
+            setInitialState(mC);
+            start();
+        }
+
+        List<String> transition(AbstractState state) {
+            mHistory.clear();
+            sendMessageSyncIf(0, state);
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        private static class NodeState extends AbstractState<TreeStateMachine> {
+            private final String mName;
+
+            NodeState(String name) {
+                mName = name;
+            }
+            @Override
+            public void enter(@NonNull TreeStateMachine owner) {
+                owner.mHistory.add("enter:" + mName);
+            }
+            @Override
+            public void exit(@NonNull TreeStateMachine owner) {
+                owner.mHistory.add("exit:" + mName);
+            }
+            @Override
+            public boolean processEvent(@NonNull TreeStateMachine owner, @NonNull Event event) {
+                owner.transitionTo((AbstractState) event.obj);
+                return HANDLED;
+            }
+            @NonNull
+            @Override
+            public String name() {
+                return mName;
+            }
+        }
+    }
+}
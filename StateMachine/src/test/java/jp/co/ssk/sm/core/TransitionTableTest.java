@@ -0,0 +1,268 @@
+package jp.co.ssk.sm.core;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class TransitionTableTest {
+
+    @Test
+    public void guardsFirstMatch() {
+        DoorStateMachine sm = new DoorStateMachine(DoorStateMachine.TABLE);
+        try {
+            sm.sendMessage(DoorStateMachine.LOCK);
+            sm.await();
+            assertSame(DoorStateMachine.LOCKED_STATE, sm.getCurrentState());
+            // The leaf's internal transition is matched before CLOSED_STATE's guarded one.
+            sm.sendMessage(DoorStateMachine.OPEN, 7);
+            sm.sendMessage(DoorStateMachine.UNLOCK, 1);
+            sm.await();
+            assertSame(DoorStateMachine.LOCKED_STATE, sm.getCurrentState());
+            assertEquals(Collections.singletonList("denied:7"), sm.history());
+            sm.sendMessage(DoorStateMachine.UNLOCK, DoorStateMachine.CODE);
+            sm.sendMessage(DoorStateMachine.OPEN, 8);
+            sm.await();
+            assertSame(DoorStateMachine.OPENED_STATE, sm.getCurrentState());
+            assertEquals(Arrays.asList("denied:7", "unlock:1234", "open:8"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void ancestorsAndProcessEvent() {
+        DoorStateMachine sm = new DoorStateMachine(DoorStateMachine.TABLE);
+        try {
+            // Not in the table, or no guard passes; ClosedState.processEvent is offered it.
+            sm.sendMessage(DoorStateMachine.KNOCK);
+            sm.sendMessage(DoorStateMachine.OPEN, 0);
+            sm.sendMessage(DoorStateMachine.OPEN, 1);
+            // From the root state, whatever the leaf.
+            sm.sendMessage(DoorStateMachine.RESET);
+            sm.await();
+            assertSame(DoorStateMachine.CLOSED_STATE, sm.getCurrentState());
+            assertEquals(Arrays.asList("knock", "open:1", "reset"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void leafBeforeAncestors() {
+        DoorStateMachine sm = new DoorStateMachine(DoorStateMachine.TABLE);
+        try {
+            // ClosedState.processEvent takes KNOCK ahead of ROOT_STATE's transition for it, from
+            // CLOSED_STATE itself and from LOCKED_STATE below it.
+            sm.sendMessage(DoorStateMachine.KNOCK);
+            sm.sendMessage(DoorStateMachine.LOCK);
+            sm.sendMessage(DoorStateMachine.KNOCK);
+            sm.sendMessage(DoorStateMachine.UNLOCK, DoorStateMachine.CODE);
+            sm.sendMessage(DoorStateMachine.OPEN, 1);
+            sm.sendMessage(DoorStateMachine.KNOCK);
+            sm.await();
+            assertSame(DoorStateMachine.OPENED_STATE, sm.getCurrentState());
+            assertEquals(Arrays.asList("knock", "knock", "unlock:1234", "open:1", "knock:root"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void leafBeforeAncestorsWithHandledEvents() {
+        DoorStateMachine sm = new DoorStateMachine(DoorStateMachine.GATE_TABLE);
+        try {
+            // GateState declares only KNOCK, yet its transition for OPEN is still taken.
+            sm.sendMessage(DoorStateMachine.KNOCK);
+            sm.sendMessage(DoorStateMachine.OPEN);
+            sm.sendMessage(DoorStateMachine.CLOSE);
+            sm.await();
+            assertEquals(Arrays.asList("knock", "open", "close:root"), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void clearTable() {
+        DoorStateMachine sm = new DoorStateMachine(DoorStateMachine.TABLE);
+        try {
+            sm.setTransitionTable(null);
+            sm.sendMessage(DoorStateMachine.OPEN, 1);
+            sm.await();
+            assertSame(DoorStateMachine.CLOSED_STATE, sm.getCurrentState());
+            assertEquals(Collections.emptyList(), sm.history());
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void unreachableTransitions() {
+        TransitionTable.Builder<DoorStateMachine> builder = new TransitionTable.Builder<DoorStateMachine>(DoorStateMachine.TOPOLOGY)
+                .add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, DoorStateMachine.OPENED_STATE);
+        try {
+            builder.add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, (owner, event) -> true,
+                    DoorStateMachine.LOCKED_STATE);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        TransitionTable.Guard<DoorStateMachine> guard = (owner, event) -> event.arg1 > 0;
+        // Shadowed by position, whatever guards come between or after.
+        builder = new TransitionTable.Builder<DoorStateMachine>(DoorStateMachine.TOPOLOGY)
+                .add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, guard, DoorStateMachine.LOCKED_STATE)
+                .add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, DoorStateMachine.OPENED_STATE);
+        try {
+            builder.add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, (owner, event) -> event.arg1 < 0,
+                    DoorStateMachine.LOCKED_STATE);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        builder = new TransitionTable.Builder<DoorStateMachine>(DoorStateMachine.TOPOLOGY)
+                .add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, guard, DoorStateMachine.OPENED_STATE);
+        try {
+            builder.add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, guard, DoorStateMachine.LOCKED_STATE);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // Guards are compared by identity; an equal condition in another lambda is accepted.
+        builder.add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, (owner, event) -> event.arg1 > 0,
+                DoorStateMachine.LOCKED_STATE);
+        try {
+            builder.add(new DoorStateMachine.DoorState(), DoorStateMachine.OPEN, DoorStateMachine.OPENED_STATE);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            builder.add(DoorStateMachine.CLOSED_STATE, -1, DoorStateMachine.OPENED_STATE);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        DoorStateMachine sm = new DoorStateMachine(null);
+        try {
+            TransitionTable<DoorStateMachine> table = new TransitionTable.Builder<DoorStateMachine>(new StateTopology.Builder()
+                    .addState(DoorStateMachine.ROOT_STATE)
+                    .build()).build();
+            sm.setTransitionTable(table);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            sm.quit();
+        }
+    }
+
+    @Test
+    public void unreachableStates() {
+        assertEquals(Collections.emptyList(), DoorStateMachine.TABLE.getUnreachableStates(null));
+        TransitionTable<DoorStateMachine> table = new TransitionTable.Builder<DoorStateMachine>(DoorStateMachine.TOPOLOGY)
+                .add(DoorStateMachine.CLOSED_STATE, DoorStateMachine.OPEN, DoorStateMachine.OPENED_STATE)
+                .add(DoorStateMachine.OPENED_STATE, DoorStateMachine.CLOSE, DoorStateMachine.CLOSED_STATE)
+                .build();
+        assertEquals(Collections.singletonList(DoorStateMachine.LOCKED_STATE), table.getUnreachableStates(null));
+        assertEquals(Collections.emptyList(), table.getUnreachableStates(DoorStateMachine.LOCKED_STATE));
+    }
+
+    static class DoorStateMachine extends AbstractStateMachine {
+
+        static final int OPEN = 0;
+        static final int CLOSE = 1;
+        static final int LOCK = 2;
+        static final int UNLOCK = 3;
+        static final int KNOCK = 4;
+        static final int RESET = 5;
+
+        static final int CODE = 1234;
+
+        static final AbstractState ROOT_STATE = new DoorState();
+        static final AbstractState CLOSED_STATE = new ClosedState();
+        static final AbstractState LOCKED_STATE = new DoorState();
+        static final AbstractState OPENED_STATE = new DoorState();
+
+        static final StateTopology TOPOLOGY = new StateTopology.Builder()
+                .addState(ROOT_STATE)
+                .addState(CLOSED_STATE, ROOT_STATE)
+                .addState(LOCKED_STATE, CLOSED_STATE)
+                .addState(OPENED_STATE, ROOT_STATE)
+                .setInitialState(CLOSED_STATE)
+                .build();
+
+        static final TransitionTable<DoorStateMachine> TABLE = new TransitionTable.Builder<DoorStateMachine>(TOPOLOGY)
+                .add(CLOSED_STATE, OPEN, (owner, event) -> event.arg1 > 0, OPENED_STATE,
+                        (owner, event) -> owner.mHistory.add("open:" + event.arg1))
+                .add(CLOSED_STATE, LOCK, LOCKED_STATE)
+                .add(LOCKED_STATE, OPEN, null, null, (owner, event) -> owner.mHistory.add("denied:" + event.arg1))
+                .add(LOCKED_STATE, UNLOCK, (owner, event) -> event.arg1 == CODE, CLOSED_STATE,
+                        (owner, event) -> owner.mHistory.add("unlock:" + event.arg1))
+                .add(OPENED_STATE, CLOSE, CLOSED_STATE)
+                .add(ROOT_STATE, RESET, null, CLOSED_STATE, (owner, event) -> owner.mHistory.add("reset"))
+                .add(ROOT_STATE, KNOCK, null, null, (owner, event) -> owner.mHistory.add("knock:root"))
+                .build();
+
+        static final AbstractState GATE_ROOT_STATE = new DoorState();
+        static final AbstractState GATE_STATE = new GateState();
+
+        // GateState declares its codes, so this topology dispatches through per-leaf tables.
+        static final StateTopology GATE_TOPOLOGY = new StateTopology.Builder()
+                .addState(GATE_ROOT_STATE)
+                .addState(GATE_STATE, GATE_ROOT_STATE)
+                .setInitialState(GATE_STATE)
+                .build();
+
+        static final TransitionTable<DoorStateMachine> GATE_TABLE = new TransitionTable.Builder<DoorStateMachine>(GATE_TOPOLOGY)
+                .add(GATE_ROOT_STATE, KNOCK, null, null, (owner, event) -> owner.mHistory.add("knock:root"))
+                .add(GATE_ROOT_STATE, CLOSE, null, null, (owner, event) -> owner.mHistory.add("close:root"))
+                .add(GATE_STATE, OPEN, null, null, (owner, event) -> owner.mHistory.add("open"))
+                .build();
+
+        private final List<String> mHistory = Collections.synchronizedList(new ArrayList<>());
+
+        DoorStateMachine(TransitionTable<DoorStateMachine> table) {
+            super(null, table == null ? TOPOLOGY : table.getTopology());
+            setTransitionTable(table);
+            start();
+        }
+
+        List<String> history() {
+            synchronized (mHistory) {
+                return new ArrayList<>(mHistory);
+            }
+        }
+
+        void await() {
+            final SyncCallback<Void> callback = new SyncCallback<>();
+            getDispatcher().post(callback::unlock);
+            callback.lock();
+        }
+
+        static class DoorState extends AbstractState<DoorStateMachine> {
+        }
+
+        private static class ClosedState extends DoorState {
+            @Override
+            public boolean processEvent(@NonNull DoorStateMachine owner, @NonNull Event event) {
+                if (event.what == KNOCK) {
+                    owner.mHistory.add("knock");
+                    return HANDLED;
+                }
+                return NOT_HANDLED;
+            }
+        }
+
+        private static class GateState extends ClosedState {
+            @Nullable
+            @Override
+            public int[] handledEvents() {
+                return new int[]{KNOCK};
+            }
+        }
+    }
+}